@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * JMH refuses benchmarks in the default package, which is where the engine lives, and a named package cannot
+ * refer to default package classes. So the benchmarks reach the engine by name: handles for the measured calls
+ * are looked up once (static final, so the JIT treats them as constants), setup calls go through reflection.
+ */
+final class EngineAccess {
+
+    static final Class<?> ENGINE = load("OpenAiAssistantEngine");
+    static final Class<?> CHAT_MESSAGES = load("ChatMessages");
+    static final Class<?> CHAT_COMPLETION = load("ChatCompletion");
+    static final Class<?> MARKDOWN_RENDERER = load("MarkdownRenderer");
+
+    private EngineAccess() {
+    }
+
+    static Object newEngine(String assistantType, String model, File[] files) {
+        try {
+            Object engine = ENGINE.getConstructor(String.class, String.class, String.class, File[].class)
+                    .newInstance("benchmark-key", assistantType, "You are an AI Academic Advisor for Abilene Christian University.", files);
+            call(engine, "setModel", model);
+            return engine;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle virtual(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findConstructor(owner, MethodType.methodType(void.class, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle statik(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //setup only: calls the (possibly private) method with the given name and number of arguments
+    static Object call(Object target, String name, Object... args) {
+        for (Method method : target.getClass().getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                try {
+                    method.setAccessible(true);
+                    return method.invoke(target, args);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        throw new IllegalArgumentException("No method " + name + " with " + args.length + " arguments on " + target.getClass().getName());
+    }
+
+    //a text file of course-catalog-like lines, roughly the given size
+    static File writeTextFile(int kilobytes) {
+        try {
+            Path path = Files.createTempFile("benchmark-", ".txt");
+            path.toFile().deleteOnExit();
+            StringBuilder out = new StringBuilder(kilobytes * 1024 + 256);
+            for (int i = 0; out.length() < kilobytes * 1024; i++) {
+                out.append("CS").append(100 + i % 400).append(" Section ").append(i % 7).append(": Data Structures and Algorithms, 3 credits, ")
+                        .append("taught by Dr. ").append((char) ('A' + i % 26)).append("mith in MBB ").append(100 + i % 300)
+                        .append(", prerequisites CS").append(100 + (i + 11) % 400).append(" with a grade of C or better.\n");
+            }
+            Files.writeString(path, out, StandardCharsets.UTF_8);
+            return path.toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
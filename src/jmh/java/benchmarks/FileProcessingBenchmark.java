@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Reading the attached files into the prompt's file contents. "cold" clears the file content cache before every
+ * call so each one really extracts, "warm" measures what an unchanged file costs once it is cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileProcessingBenchmark {
+
+    private static final MethodHandle PROCESS_FILE_CONTENTS = EngineAccess.virtual(EngineAccess.ENGINE, "processFileContents", int.class);
+
+    @Param({"database", "text-1mb", "text-16mb"})
+    public String input;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private Object engine;
+    private Object fileContentCache;
+
+    @Setup
+    public void setup() {
+        File file = switch (input) {
+            case "database" -> new File("db/acu_database.db");
+            case "text-1mb" -> EngineAccess.writeTextFile(1024);
+            default -> EngineAccess.writeTextFile(16 * 1024);
+        };
+        if (!file.isFile()) {
+            throw new IllegalStateException(file.getAbsolutePath() + " not found, run the benchmarks from the project directory.");
+        }
+        engine = EngineAccess.newEngine("file-search", "gpt-4o-mini", new File[]{file});
+        fileContentCache = EngineAccess.call(engine, "getFileContentCache");
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        if ("cold".equals(cache)) {
+            EngineAccess.call(fileContentCache, "clear");
+        }
+    }
+
+    @Benchmark
+    public int processFileContents() throws Throwable {
+        return (int) PROCESS_FILE_CONTENTS.invoke(engine);
+    }
+}
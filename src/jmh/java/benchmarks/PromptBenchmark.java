@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//building the prompt for one message as the history and the attached files grow
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PromptBenchmark {
+
+    private static final MethodHandle BUILD_PROMPT = EngineAccess.virtual(EngineAccess.ENGINE, "buildPrompt", EngineAccess.CHAT_MESSAGES, String.class);
+    private static final MethodHandle BUILD_REQUEST_BODY = EngineAccess.virtual(EngineAccess.ENGINE, "buildRequestBody", String.class, EngineAccess.CHAT_MESSAGES, boolean.class, String.class);
+
+    @Param({"0", "20", "200"})
+    public int historyEntries;
+
+    @Param({"4", "64", "512"})
+    public int fileKilobytes;
+
+    private Object engine;
+    private String model;
+    private final String message = "What grade do I need in the class CS375 to get the credit?";
+
+    @Setup
+    public void setup() {
+        engine = EngineAccess.newEngine("file-search", "gpt-4o-mini", new java.io.File[]{EngineAccess.writeTextFile(fileKilobytes)});
+        List<String> history = new ArrayList<>();
+        for (int i = 0; i < historyEntries / 2; i++) {
+            history.add("User: Which classes should I take next semester if I want to graduate by spring " + (2026 + i % 3) + "?");
+            history.add("You: Based on your degree plan you still need CS" + (300 + i % 100) + ", a math elective and two Bible courses, so a 15 hour semester covers it.");
+        }
+        EngineAccess.call(engine, "setChatCache", history);
+        model = (String) EngineAccess.call(engine, "getModel");
+    }
+
+    @Benchmark
+    public Object buildPrompt() throws Throwable {
+        return BUILD_PROMPT.invoke(engine, message);
+    }
+
+    //the prompt plus its serialization, everything done locally before a request goes out
+    @Benchmark
+    public Object buildPromptAndRequestBody() throws Throwable {
+        Object prompt = BUILD_PROMPT.invoke(engine, message);
+        return BUILD_REQUEST_BODY.invoke(engine, prompt, false, model);
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+//turning a chat completion response body into the content, token count and response data, as sendChatRequest does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    private static final MethodHandle PARSE = EngineAccess.statik(EngineAccess.CHAT_COMPLETION, "parse", EngineAccess.CHAT_COMPLETION, byte[].class);
+
+    @Param({"200", "4000", "32000"})
+    public int contentLength;
+
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < contentLength) {
+            content.append("You need a \"C\" or better in CS375.\nSee the catalog for details. ");
+        }
+        JSONObject message = new JSONObject().put("role", "assistant").put("content", content.substring(0, contentLength)).put("refusal", JSONObject.NULL);
+        JSONObject choice = new JSONObject().put("index", 0).put("message", message).put("logprobs", JSONObject.NULL).put("finish_reason", "stop");
+        JSONObject usage = new JSONObject().put("prompt_tokens", 1520).put("completion_tokens", contentLength / 4).put("total_tokens", 1520 + contentLength / 4)
+                .put("prompt_tokens_details", new JSONObject().put("cached_tokens", 1280).put("audio_tokens", 0))
+                .put("completion_tokens_details", new JSONObject().put("reasoning_tokens", 0).put("audio_tokens", 0));
+        response = new JSONObject().put("id", "chatcmpl-AbC123").put("object", "chat.completion").put("created", 1760000000L).put("model", "gpt-4o-mini-2024-07-18")
+                .put("choices", new JSONArray().put(choice)).put("usage", usage).put("system_fingerprint", "fp_0123456789").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    //the single pass ChatCompletion parser the engine uses
+    @Benchmark
+    public Object parseResponse() throws Throwable {
+        return PARSE.invoke(response);
+    }
+
+    //the previous path, for comparison: the body as a string, parsed into a JSONObject three times and copied into a map
+    @Benchmark
+    public void parseWithJSONObject(Blackhole blackhole) {
+        String body = new String(response, StandardCharsets.UTF_8);
+        Map<String, Object> responseData = new HashMap<>();
+        JSONObject json = new JSONObject(body);
+        json.keySet().forEach(key -> responseData.put(key, json.get(key)));
+        blackhole.consume(responseData);
+        blackhole.consume(new JSONObject(body).getJSONArray("choices").getJSONObject(0).getJSONObject("message").getString("content"));
+        blackhole.consume(new JSONObject(body).getJSONObject("usage").getInt("total_tokens"));
+    }
+}
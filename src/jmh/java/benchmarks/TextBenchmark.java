@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//per-message text handling: the markdown formatting of replies and the json escaping of everything sent
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextBenchmark {
+
+    private static final MethodHandle FORMAT_MARKDOWN = EngineAccess.virtual(EngineAccess.ENGINE, "formatMarkdown", String.class, String.class);
+    private static final MethodHandle NEW_RENDERER = EngineAccess.constructor(EngineAccess.MARKDOWN_RENDERER);
+    private static final MethodHandle APPEND = EngineAccess.virtual(EngineAccess.MARKDOWN_RENDERER, "append", String.class, CharSequence.class);
+    private static final MethodHandle FINISH = EngineAccess.virtual(EngineAccess.MARKDOWN_RENDERER, "finish", String.class);
+    private static final MethodHandle APPEND_JSON_STRING = EngineAccess.statik(EngineAccess.CHAT_MESSAGES, "appendJsonString", void.class, StringBuilder.class, String.class);
+
+    @Param({"500", "8000"})
+    public int length;
+
+    private Object engine;
+    private String markdown;
+    private String[] chunks;
+
+    @Setup
+    public void setup() {
+        engine = EngineAccess.newEngine("chat", "gpt-4o-mini", null);
+        String paragraph = "To get credit for **CS375** you need a _C_ or better. Your advisor can check it with `degreeworks` or:\n"
+                + "```\nSELECT grade FROM enrollments WHERE course = \"CS375\";\n```\n\tThen ask the \"registrar\" about *repeat* policies.\n";
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(paragraph);
+        }
+        markdown = text.substring(0, length);
+        //streamed deltas are a token or two, so markers and fences get split across chunks
+        chunks = new String[(length + 3) / 4];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = markdown.substring(i * 4, Math.min(length, i * 4 + 4));
+        }
+    }
+
+    @Benchmark
+    public Object formatMarkdown() throws Throwable {
+        return FORMAT_MARKDOWN.invoke(engine, markdown);
+    }
+
+    @Benchmark
+    public int formatStreamedMarkdown() throws Throwable {
+        Object renderer = NEW_RENDERER.invoke();
+        int printed = 0;
+        for (String chunk : chunks) {
+            printed += ((String) APPEND.invoke(renderer, chunk)).length();
+        }
+        return printed + ((String) FINISH.invoke(renderer)).length();
+    }
+
+    //the escaping every message goes through on its way into the request body
+    @Benchmark
+    public StringBuilder escapeJson() throws Throwable {
+        StringBuilder out = new StringBuilder(length + 64);
+        APPEND_JSON_STRING.invoke(out, markdown);
+        return out;
+    }
+}
@@ -0,0 +1,116 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class AssistantSession {
+
+    private final String id;
+    private final OpenAiAssistantEngine engine;
+    private final int maxHistoryEntries;
+    private final List<String> history;
+    private final ConversationCompactor compactor;
+    private final long createdMillis;
+    private volatile long lastAccessMillis;
+
+    AssistantSession(String id, OpenAiAssistantEngine engine, int maxHistoryEntries) {
+        this.id = id;
+        this.engine = engine;
+        this.maxHistoryEntries = maxHistoryEntries;
+        this.history = Collections.synchronizedList(new ArrayList<>());
+        this.compactor = new ConversationCompactor(history);
+        this.createdMillis = System.currentTimeMillis();
+        this.lastAccessMillis = createdMillis;
+    }
+
+    //a session whose history (and summary) is kept in a conversation store, as it was left there
+    AssistantSession(String id, OpenAiAssistantEngine engine, int maxHistoryEntries, ConversationStore.Conversation conversation) {
+        this.id = id;
+        this.engine = engine;
+        this.maxHistoryEntries = maxHistoryEntries;
+        this.history = conversation;
+        this.compactor = new ConversationCompactor(conversation, conversation.getSummary());
+        compactor.setSummaryListener(conversation::setSummary);
+        this.createdMillis = System.currentTimeMillis();
+        this.lastAccessMillis = createdMillis;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String chat(String message, boolean format) {
+        ChatResult result = chatAsync(message, format).join();
+        return result.isSuccessful() ? result.getResponse() : null;
+    }
+
+    public CompletableFuture<ChatResult> chatAsync(String message, boolean format) {
+        touch();
+        return engine.chatGPTAsync(message, format, history, compactor).thenApply(result -> {
+            trimHistory();
+            touch();
+            return result;
+        });
+    }
+
+    public List<String> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    public void setHistory(List<String> newHistory) {
+        List<String> entries = new ArrayList<>(newHistory);
+        ConversationStore.atomically(history, () -> {
+            history.clear();
+            history.addAll(entries);
+            compactor.reset();
+            trimHistory();
+        });
+    }
+
+    public void clearHistory() {
+        ConversationStore.atomically(history, () -> {
+            history.clear();
+            compactor.reset();
+        });
+    }
+
+    //summary of the turns compacted out of the history, null if the engine has not compacted this session yet
+    public String getSummary() {
+        return compactor.getSummary();
+    }
+
+    public void setSummary(String summary) {
+        compactor.setSummary(summary);
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    //drops the oldest user/assistant pairs once the history is over its limit
+    private void trimHistory() {
+        if (maxHistoryEntries <= 0) {
+            return;
+        }
+        //a stored history drops both entries of a pair in the same transaction
+        ConversationStore.atomically(history, () -> {
+            while (history.size() > maxHistoryEntries) {
+                history.remove(0);
+                if (!history.isEmpty()) {
+                    history.remove(0);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,146 @@
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Many conversations on one engine. The sessions share the engine itself rather than a frozen copy of it: the
+ * processed file contents are one immutable string that is swapped whole when the files are reprocessed, and
+ * each message reads the engine's settings as they are when it is sent. So a change on the engine (new files,
+ * another model) reaches every session from its next message on, without restarting them.
+ */
+public final class AssistantSessionManager implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_SESSIONS = 10000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int DEFAULT_MAX_HISTORY_ENTRIES = 40;
+    //keeps session histories apart from the engine's own conversation in a shared store
+    private static final String STORED_SESSION_PREFIX = "session:";
+
+    //one engine holds the configuration and the processed file contents for every session
+    private final OpenAiAssistantEngine engine;
+    private final int maxSessions;
+    private final long idleTimeoutMillis;
+    private final int maxHistoryEntries;
+
+    //access ordered so the eldest entry is always the least recently used session
+    private final LinkedHashMap<String, AssistantSession> sessions;
+    private final ScheduledExecutorService evictionExecutor;
+    private long evictedSessions = 0;
+
+    public AssistantSessionManager(OpenAiAssistantEngine engine) {
+        this(engine, DEFAULT_MAX_SESSIONS, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_HISTORY_ENTRIES);
+    }
+
+    public AssistantSessionManager(OpenAiAssistantEngine engine, int maxSessions, long idleTimeoutMillis, int maxHistoryEntries) {
+        this.engine = engine;
+        this.maxSessions = maxSessions;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxHistoryEntries = maxHistoryEntries;
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AssistantSession> eldest) {
+                if (size() > AssistantSessionManager.this.maxSessions) {
+                    evictedSessions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (idleTimeoutMillis > 0) {
+            long period = Math.max(1000, idleTimeoutMillis / 2);
+            this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "assistant-session-eviction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictionExecutor.scheduleWithFixedDelay(this::evictIdleSessions, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictionExecutor = null;
+        }
+    }
+
+    public OpenAiAssistantEngine getEngine() {
+        return engine;
+    }
+
+    public synchronized AssistantSession getSession(String sessionId) {
+        AssistantSession session = sessions.get(sessionId);
+        if (session == null) {
+            //with a conversation store an evicted (or pre-restart) session comes back with its history
+            ConversationStore store = engine.getConversationStore();
+            session = store == null ? new AssistantSession(sessionId, engine, maxHistoryEntries)
+                    : new AssistantSession(sessionId, engine, maxHistoryEntries, store.conversation(STORED_SESSION_PREFIX + sessionId));
+            sessions.put(sessionId, session);
+        }
+        session.touch();
+        return session;
+    }
+
+    public synchronized boolean hasSession(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    public String chat(String sessionId, String message, boolean format) {
+        return getSession(sessionId).chat(message, format);
+    }
+
+    public CompletableFuture<ChatResult> chatAsync(String sessionId, String message, boolean format) {
+        return getSession(sessionId).chatAsync(message, format);
+    }
+
+    public synchronized AssistantSession removeSession(String sessionId) {
+        return sessions.remove(sessionId);
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    public synchronized List<String> getSessionIds() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    public synchronized long getEvictedSessionCount() {
+        return evictedSessions;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public synchronized int evictIdleSessions() {
+        if (idleTimeoutMillis <= 0) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        int evicted = 0;
+        Iterator<AssistantSession> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getLastAccessMillis() < cutoff) {
+                iterator.remove();
+                evicted++;
+            }
+        }
+        evictedSessions += evicted;
+        return evicted;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+        }
+        sessions.clear();
+    }
+}
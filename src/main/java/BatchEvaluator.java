@@ -0,0 +1,200 @@
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class BatchEvaluator {
+
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private final OpenAiAssistantEngine engine;
+    private final int parallelism;
+
+    public record BatchItem(String id, String prompt, String session, JSONObject input) {
+    }
+
+    public record BatchResult(BatchItem item, ChatResult result, String error, long latencyMillis) {
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("id", item.id);
+            json.put("prompt", item.prompt);
+            if (item.session != null) {
+                json.put("session", item.session);
+            }
+            if (item.input.has("expected")) {
+                json.put("expected", item.input.get("expected"));
+            }
+            json.put("latency_ms", latencyMillis);
+            if (error != null) {
+                json.put("error", error);
+                return json;
+            }
+            json.put("response", result.getResponse());
+            for (String key : new String[]{"processing_time_ms", "total_tokens", "prompt_tokens", "cached_tokens", "estimated_prompt_tokens", "cache_hit"}) {
+                Object value = result.getResponseData().get(key);
+                if (value != null) {
+                    json.put(key, value);
+                }
+            }
+            return json;
+        }
+    }
+
+    public record BatchReport(int prompts, int failures, long wallMillis, long totalTokens, double meanLatencyMillis,
+                              long p50Millis, long p90Millis, long p95Millis, long p99Millis, long maxLatencyMillis) {
+
+        public double getThroughputPerSecond() {
+            return wallMillis == 0 ? 0 : prompts * 1000.0 / wallMillis;
+        }
+
+        @Override
+        public String toString() {
+            return prompts + " prompts (" + failures + " failed) in " + wallMillis + " ms, " + String.format("%.2f", getThroughputPerSecond()) + " prompts/s, " + totalTokens + " tokens\n"
+                    + "latency ms: mean " + String.format("%.0f", meanLatencyMillis) + ", p50 " + p50Millis + ", p90 " + p90Millis + ", p95 " + p95Millis + ", p99 " + p99Millis + ", max " + maxLatencyMillis;
+        }
+    }
+
+    public BatchEvaluator(OpenAiAssistantEngine engine) {
+        this(engine, DEFAULT_PARALLELISM);
+    }
+
+    public BatchEvaluator(OpenAiAssistantEngine engine, int parallelism) {
+        this.engine = engine;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    //reads the prompts, runs them and writes one result line per prompt in the input order
+    public BatchReport run(Path input, Path output) throws IOException {
+        List<BatchItem> items = readItems(input);
+        List<BatchResult> results = new ArrayList<>();
+        BatchReport report = run(items, results);
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            for (BatchResult result : results) {
+                writer.write(result.toJSON().toString());
+                writer.newLine();
+            }
+        }
+        return report;
+    }
+
+    /*
+     * Every prompt gets its own empty history, except prompts that name the same "session": those run one after
+     * the other in file order and share a history, so multi-turn conversations can be evaluated too. Different
+     * sessions run concurrently, with at most `parallelism` requests in flight at once.
+     */
+    public BatchReport run(List<BatchItem> items, List<BatchResult> results) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            String session = items.get(i).session;
+            groups.computeIfAbsent(session != null ? "session:" + session : "item:" + i, key -> new ArrayList<>()).add(i);
+        }
+        BatchResult[] ordered = new BatchResult[items.size()];
+        Semaphore permits = new Semaphore(parallelism);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (List<Integer> group : groups.values()) {
+                executor.execute(() -> {
+                    List<String> history = Collections.synchronizedList(new ArrayList<>());
+                    for (int index : group) {
+                        ordered[index] = runItem(items.get(index), history, permits);
+                    }
+                });
+            }
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        results.addAll(Arrays.asList(ordered));
+        return summarize(results, wallMillis);
+    }
+
+    public static List<BatchItem> readItems(Path input) throws IOException {
+        List<BatchItem> items = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            JSONObject json;
+            try {
+                json = new JSONObject(line);
+            } catch (JSONException e) {
+                //a plain line is taken as the prompt itself
+                json = new JSONObject().put("prompt", line.trim());
+            }
+            if (!json.has("prompt")) {
+                System.out.println("Skipping line " + lineNumber + " of " + input + ": no \"prompt\".");
+                continue;
+            }
+            String id = json.has("id") ? String.valueOf(json.get("id")) : String.valueOf(lineNumber);
+            items.add(new BatchItem(id, json.getString("prompt"), json.has("session") ? String.valueOf(json.get("session")) : null, json));
+        }
+        return items;
+    }
+
+    public static BatchReport summarize(List<BatchResult> results, long wallMillis) {
+        long[] latencies = new long[results.size()];
+        int failures = 0;
+        long totalTokens = 0;
+        long latencySum = 0;
+        for (int i = 0; i < results.size(); i++) {
+            BatchResult result = results.get(i);
+            latencies[i] = result.latencyMillis;
+            latencySum += result.latencyMillis;
+            if (result.error != null) {
+                failures++;
+            } else {
+                totalTokens += result.result.getTotalTokens();
+            }
+        }
+        Arrays.sort(latencies);
+        double mean = latencies.length == 0 ? 0 : (double) latencySum / latencies.length;
+        return new BatchReport(results.size(), failures, wallMillis, totalTokens, mean,
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 95), percentile(latencies, 99),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1]);
+    }
+
+    //nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private BatchResult runItem(BatchItem item, List<String> history, Semaphore permits) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new BatchResult(item, null, "Interrupted.", 0);
+        }
+        long start = System.nanoTime();
+        try {
+            ChatResult result = engine.chatGPTAsync(item.prompt, false, history).join();
+            long latencyMillis = (System.nanoTime() - start) / 1000000;
+            return new BatchResult(item, result, result.isSuccessful() ? null : String.valueOf(result.getError()), latencyMillis);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            return new BatchResult(item, null, cause.getClass().getSimpleName() + ": " + cause.getMessage(), (System.nanoTime() - start) / 1000000);
+        } finally {
+            permits.release();
+        }
+    }
+}
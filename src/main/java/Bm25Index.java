@@ -0,0 +1,298 @@
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class Bm25Index {
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int DEFAULT_MAX_CHUNK_CHARS = 1500;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    //inverted index: term -> chunks containing it, with the term frequency in each
+    private final Map<String, List<Posting>> postings = new HashMap<>();
+    private final float averageChunkLength;
+
+    private record Posting(Chunk chunk, int termFrequency) {
+    }
+
+    public static class Chunk {
+
+        private final int position;
+        private final String fileName;
+        private final String text;
+        private int length;
+        private int tokens;
+
+        private Chunk(int position, String fileName, String text) {
+            this.position = position;
+            this.fileName = fileName;
+            this.text = text;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    public Bm25Index(String fileContents) {
+        this(fileContents, DEFAULT_MAX_CHUNK_CHARS);
+    }
+
+    public Bm25Index(String fileContents, int maxChunkChars) {
+        if (fileContents != null) {
+            chunk(fileContents, maxChunkChars);
+        }
+        long totalLength = 0;
+        for (Chunk chunk : chunks) {
+            List<String> terms = tokenize(chunk.text);
+            Map<String, Integer> termFrequency = new HashMap<>();
+            for (String term : terms) {
+                termFrequency.merge(term, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> entry : termFrequency.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), term -> new ArrayList<>()).add(new Posting(chunk, entry.getValue()));
+            }
+            chunk.length = terms.size();
+            chunk.tokens = TokenCounter.count(chunk.text);
+            totalLength += chunk.length;
+        }
+        averageChunkLength = chunks.isEmpty() ? 0 : (float) totalLength / chunks.size();
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    //best matching chunks for the query, at most topK of them and no more than tokenBudget tokens in total
+    public List<Chunk> search(String query, int topK, int tokenBudget, Collection<String> pinnedFileNames) {
+        List<Chunk> selected = new ArrayList<>();
+        int usedTokens = 0;
+        Set<Chunk> pinned = new HashSet<>();
+        if (pinnedFileNames != null && !pinnedFileNames.isEmpty()) {
+            for (Chunk chunk : chunks) {
+                if (pinnedFileNames.contains(chunk.fileName)) {
+                    int chunkTokens = chunk.tokens;
+                    if (tokenBudget > 0 && usedTokens + chunkTokens > tokenBudget) {
+                        break;
+                    }
+                    selected.add(chunk);
+                    pinned.add(chunk);
+                    usedTokens += chunkTokens;
+                }
+            }
+        }
+        Map<Chunk, Float> scores = new HashMap<>();
+        for (String term : new HashSet<>(tokenize(query))) {
+            List<Posting> termPostings = postings.get(term);
+            if (termPostings == null) {
+                continue;
+            }
+            int df = termPostings.size();
+            float idf = (float) Math.log(1 + (chunks.size() - df + 0.5) / (df + 0.5));
+            for (Posting posting : termPostings) {
+                if (pinned.contains(posting.chunk)) {
+                    continue;
+                }
+                int tf = posting.termFrequency;
+                float norm = K1 * (1 - B + B * posting.chunk.length / averageChunkLength);
+                scores.merge(posting.chunk, idf * tf * (K1 + 1) / (tf + norm), Float::sum);
+            }
+        }
+        List<Chunk> ranked = new ArrayList<>(scores.keySet());
+        ranked.sort(Comparator.comparing((Chunk chunk) -> scores.get(chunk)).reversed().thenComparingInt(chunk -> chunk.position));
+        int taken = 0;
+        for (Chunk chunk : ranked) {
+            if (topK > 0 && taken >= topK) {
+                break;
+            }
+            int chunkTokens = chunk.tokens;
+            if (tokenBudget > 0 && usedTokens + chunkTokens > tokenBudget) {
+                continue;
+            }
+            selected.add(chunk);
+            usedTokens += chunkTokens;
+            taken++;
+        }
+        //keep the chunks in file order so tables and paragraphs read naturally
+        selected.sort(Comparator.comparingInt(chunk -> chunk.position));
+        return selected;
+    }
+
+    public String searchAsText(String query, int topK, int tokenBudget, Collection<String> pinnedFileNames) {
+        StringBuilder out = new StringBuilder();
+        for (Chunk chunk : search(query, topK, tokenBudget, pinnedFileNames)) {
+            out.append(chunk.text).append("\n");
+        }
+        return out.toString();
+    }
+
+    //splits on anything that is not a letter or digit, and also between letters and digits so "CS375" matches "CS 375"
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() > 0) {
+                addTerms(word.toString(), terms);
+                word.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static void addTerms(String word, List<String> terms) {
+        terms.add(word);
+        int start = 0;
+        for (int i = 1; i < word.length(); i++) {
+            if (Character.isDigit(word.charAt(i)) != Character.isDigit(word.charAt(i - 1))) {
+                terms.add(word.substring(start, i));
+                start = i;
+            }
+        }
+        if (start > 0) {
+            terms.add(word.substring(start));
+        }
+    }
+
+    /*
+     * Every chunk repeats the file name and, for database dumps, the table (or view) name and column header it
+     * came from. A dump's list of repeated values is not a chunk of its own: its @n references are written back
+     * into the rows, so every chunk reads (and is scored) as if the values were written out.
+     */
+    private void chunk(String fileContents, int maxChunkChars) {
+        String fileName = "";
+        String header = "";
+        StringBuilder body = new StringBuilder();
+        boolean expectColumns = false;
+        Map<String, String> references = new HashMap<>();
+        boolean inDictionary = false;
+        for (String line : fileContents.split("\n")) {
+            if (line.startsWith("File: ")) {
+                flush(fileName, header, body);
+                fileName = line.substring(6).trim();
+                header = line + "\n";
+                references.clear();
+                inDictionary = false;
+                continue;
+            }
+            String unbraced = line.startsWith("{") ? line.substring(1) : line;
+            if (unbraced.startsWith(DelimitedTableSerializer.DICTIONARY_HEADER)) {
+                flush(fileName, header, body);
+                inDictionary = true;
+                continue;
+            }
+            if (inDictionary) {
+                if (line.isBlank()) {
+                    inDictionary = false;
+                } else {
+                    addReference(line, references);
+                }
+                continue;
+            }
+            if (unbraced.startsWith("Table: ") || unbraced.startsWith("View: ")) {
+                flush(fileName, header, body);
+                header = "File: " + fileName + "\n" + unbraced + "\n";
+                expectColumns = true;
+                continue;
+            }
+            if (expectColumns) {
+                header += line + "\n";
+                expectColumns = false;
+                continue;
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+            if (!references.isEmpty()) {
+                line = resolveReferences(line, references);
+            }
+            if (body.length() > 0 && header.length() + body.length() + line.length() > maxChunkChars) {
+                flush(fileName, header, body);
+            }
+            body.append(line).append("\n");
+        }
+        flush(fileName, header, body);
+    }
+
+    //"@3,value" (or with a tab or space, the layout's separator), the value as it is written in a row
+    private static void addReference(String line, Map<String, String> references) {
+        int separator = 1;
+        while (separator < line.length() && Character.isDigit(line.charAt(separator))) {
+            separator++;
+        }
+        if (!line.startsWith("@") || separator == 1 || separator >= line.length()) {
+            return;
+        }
+        String value = line.substring(separator + 1);
+        //the spaced layout ends every line with a space
+        if (line.charAt(separator) == ' ' && value.endsWith(" ")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        references.put(line.substring(0, separator), value);
+    }
+
+    //replaces every field that is just a reference (@3) with its value
+    static String resolveReferences(String line, Map<String, String> references) {
+        StringBuilder resolved = null;
+        int copied = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) != '@' || i > 0 && !isSeparator(line.charAt(i - 1))) {
+                continue;
+            }
+            int end = i + 1;
+            while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                end++;
+            }
+            if (end == i + 1 || end < line.length() && !isSeparator(line.charAt(end))) {
+                continue;
+            }
+            String value = references.get(line.substring(i, end));
+            if (value == null) {
+                continue;
+            }
+            if (resolved == null) {
+                resolved = new StringBuilder(line.length() + 64);
+            }
+            resolved.append(line, copied, i).append(value);
+            copied = end;
+            i = end - 1;
+        }
+        return resolved == null ? line : resolved.append(line, copied, line.length()).toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == '\t' || c == ' ';
+    }
+
+    private void flush(String fileName, String header, StringBuilder body) {
+        if (body.length() == 0) {
+            return;
+        }
+        chunks.add(new Chunk(chunks.size(), fileName, header + body));
+        body.setLength(0);
+    }
+}
@@ -0,0 +1,466 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public final class ChatCompletion {
+
+    private final String id;
+    private final String model;
+    private final long created;
+    private final String systemFingerprint;
+    private final String content;
+    private final String finishReason;
+    private final Usage usage;
+
+    //the response as received, only turned into a string or a JSONObject when someone asks for it
+    private final byte[] rawBytes;
+    private volatile String rawJson;
+
+    public record Usage(int promptTokens, int completionTokens, int totalTokens, int cachedTokens, int reasoningTokens) {
+
+        public static final Usage NONE = new Usage(0, 0, 0, 0, 0);
+
+        //for the usage object of a streamed response's last chunk
+        public static Usage fromJSON(JSONObject usage) {
+            if (usage == null) {
+                return NONE;
+            }
+            JSONObject promptDetails = usage.optJSONObject("prompt_tokens_details");
+            JSONObject completionDetails = usage.optJSONObject("completion_tokens_details");
+            return new Usage(usage.optInt("prompt_tokens"), usage.optInt("completion_tokens"), usage.optInt("total_tokens"),
+                    promptDetails != null ? promptDetails.optInt("cached_tokens") : 0, completionDetails != null ? completionDetails.optInt("reasoning_tokens") : 0);
+        }
+    }
+
+    public ChatCompletion(String id, String model, long created, String systemFingerprint, String content, String finishReason, Usage usage) {
+        this(id, model, created, systemFingerprint, content, finishReason, usage, null);
+    }
+
+    private ChatCompletion(String id, String model, long created, String systemFingerprint, String content, String finishReason, Usage usage, byte[] rawBytes) {
+        this.id = id;
+        this.model = model;
+        this.created = created;
+        this.systemFingerprint = systemFingerprint;
+        this.content = content;
+        this.finishReason = finishReason;
+        this.usage = usage == null ? Usage.NONE : usage;
+        this.rawBytes = rawBytes;
+    }
+
+    /*
+     * Parses a response body that was received whole. The body is taken as bytes rather than parsed off the wire:
+     * getRawJson() hands out the response exactly as sent, and an error status needs its body as text, so the
+     * bytes are kept either way and parsing them costs no second copy.
+     */
+    public static ChatCompletion parse(byte[] body) {
+        return new Parser(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8), Math.min(body.length + 1, Parser.BUFFER_SIZE)).parseCompletion(body);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getSystemFingerprint() {
+        return systemFingerprint;
+    }
+
+    //the first choice's message, null if the model returned none (e.g. a refusal or only tool calls)
+    public String getContent() {
+        return content;
+    }
+
+    public String getFinishReason() {
+        return finishReason;
+    }
+
+    public Usage getUsage() {
+        return usage;
+    }
+
+    //the response as sent by the server, or for a streamed response rebuilt from its fields
+    public String getRawJson() {
+        String json = rawJson;
+        if (json == null) {
+            json = rawBytes != null ? new String(rawBytes, StandardCharsets.UTF_8) : toJSONObject().toString();
+            rawJson = json;
+        }
+        return json;
+    }
+
+    public JSONObject toJSONObject() {
+        if (rawBytes != null) {
+            return new JSONObject(getRawJson());
+        }
+        JSONObject message = new JSONObject().put("role", "assistant").put("content", content == null ? JSONObject.NULL : content);
+        JSONObject choice = new JSONObject().put("index", 0).put("message", message).put("finish_reason", finishReason == null ? JSONObject.NULL : finishReason);
+        JSONObject usageJson = new JSONObject().put("prompt_tokens", usage.promptTokens).put("completion_tokens", usage.completionTokens).put("total_tokens", usage.totalTokens)
+                .put("prompt_tokens_details", new JSONObject().put("cached_tokens", usage.cachedTokens))
+                .put("completion_tokens_details", new JSONObject().put("reasoning_tokens", usage.reasoningTokens));
+        return new JSONObject().put("id", id == null ? JSONObject.NULL : id).put("object", "chat.completion").put("created", created).put("model", model == null ? JSONObject.NULL : model)
+                .put("system_fingerprint", systemFingerprint == null ? JSONObject.NULL : systemFingerprint).put("choices", new JSONArray().put(choice)).put("usage", usageJson);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatCompletion{id=" + id + ", model=" + model + ", finishReason=" + finishReason + ", " + usage + "}";
+    }
+
+    /*
+     * A pull parser that reads the response once, front to back, and keeps only the fields above. Everything
+     * else (other choices, logprobs, tool calls, unknown keys) is skipped without building strings or objects.
+     * Malformed input throws a JSONException like org.json does.
+     */
+    private static final class Parser {
+
+        private static final int BUFFER_SIZE = 8192;
+
+        private final Reader reader;
+        private final char[] buffer;
+        private int position = 0;
+        private int limit = 0;
+        private final StringBuilder scratch = new StringBuilder();
+        //true right after an object's opening brace, the first key has no comma before it
+        private boolean atObjectStart;
+
+        private Parser(Reader reader, int bufferSize) {
+            this.reader = reader;
+            this.buffer = new char[bufferSize];
+        }
+
+        private ChatCompletion parseCompletion(byte[] rawBytes) {
+            String id = null;
+            String model = null;
+            long created = 0;
+            String systemFingerprint = null;
+            String[] choice = new String[2]; //content, finish reason
+            Usage usage = Usage.NONE;
+            beginObject();
+            for (String name = nextName(); name != null; name = nextName()) {
+                switch (name) {
+                    case "id" -> id = readNullableString();
+                    case "model" -> model = readNullableString();
+                    case "created" -> created = readLong();
+                    case "system_fingerprint" -> systemFingerprint = readNullableString();
+                    case "choices" -> readChoices(choice);
+                    case "usage" -> usage = readUsage();
+                    default -> skipValue();
+                }
+            }
+            return new ChatCompletion(id, model, created, systemFingerprint, choice[0], choice[1], usage, rawBytes);
+        }
+
+        //only the first choice is kept, the engine never asks for more than one
+        private void readChoices(String[] choice) {
+            if (readNull()) {
+                return;
+            }
+            expect('[');
+            boolean first = true;
+            for (boolean firstElement = true; hasNextElement(firstElement); firstElement = false) {
+                if (!first || peek() != '{') {
+                    skipValue();
+                    continue;
+                }
+                first = false;
+                beginObject();
+                for (String name = nextName(); name != null; name = nextName()) {
+                    if ("finish_reason".equals(name)) {
+                        choice[1] = readNullableString();
+                    } else if ("message".equals(name)) {
+                        if (readNull()) {
+                            continue;
+                        }
+                        beginObject();
+                        for (String field = nextName(); field != null; field = nextName()) {
+                            if ("content".equals(field)) {
+                                choice[0] = readNullableString();
+                            } else {
+                                skipValue();
+                            }
+                        }
+                    } else {
+                        skipValue();
+                    }
+                }
+            }
+        }
+
+        private Usage readUsage() {
+            if (readNull()) {
+                return Usage.NONE;
+            }
+            int promptTokens = 0;
+            int completionTokens = 0;
+            int totalTokens = 0;
+            int cachedTokens = 0;
+            int reasoningTokens = 0;
+            beginObject();
+            for (String name = nextName(); name != null; name = nextName()) {
+                switch (name) {
+                    case "prompt_tokens" -> promptTokens = (int) readLong();
+                    case "completion_tokens" -> completionTokens = (int) readLong();
+                    case "total_tokens" -> totalTokens = (int) readLong();
+                    case "prompt_tokens_details" -> cachedTokens = readDetail("cached_tokens");
+                    case "completion_tokens_details" -> reasoningTokens = readDetail("reasoning_tokens");
+                    default -> skipValue();
+                }
+            }
+            return new Usage(promptTokens, completionTokens, totalTokens, cachedTokens, reasoningTokens);
+        }
+
+        private int readDetail(String key) {
+            if (readNull()) {
+                return 0;
+            }
+            int value = 0;
+            beginObject();
+            for (String name = nextName(); name != null; name = nextName()) {
+                if (key.equals(name)) {
+                    value = (int) readLong();
+                } else {
+                    skipValue();
+                }
+            }
+            return value;
+        }
+
+        private void beginObject() {
+            expect('{');
+            atObjectStart = true;
+        }
+
+        //the next key of the current object, or null once its closing brace has been read
+        private String nextName() {
+            int c = peek();
+            if (c == -1) {
+                throw new JSONException("Unexpected end of the response");
+            }
+            if (c == '}') {
+                position++;
+                atObjectStart = false;
+                return null;
+            }
+            if (!atObjectStart) {
+                expect(',');
+            }
+            atObjectStart = false;
+            String name = readString();
+            expect(':');
+            return name;
+        }
+
+        //whether the current array has another element, consuming the comma before it or the closing bracket
+        private boolean hasNextElement(boolean firstElement) {
+            int c = peek();
+            if (c == -1) {
+                throw new JSONException("Unexpected end of the response");
+            }
+            if (c == ']') {
+                position++;
+                return false;
+            }
+            if (!firstElement) {
+                expect(',');
+            }
+            return true;
+        }
+
+        private boolean readNull() {
+            if (peek() != 'n') {
+                return false;
+            }
+            expectWord("null");
+            return true;
+        }
+
+        private String readNullableString() {
+            return readNull() ? null : readString();
+        }
+
+        private String readString() {
+            expect('"');
+            scratch.setLength(0);
+            while (true) {
+                int start = position;
+                //copy plain runs straight from the buffer, only escapes and buffer ends need care
+                while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                    position++;
+                }
+                scratch.append(buffer, start, position - start);
+                if (position == limit) {
+                    if (!fill()) {
+                        throw new JSONException("Unterminated string");
+                    }
+                    continue;
+                }
+                char c = buffer[position++];
+                if (c == '"') {
+                    return scratch.toString();
+                }
+                char escaped = nextChar();
+                switch (escaped) {
+                    case 'n' -> scratch.append('\n');
+                    case 't' -> scratch.append('\t');
+                    case 'r' -> scratch.append('\r');
+                    case 'b' -> scratch.append('\b');
+                    case 'f' -> scratch.append('\f');
+                    case 'u' -> {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(nextChar(), 16);
+                            if (digit < 0) {
+                                throw new JSONException("Illegal escape in string");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        scratch.append((char) code);
+                    }
+                    default -> scratch.append(escaped);
+                }
+            }
+        }
+
+        private long readLong() {
+            if (readNull()) {
+                return 0;
+            }
+            peek();
+            scratch.setLength(0);
+            while (true) {
+                if (position == limit && !fill()) {
+                    break;
+                }
+                char c = buffer[position];
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                    scratch.append(c);
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            try {
+                String number = scratch.toString();
+                return number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0 ? (long) Double.parseDouble(number) : Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw new JSONException("Expected a number but found \"" + scratch + "\"");
+            }
+        }
+
+        //skips any value, nested or not, keeping only a depth count and whether it is inside a string
+        private void skipValue() {
+            int c = peek();
+            if (c == '"') {
+                position++;
+                skipStringBody();
+                return;
+            }
+            if (c != '{' && c != '[') {
+                //number, true, false or null; something has to be there, or a missing value would loop forever
+                boolean empty = true;
+                while (true) {
+                    if (position == limit && !fill()) {
+                        break;
+                    }
+                    char next = buffer[position];
+                    if (next == ',' || next == '}' || next == ']' || next == ':' || Character.isWhitespace(next)) {
+                        break;
+                    }
+                    position++;
+                    empty = false;
+                }
+                if (empty) {
+                    throw new JSONException(c == -1 ? "Unexpected end of the response" : "Expected a value but found '" + (char) c + "'");
+                }
+                return;
+            }
+            int depth = 0;
+            do {
+                char next = nextChar();
+                if (next == '"') {
+                    skipStringBody();
+                } else if (next == '{' || next == '[') {
+                    depth++;
+                } else if (next == '}' || next == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+
+        private void skipStringBody() {
+            while (true) {
+                char c = nextChar();
+                if (c == '\\') {
+                    nextChar();
+                } else if (c == '"') {
+                    return;
+                }
+            }
+        }
+
+        private void expect(char expected) {
+            int c = peek();
+            if (c != expected) {
+                throw new JSONException("Expected '" + expected + "' but found " + (c == -1 ? "the end of the response" : "'" + (char) c + "'"));
+            }
+            position++;
+        }
+
+        private void expectWord(String word) {
+            for (int i = 0; i < word.length(); i++) {
+                if (nextChar() != word.charAt(i)) {
+                    throw new JSONException("Expected " + word);
+                }
+            }
+        }
+
+        //the next character that is not whitespace, without consuming it, -1 at the end
+        private int peek() {
+            while (true) {
+                if (position == limit && !fill()) {
+                    return -1;
+                }
+                char c = buffer[position];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+                position++;
+            }
+        }
+
+        private char nextChar() {
+            if (position == limit && !fill()) {
+                throw new JSONException("Unexpected end of the response");
+            }
+            return buffer[position++];
+        }
+
+        private boolean fill() {
+            try {
+                int read = reader.read(buffer, 0, buffer.length);
+                if (read <= 0) {
+                    return false;
+                }
+                position = 0;
+                limit = read;
+                return true;
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+        }
+    }
+}
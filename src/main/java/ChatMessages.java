@@ -0,0 +1,158 @@
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+
+public final class ChatMessages {
+
+    public record Message(String role, String content) {
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final List<Message> messages;
+    //the leading messages that stay byte-identical from turn to turn, so the provider can cache them
+    private final int prefixLength;
+    //where the messages that depend on the latest message start (after the prefix, summary and history)
+    private final int turnStart;
+    //the system message with the response length limit, -1 if it is not a message of its own
+    private final int lengthLimitIndex;
+
+    public ChatMessages(List<Message> messages, int prefixLength) {
+        this(messages, prefixLength, Math.max(prefixLength, messages.size() - 1), -1);
+    }
+
+    public ChatMessages(List<Message> messages, int prefixLength, int turnStart, int lengthLimitIndex) {
+        this.messages = Collections.unmodifiableList(new ArrayList<>(messages));
+        this.prefixLength = Math.min(prefixLength, messages.size());
+        this.turnStart = Math.max(this.prefixLength, Math.min(turnStart, messages.size()));
+        this.lengthLimitIndex = lengthLimitIndex;
+    }
+
+    public static ChatMessages ofUser(String content) {
+        return new ChatMessages(List.of(new Message("user", content)), 0);
+    }
+
+    //turns "User: ..." / "You: ..." chat cache entries into user and assistant messages
+    public static List<Message> fromHistory(List<String> history) {
+        List<Message> messages = new ArrayList<>(history.size());
+        for (String entry : history) {
+            if (entry.startsWith("You: ")) {
+                messages.add(new Message("assistant", entry.substring(5)));
+            } else if (entry.startsWith("User: ")) {
+                messages.add(new Message("user", entry.substring(6)));
+            } else {
+                messages.add(new Message("user", entry));
+            }
+        }
+        return messages;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public int getTurnStart() {
+        return turnStart;
+    }
+
+    public int getLengthLimitIndex() {
+        return lengthLimitIndex;
+    }
+
+    //short hash of the cacheable prefix, the same for every request that shares it
+    public String prefixHash() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Message message : messages.subList(0, prefixLength)) {
+                digest.update(message.role.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(message.content.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    public int estimateTokens() {
+        int tokens = 0;
+        for (Message message : messages) {
+            tokens += TokenCounter.count(message.content) + 4; //role and message framing
+        }
+        return tokens;
+    }
+
+    public StringBuilder appendJson(StringBuilder out) {
+        //size the builder once for the whole history instead of doubling it through every long message
+        int length = 2;
+        for (Message message : messages) {
+            length += message.content.length() + message.role.length() + 32;
+        }
+        out.ensureCapacity(out.length() + length);
+        out.append('[');
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append("{\"role\": ");
+            appendJsonString(out, message.role);
+            out.append(", \"content\": ");
+            appendJsonString(out, message.content);
+            out.append('}');
+        }
+        return out.append(']');
+    }
+
+    public String toJson() {
+        return appendJson(new StringBuilder()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /*
+     * Escapes the text as a JSON string literal, so quotes, newlines and non-ASCII text reach the model unchanged.
+     * Every message of every request goes through here, most of it text that needs no escaping at all, so runs of
+     * safe characters are copied in bulk and the rare unicode escape is written digit by digit instead of formatted.
+     */
+    public static void appendJsonString(StringBuilder out, String text) {
+        int length = text.length();
+        out.ensureCapacity(out.length() + length + 2);
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(text, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                case '\b' -> out.append("\\b");
+                case '\f' -> out.append("\\f");
+                default -> out.append("\\u").append(HEX_DIGITS[c >> 12]).append(HEX_DIGITS[(c >> 8) & 0xf])
+                        .append(HEX_DIGITS[(c >> 4) & 0xf]).append(HEX_DIGITS[c & 0xf]);
+            }
+        }
+        out.append(text, start, length);
+        out.append('"');
+    }
+}
@@ -0,0 +1,88 @@
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class ChatResult {
+
+    private final String message;
+    private final String prompt;
+    private final String response;
+    private final String error;
+    private final Map<String, Object> responseData;
+
+    public ChatResult(String message, String prompt, String response, String error, Map<String, Object> responseData) {
+        this.message = message;
+        this.prompt = prompt;
+        this.response = response;
+        this.error = error;
+        this.responseData = responseData == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(responseData));
+    }
+
+    public static ChatResult failed(String message, String prompt, String error) {
+        return new ChatResult(message, prompt, null, error, null);
+    }
+
+    //the message as typed by the user
+    public String getMessage() {
+        return message;
+    }
+
+    //the prompt that was actually sent to the api
+    public String getPrompt() {
+        return prompt;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null && response != null;
+    }
+
+    public Map<String, Object> getResponseData() {
+        return responseData;
+    }
+
+    public String getResponseData(String key) {
+        Object value = responseData.get(key);
+        return value == null ? "No data available." : value.toString();
+    }
+
+    public long getProcessingTimeMs() {
+        Object value = responseData.get("processing_time_ms");
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    public int getTotalTokens() {
+        Object value = responseData.get("total_tokens");
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    //the parsed api response, null for cache hits and failed calls
+    public ChatCompletion getCompletion() {
+        Object value = responseData.get("completion");
+        return value instanceof ChatCompletion ? (ChatCompletion) value : null;
+    }
+
+    public ChatResult withResponse(String newResponse) {
+        return new ChatResult(message, prompt, newResponse, error, responseData);
+    }
+
+    //the same result with more response data, e.g. the model route it took
+    public ChatResult withResponseData(Map<String, Object> moreData) {
+        Map<String, Object> data = new HashMap<>(responseData);
+        data.putAll(moreData);
+        return new ChatResult(message, prompt, response, error, data);
+    }
+
+    @Override
+    public String toString() {
+        return isSuccessful() ? response : "Error: " + error;
+    }
+}
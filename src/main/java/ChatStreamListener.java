@@ -0,0 +1,14 @@
+
+public interface ChatStreamListener {
+
+    //called for every piece of content as soon as it arrives from the server
+    void onDelta(String delta);
+
+    //called once with the full response after the stream has finished
+    default void onComplete(String response) {
+    }
+
+    //called instead of onComplete if the stream could not be read
+    default void onError(String error) {
+    }
+}
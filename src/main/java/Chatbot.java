@@ -1,5 +1,11 @@
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 
 public class Chatbot {
 
@@ -10,7 +16,7 @@ public class Chatbot {
     private static float averageTimePerPrompt = 0f;
     private static int averageTokensPerPrompt = 0;
     private static int prompts = 0;
-    private static final String APIKEY = System.getenv"OPENAI_API_KEY";
+    private static final String APIKEY = System.getenv("OPENAI_API_KEY");
 
     public static void main(String[] args) {
         System.out.println();
@@ -29,6 +35,24 @@ public class Chatbot {
                 .setTimeoutFlagSeconds(10f)
                 .build();
 
+        //batch mode: java Chatbot --batch prompts.jsonl [results.jsonl] [parallelism]
+        if (args.length >= 2 && "--batch".equals(args[0])) {
+            runBatch(args);
+            return;
+        }
+
+        //load test against a local mock api: java Chatbot --load-test [sessions] [turns] [endpoints]
+        if (args.length >= 1 && "--load-test".equals(args[0])) {
+            runLoadTest(args);
+            return;
+        }
+
+        //prompt size of a database in each table format: java Chatbot --table-formats [database.db]
+        if (args.length >= 1 && "--table-formats".equals(args[0])) {
+            runTableFormatReport(new File(args.length >= 2 ? args[1] : "db/acu_database.db"));
+            return;
+        }
+
         //System.out.println(assistantAcademicAdvisor.getFileContents());
         //example prompts
         prompt = "What College, Department, and Major am I in?";
@@ -68,19 +92,100 @@ public class Chatbot {
             System.out.println();
             System.out.println("-------------------------");
             System.out.println();
-            System.out.println(assistantAcademicAdvisor.chatGPT(prompt, true));
-            float time = Float.parseFloat(assistantAcademicAdvisor.getResponseData("processing_time_ms")) / 1000f;
-            totalTime += time;
-            totalTokens += Integer.parseInt(assistantAcademicAdvisor.getResponseData("total_tokens"));
+            ChatResult result = assistantAcademicAdvisor.chatGPTAsync(prompt, true).join();
+            System.out.println(result.isSuccessful() ? result.getResponse() : result.getError());
+            totalTime += result.getProcessingTimeMs() / 1000f;
+            totalTokens += result.getTotalTokens();
             System.out.println();
             System.out.println("-------------------------");
             System.out.println();
             prompts++;
-        } catch (NumberFormatException e) {
+        } catch (CompletionException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    //runs every prompt of a JSONL file concurrently and writes one result line per prompt
+    private static void runBatch(String[] args) {
+        Path input = Path.of(args[1]);
+        Path output = Path.of(args.length >= 3 ? args[2] : "batch_results.jsonl");
+        int parallelism = args.length >= 4 ? Integer.parseInt(args[3]) : BatchEvaluator.DEFAULT_PARALLELISM;
+        try {
+            BatchEvaluator.BatchReport report = new BatchEvaluator(assistantAcademicAdvisor, parallelism).run(input, output);
+            System.out.println(report);
+            System.out.println("Results written to " + output);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static void runTableFormatReport(File database) {
+        List<TableSerializer> serializers = new ArrayList<>();
+        for (String name : List.of("spaced", "tsv", "csv", "csv-nonull", "csv-dict-nonull", "csv-dict-nonull-views")) {
+            serializers.add(TableSerializer.forName(name));
+        }
+        try {
+            List<TableSerializer.FormatTokens> report = TableSerializer.tokenReport(database, serializers);
+            int baseline = report.get(0).tokens();
+            for (TableSerializer.FormatTokens format : report) {
+                System.out.printf("%-22s %7d tokens %8d chars %6.1f%%%n", format.name(), format.tokens(), format.characters(), 100.0 * format.tokens() / baseline);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    //points the assistant at a MockOpenAiServer, so no api quota is used, and drives it with concurrent sessions
+    private static void runLoadTest(String[] args) {
+        int sessions = args.length >= 2 ? Integer.parseInt(args[1]) : 50;
+        int turns = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+        int endpoints = args.length >= 4 ? Integer.parseInt(args[3]) : 1;
+        if (endpoints > 1) {
+            runPooledLoadTest(sessions, turns, endpoints);
+            return;
+        }
+        try (MockOpenAiServer mock = new MockOpenAiServer(0).start()) {
+            mock.setLatencyMillis(300, 1500);
+            mock.setRateLimitRate(0.01, 500);
+            mock.setErrorRate(0.01);
+            assistantAcademicAdvisor.setBaseUrl(mock.getBaseUrl());
+            if (assistantAcademicAdvisor.getAPIKey() == null) {
+                assistantAcademicAdvisor.setAPIKey("mock-key");
+            }
+            LoadGenerator.LoadReport report = new LoadGenerator(assistantAcademicAdvisor).run(sessions, turns);
+            System.out.println(report);
+            System.out.println(mock);
+        } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
 
+    //the same load spread over several mock endpoints, the first of which is slow and keeps failing
+    private static void runPooledLoadTest(int sessions, int turns, int endpoints) {
+        MockOpenAiServer[] mocks = new MockOpenAiServer[endpoints];
+        try {
+            EndpointPool pool = new EndpointPool(EndpointPool.Balancing.LATENCY_AWARE);
+            for (int i = 0; i < endpoints; i++) {
+                mocks[i] = new MockOpenAiServer(0).start();
+                mocks[i].setLatencyMillis(i == 0 ? 900 : 300, i == 0 ? 4000 : 1500);
+                mocks[i].setErrorRate(i == 0 ? 0.3 : 0.01);
+                pool.add("mock-" + i, mocks[i].getBaseUrl(), "mock-key-" + i, 1);
+            }
+            assistantAcademicAdvisor.setEndpointPool(pool);
+            LoadGenerator.LoadReport report = new LoadGenerator(assistantAcademicAdvisor).run(sessions, turns);
+            System.out.println(report);
+            System.out.println(pool);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        } finally {
+            for (MockOpenAiServer mock : mocks) {
+                if (mock != null) {
+                    mock.close();
+                }
+            }
+        }
+    }
+
     private static void outputFinals() {
         try {
             System.out.println("Total time: " + totalTime + " seconds");
@@ -114,10 +219,15 @@ public class Chatbot {
                 break;
             }
             System.out.println("-------------------------");
-            System.out.println(assistantAcademicAdvisor.chatGPT(input, true));
+            try {
+                ChatResult result = assistantAcademicAdvisor.chatGPTAsync(input, true).join();
+                System.out.println(result.isSuccessful() ? result.getResponse() : result.getError());
+                floatSeconds += result.getProcessingTimeMs() / 1000f;
+                intTokens += result.getTotalTokens();
+            } catch (CompletionException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
             System.out.println("-------------------------");
-            floatSeconds += Float.parseFloat(assistantAcademicAdvisor.getResponseData("processing_time_ms")) / 1000f;
-            intTokens += Integer.parseInt(assistantAcademicAdvisor.getResponseData("total_tokens"));
         }
     }
 }
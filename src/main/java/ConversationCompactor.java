@@ -0,0 +1,172 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class ConversationCompactor {
+
+    public static final int DEFAULT_WINDOW_ENTRIES = 8;
+    public static final int DEFAULT_THRESHOLD_TOKENS = 1500;
+    public static final int SUMMARY_MAX_WORDS = 250;
+
+    private final List<String> history;
+    private volatile String summary;
+    private int generation; //bumped by reset so a summary of a cleared history is thrown away
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong failedCompactions = new AtomicLong();
+    private final AtomicLong compactedEntries = new AtomicLong();
+    private volatile Consumer<String> summaryListener;
+
+    public ConversationCompactor(List<String> history) {
+        this.history = history;
+    }
+
+    //picks up a summary saved before, e.g. by a conversation store
+    public ConversationCompactor(List<String> history, String summary) {
+        this.history = history;
+        this.summary = summary;
+    }
+
+    //told every new summary (null after a reset), under the history's lock so it sees them in order
+    public void setSummaryListener(Consumer<String> summaryListener) {
+        this.summaryListener = summaryListener;
+    }
+
+    public List<String> getHistory() {
+        return history;
+    }
+
+    //summary of every turn that has been compacted out of the history, null until the first compaction
+    public String getSummary() {
+        return summary;
+    }
+
+    public boolean isCompacting() {
+        return compacting.get();
+    }
+
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    public long getFailedCompactionCount() {
+        return failedCompactions.get();
+    }
+
+    public long getCompactedEntryCount() {
+        return compactedEntries.get();
+    }
+
+    public void reset() {
+        synchronized (history) {
+            generation++;
+            summary = null;
+            summaryChanged();
+        }
+    }
+
+    public void setSummary(String summary) {
+        synchronized (history) {
+            generation++;
+            this.summary = summary;
+            summaryChanged();
+        }
+    }
+
+    private void summaryChanged() {
+        Consumer<String> listener = summaryListener;
+        if (listener != null) {
+            listener.accept(summary);
+        }
+    }
+
+    /*
+     * Once the turns older than the last windowEntries entries are worth more than thresholdTokens, asks the
+     * summarizer to fold them into the running summary. This returns immediately: the history is only shortened
+     * when the summary arrives, and until then the prompt keeps sending those turns verbatim. At most one
+     * compaction runs at a time; a failed one is retried after the next turn.
+     */
+    public boolean maybeCompact(int windowEntries, int thresholdTokens, Function<String, CompletableFuture<String>> summarizer) {
+        List<String> older;
+        String previousSummary;
+        int startGeneration;
+        synchronized (history) {
+            int olderCount = history.size() - Math.max(0, windowEntries);
+            olderCount -= olderCount % 2; //whole user/assistant pairs only
+            if (olderCount <= 0) {
+                return false;
+            }
+            older = new ArrayList<>(history.subList(0, olderCount));
+            previousSummary = summary;
+            startGeneration = generation;
+        }
+        int olderTokens = 0;
+        for (String entry : older) {
+            olderTokens += TokenCounter.count(entry);
+        }
+        if (olderTokens < thresholdTokens || !compacting.compareAndSet(false, true)) {
+            return false;
+        }
+        CompletableFuture<String> request;
+        try {
+            request = summarizer.apply(buildSummaryPrompt(previousSummary, older));
+        } catch (RuntimeException e) {
+            compacting.set(false);
+            failedCompactions.incrementAndGet();
+            System.out.println("Failed to start conversation compaction: " + e.getMessage());
+            return false;
+        }
+        request.whenComplete((newSummary, error) -> {
+            try {
+                if (error != null || newSummary == null || newSummary.isBlank()) {
+                    failedCompactions.incrementAndGet();
+                    System.out.println("Conversation compaction failed: " + (error != null ? error.getMessage() : "empty summary"));
+                    return;
+                }
+                applySummary(newSummary.trim(), older, startGeneration);
+            } finally {
+                compacting.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void applySummary(String newSummary, List<String> older, int startGeneration) {
+        synchronized (history) {
+            if (generation != startGeneration) {
+                return;
+            }
+            //something else (e.g. a session's hard cap) may have dropped some of the oldest entries meanwhile
+            for (int skipped = 0; skipped <= older.size(); skipped++) {
+                int remaining = older.size() - skipped;
+                if (history.size() >= remaining && history.subList(0, remaining).equals(older.subList(skipped, older.size()))) {
+                    //a stored history saves the shorter history and its summary in one transaction
+                    ConversationStore.atomically(history, () -> {
+                        history.subList(0, remaining).clear();
+                        summary = newSummary;
+                        summaryChanged();
+                    });
+                    compactions.incrementAndGet();
+                    compactedEntries.addAndGet(older.size());
+                    return;
+                }
+            }
+        }
+    }
+
+    static String buildSummaryPrompt(String previousSummary, List<String> entries) {
+        StringBuilder prompt = new StringBuilder("Summarize the conversation below between a user and an assistant so the assistant can continue it without the full transcript.");
+        prompt.append(" Keep names, numbers, decisions, the user's goals and preferences, and any open questions. Leave out greetings and small talk.");
+        prompt.append(" Write plain text in under ").append(SUMMARY_MAX_WORDS).append(" words and reply with the summary only.");
+        if (previousSummary != null) {
+            prompt.append(" This is the summary of the conversation before these turns, fold it into the new summary: [ ").append(previousSummary).append(" ]");
+        }
+        prompt.append(" These are the turns to summarize: [ ").append(entries).append(" ]");
+        return prompt.toString();
+    }
+}
@@ -0,0 +1,616 @@
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps conversations (the "User: ..." / "You: ..." entries of a chat cache, plus its compaction summary) in a
+ * SQLite database, so a restarted or redeployed process picks every conversation up where it was without sending
+ * anything to the api again.
+ *
+ * Writes are behind: changing a conversation only changes it in memory and queues the change, and a single
+ * writer thread commits whatever has queued up in one transaction (WAL mode, so readers, including another
+ * process during a rolling deploy, are never blocked). Conversations are loaded on first use and the most
+ * recently used ones stay in memory; one that is still referenced somewhere is never loaded a second time.
+ */
+public final class ConversationStore implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CACHED_CONVERSATIONS = 1000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final File file;
+    private final Connection writeConnection;
+    private final Connection readConnection;
+    private final int maxCachedConversations;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+
+    //most recently used conversations, access ordered
+    private final LinkedHashMap<String, Conversation> cache;
+    //every conversation handed out that is still referenced, so there is only ever one copy of each
+    private final Map<String, WeakReference<Conversation>> live = new HashMap<>();
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    private enum Kind {
+        INSERT, UPDATE, DELETE_RANGE, DELETE_ALL, SUMMARY, GROUP, FLUSH
+    }
+
+    //one queued change; seq and toSeq are entry sequence numbers within the conversation, a GROUP's parts are committed together
+    private record Write(Kind kind, String conversationId, long seq, long toSeq, String text, CompletableFuture<Void> flushed, List<Write> parts) {
+
+        private Write(Kind kind, String conversationId, long seq, long toSeq, String text) {
+            this(kind, conversationId, seq, toSeq, text, null, null);
+        }
+    }
+
+    public ConversationStore(File file) throws SQLException {
+        this(file, DEFAULT_MAX_CACHED_CONVERSATIONS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    //maxDelayMillis is how long the writer waits for more changes to join a transaction that isn't full yet
+    public ConversationStore(File file, int maxCachedConversations, int maxBatchSize, long maxDelayMillis) throws SQLException {
+        this.file = file;
+        this.maxCachedConversations = maxCachedConversations;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBC Driver not found. Ensure the SQLite JDBC driver is included in your project dependencies.", e);
+        }
+        this.writeConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try {
+            try (Statement statement = writeConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("PRAGMA busy_timeout=5000");
+                statement.execute("CREATE TABLE IF NOT EXISTS conversation_entry (conversation_id TEXT NOT NULL, seq INTEGER NOT NULL, entry TEXT NOT NULL, PRIMARY KEY (conversation_id, seq)) WITHOUT ROWID");
+                statement.execute("CREATE TABLE IF NOT EXISTS conversation_summary (conversation_id TEXT PRIMARY KEY, summary TEXT NOT NULL)");
+            }
+            writeConnection.setAutoCommit(false);
+            this.readConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        } catch (SQLException e) {
+            writeConnection.close();
+            throw e;
+        }
+        try (Statement statement = readConnection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout=5000");
+        }
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                return size() > ConversationStore.this.maxCachedConversations;
+            }
+        };
+        this.writer = new Thread(this::writeLoop, "conversation-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+        //queued changes are written before the jvm exits, even if nobody closes the store
+        this.shutdownHook = new Thread(this::flushQuietly, "conversation-store-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /*
+     * The conversation with this id, loaded from the database the first time it is asked for (empty if it has
+     * never been written). The list is thread safe the way Collections.synchronizedList is: single calls are
+     * atomic, and iterating or compound changes need synchronized on the list. Throws IllegalStateException if
+     * the conversation can't be read; nothing is kept then, so the next call reads it again.
+     */
+    public Conversation conversation(String conversationId) {
+        synchronized (cache) {
+            Conversation conversation = cache.get(conversationId);
+            if (conversation == null) {
+                WeakReference<Conversation> reference = live.get(conversationId);
+                conversation = reference != null ? reference.get() : null;
+            }
+            if (conversation != null) {
+                cacheHits.incrementAndGet();
+                cache.put(conversationId, conversation);
+                return conversation;
+            }
+            conversation = load(conversationId);
+            cache.put(conversationId, conversation);
+            live.values().removeIf(dead -> dead.get() == null);
+            live.put(conversationId, new WeakReference<>(conversation));
+            return conversation;
+        }
+    }
+
+    //whether anything was ever written for the conversation, without loading it
+    public boolean contains(String conversationId) {
+        flush();
+        synchronized (readConnection) {
+            try (PreparedStatement statement = readConnection.prepareStatement(
+                    "SELECT 1 FROM conversation_entry WHERE conversation_id = ? UNION ALL SELECT 1 FROM conversation_summary WHERE conversation_id = ? AND summary <> '' LIMIT 1")) {
+                statement.setString(1, conversationId);
+                statement.setString(2, conversationId);
+                try (ResultSet rows = statement.executeQuery()) {
+                    return rows.next();
+                }
+            } catch (SQLException e) {
+                System.out.println("Failed to read conversation " + conversationId + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    public void delete(String conversationId) {
+        conversation(conversationId).clearAll();
+    }
+
+    /*
+     * Runs changes to a chat history, holding its lock. For a stored conversation everything they change is
+     * committed in one transaction (see Conversation.atomically); any other list is just changed.
+     */
+    public static void atomically(List<String> history, Runnable changes) {
+        if (history instanceof Conversation conversation) {
+            conversation.atomically(changes);
+        } else {
+            synchronized (history) {
+                changes.run();
+            }
+        }
+    }
+
+    private Conversation load(String conversationId) {
+        //a change still in the queue would be missing from what is read
+        flush();
+        loads.incrementAndGet();
+        List<String> entries = new ArrayList<>();
+        List<Long> seqs = new ArrayList<>();
+        String summary = null;
+        synchronized (readConnection) {
+            try {
+                try (PreparedStatement statement = readConnection.prepareStatement("SELECT seq, entry FROM conversation_entry WHERE conversation_id = ? ORDER BY seq")) {
+                    statement.setString(1, conversationId);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        while (rows.next()) {
+                            seqs.add(rows.getLong(1));
+                            entries.add(rows.getString(2));
+                        }
+                    }
+                }
+                try (PreparedStatement statement = readConnection.prepareStatement("SELECT summary FROM conversation_summary WHERE conversation_id = ?")) {
+                    statement.setString(1, conversationId);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        if (rows.next()) {
+                            summary = rows.getString(1);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                //an empty conversation in its place would number new turns from 0 and overwrite the stored ones
+                throw new IllegalStateException("Failed to read conversation " + conversationId + ": " + e.getMessage(), e);
+            }
+        }
+        return new Conversation(this, conversationId, entries, seqs, summary);
+    }
+
+    private void enqueue(Write write) {
+        if (closed) {
+            System.out.println("Conversation store is closed, change to " + write.conversationId + " not saved.");
+            return;
+        }
+        queue.add(write);
+    }
+
+    //waits until every change queued so far is committed
+    public void flush() {
+        if (closed || Thread.currentThread() == writer) {
+            return;
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        queue.add(new Write(Kind.FLUSH, null, 0, 0, null, flushed, null));
+        try {
+            flushed.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("Failed to flush the conversation store: " + e.getMessage());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            //the jvm is going down anyway
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>(maxBatchSize);
+        while (true) {
+            try {
+                Write first = queue.take();
+                batch.add(first);
+                //give changes that arrive right behind this one a moment to share its transaction
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < maxBatchSize && first.kind != Kind.FLUSH) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    if (next.kind == Kind.FLUSH) {
+                        break;
+                    }
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+                writeBatch(batch);
+                return;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Write> batch) {
+        for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+            try {
+                commit(batch);
+                break;
+            } catch (SQLException e) {
+                try {
+                    writeConnection.rollback();
+                } catch (SQLException ignored) {
+                    //the next attempt starts a new transaction anyway
+                }
+                if (attempt == MAX_WRITE_ATTEMPTS) {
+                    failedWrites.addAndGet(batch.size());
+                    System.out.println("Failed to save " + batch.size() + " conversation changes: " + e.getMessage());
+                } else {
+                    try {
+                        Thread.sleep(100L * attempt);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        for (Write write : batch) {
+            if (write.flushed != null) {
+                write.flushed.complete(null);
+            }
+        }
+    }
+
+    //one transaction; consecutive changes of the same kind go to the database as one jdbc batch
+    private void commit(List<Write> batch) throws SQLException {
+        List<Write> changesInOrder = new ArrayList<>(batch.size());
+        for (Write write : batch) {
+            if (write.kind == Kind.GROUP) {
+                changesInOrder.addAll(write.parts);
+            } else if (write.kind != Kind.FLUSH) {
+                changesInOrder.add(write);
+            }
+        }
+        Map<Kind, PreparedStatement> statements = new HashMap<>();
+        try {
+            PreparedStatement pending = null;
+            int changes = 0;
+            for (Write write : changesInOrder) {
+                PreparedStatement statement = statements.get(write.kind);
+                if (statement == null) {
+                    statement = writeConnection.prepareStatement(sqlFor(write.kind));
+                    statements.put(write.kind, statement);
+                }
+                if (pending != null && pending != statement) {
+                    pending.executeBatch();
+                }
+                bind(statement, write);
+                statement.addBatch();
+                pending = statement;
+                changes++;
+            }
+            if (pending != null) {
+                pending.executeBatch();
+            }
+            if (changes > 0) {
+                writeConnection.commit();
+                transactions.incrementAndGet();
+                writes.addAndGet(changes);
+            }
+        } finally {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+    }
+
+    private static String sqlFor(Kind kind) {
+        return switch (kind) {
+            //a clash means the sequence numbers went wrong, better a failed write than a lost turn
+            case INSERT -> "INSERT INTO conversation_entry (conversation_id, seq, entry) VALUES (?, ?, ?)";
+            case UPDATE -> "UPDATE conversation_entry SET entry = ? WHERE conversation_id = ? AND seq = ?";
+            case DELETE_RANGE -> "DELETE FROM conversation_entry WHERE conversation_id = ? AND seq BETWEEN ? AND ?";
+            case DELETE_ALL -> "DELETE FROM conversation_entry WHERE conversation_id = ?";
+            case SUMMARY -> "INSERT OR REPLACE INTO conversation_summary (conversation_id, summary) VALUES (?, ?)";
+            case GROUP, FLUSH -> throw new IllegalArgumentException("Nothing to write for a " + kind + ".");
+        };
+    }
+
+    private static void bind(PreparedStatement statement, Write write) throws SQLException {
+        switch (write.kind) {
+            case INSERT -> {
+                statement.setString(1, write.conversationId);
+                statement.setLong(2, write.seq);
+                statement.setString(3, write.text);
+            }
+            case UPDATE -> {
+                statement.setString(1, write.text);
+                statement.setString(2, write.conversationId);
+                statement.setLong(3, write.seq);
+            }
+            case DELETE_RANGE -> {
+                statement.setString(1, write.conversationId);
+                statement.setLong(2, write.seq);
+                statement.setLong(3, write.toSeq);
+            }
+            case DELETE_ALL -> statement.setString(1, write.conversationId);
+            case SUMMARY -> {
+                statement.setString(1, write.conversationId);
+                //an empty summary stands for none, which keeps this a single statement
+                statement.setString(2, write.text == null ? "" : write.text);
+            }
+            default -> {
+            }
+        }
+    }
+
+    public int getPendingWrites() {
+        return queue.size();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    public int getCachedConversationCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConversationStore{" + file + ", cached=" + getCachedConversationCount() + ", loads=" + getLoads() + ", cacheHits=" + getCacheHits() + ", writes=" + getWrites()
+                + ", transactions=" + getTransactions() + ", pending=" + getPendingWrites() + ", failed=" + getFailedWrites() + "}";
+    }
+
+    //writes everything still queued, then closes the database
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            //already shutting down
+        }
+        try {
+            writeConnection.close();
+            synchronized (readConnection) {
+                readConnection.close();
+            }
+        } catch (SQLException e) {
+            System.out.println("Failed to close the conversation store: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A conversation's entries, in memory, with every change also queued for the database. Each entry keeps the
+     * sequence number it was stored under, so dropping the oldest entries (history trimming, compaction) is one
+     * range delete and appending is one insert; only inserting in the middle rewrites the whole conversation.
+     */
+    public static final class Conversation extends AbstractList<String> implements RandomAccess {
+
+        private final ConversationStore store;
+        private final String id;
+        private final ArrayList<String> entries;
+        private final ArrayList<Long> seqs;
+        private long nextSeq;
+        private String summary;
+        //changes collected by atomically, null outside of it
+        private List<Write> group;
+
+        private Conversation(ConversationStore store, String id, List<String> entries, List<Long> seqs, String summary) {
+            this.store = store;
+            this.id = id;
+            this.entries = new ArrayList<>(entries);
+            this.seqs = new ArrayList<>(seqs);
+            this.nextSeq = seqs.isEmpty() ? 0 : seqs.get(seqs.size() - 1) + 1;
+            this.summary = summary == null || summary.isEmpty() ? null : summary;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /*
+         * Runs changes (to the entries, the summary or both) that have to reach the database together, e.g.
+         * replacing every entry, or dropping compacted turns along with saving their summary. They are queued as
+         * one write, so the writer commits all of them in the same transaction or none of them.
+         */
+        public synchronized void atomically(Runnable changes) {
+            if (group != null) {
+                changes.run();
+                return;
+            }
+            group = new ArrayList<>();
+            try {
+                changes.run();
+            } finally {
+                List<Write> writes = group;
+                group = null;
+                if (writes.size() == 1) {
+                    store.enqueue(writes.get(0));
+                } else if (!writes.isEmpty()) {
+                    store.enqueue(new Write(Kind.GROUP, id, 0, 0, null, null, writes));
+                }
+            }
+        }
+
+        private void write(Write write) {
+            if (group != null) {
+                group.add(write);
+            } else {
+                store.enqueue(write);
+            }
+        }
+
+        public synchronized String getSummary() {
+            return summary;
+        }
+
+        public synchronized void setSummary(String summary) {
+            this.summary = summary;
+            write(new Write(Kind.SUMMARY, id, 0, 0, summary));
+        }
+
+        @Override
+        public synchronized String get(int index) {
+            return entries.get(index);
+        }
+
+        @Override
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        @Override
+        public synchronized String set(int index, String entry) {
+            String previous = entries.set(index, entry);
+            write(new Write(Kind.UPDATE, id, seqs.get(index), 0, entry));
+            return previous;
+        }
+
+        @Override
+        public synchronized void add(int index, String entry) {
+            if (index == entries.size()) {
+                long seq = nextSeq++;
+                entries.add(entry);
+                seqs.add(seq);
+                write(new Write(Kind.INSERT, id, seq, 0, entry));
+            } else {
+                entries.add(index, entry);
+                rewrite();
+            }
+            modCount++;
+        }
+
+        @Override
+        public synchronized String remove(int index) {
+            String removed = entries.remove(index);
+            long seq = seqs.remove(index);
+            write(new Write(Kind.DELETE_RANGE, id, seq, seq, null));
+            modCount++;
+            return removed;
+        }
+
+        //subList(from, to).clear() ends up here, so compaction deletes its turns in one statement
+        @Override
+        protected synchronized void removeRange(int fromIndex, int toIndex) {
+            if (fromIndex >= toIndex) {
+                return;
+            }
+            write(new Write(Kind.DELETE_RANGE, id, seqs.get(fromIndex), seqs.get(toIndex - 1), null));
+            entries.subList(fromIndex, toIndex).clear();
+            seqs.subList(fromIndex, toIndex).clear();
+            modCount++;
+        }
+
+        @Override
+        public synchronized void clear() {
+            entries.clear();
+            seqs.clear();
+            write(new Write(Kind.DELETE_ALL, id, 0, 0, null));
+            modCount++;
+        }
+
+        //the entries and the summary
+        public synchronized void clearAll() {
+            atomically(() -> {
+                clear();
+                setSummary(null);
+            });
+        }
+
+        //renumbers every entry after an insert in the middle
+        private void rewrite() {
+            atomically(() -> {
+                write(new Write(Kind.DELETE_ALL, id, 0, 0, null));
+                seqs.clear();
+                nextSeq = 0;
+                for (String entry : entries) {
+                    long seq = nextSeq++;
+                    seqs.add(seq);
+                    write(new Write(Kind.INSERT, id, seq, 0, entry));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,333 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Writes tables one row per line under a header line with the column names, separated by spaces (the old
+ * layout), tabs or commas. On top of the layout:
+ * - dictionary: a value repeated often enough to pay for it (a term and its start and end dates on every
+ *   section, a requirement text on every concentration) is listed once at the top and written as @n everywhere
+ * - omitNulls: a column that is null in every row is left out and other nulls are written as empty fields
+ * - views: views are written as the pre-joined rows they are, a link table that only holds the keys a written
+ *   view joins on is left out, and a view that only repeats rows of a table (or of another view) is skipped
+ */
+public class DelimitedTableSerializer implements TableSerializer {
+
+    public enum Layout {
+        SPACED, TSV, CSV
+    }
+
+    //heads the list of repeated values, one "@n<separator>value" line each, up to a blank line
+    static final String DICTIONARY_HEADER = "Values written as @n below:";
+
+    //a reference (@12) costs about two tokens, so shorter values are never worth one
+    private static final int REFERENCE_TOKENS = 2;
+    private static final int MIN_DICTIONARY_TOKENS = REFERENCE_TOKENS + 1;
+
+    private final Layout layout;
+    private final boolean dictionary;
+    private final boolean omitNulls;
+    private final boolean views;
+    private final String name;
+
+    public DelimitedTableSerializer(Layout layout, boolean dictionary, boolean omitNulls, boolean views) {
+        this.layout = layout;
+        this.dictionary = dictionary;
+        this.omitNulls = omitNulls;
+        this.views = views;
+        this.name = layout.name().toLowerCase(Locale.ROOT) + (dictionary ? "-dict" : "") + (omitNulls ? "-nonull" : "") + (views ? "-views" : "");
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public boolean getDictionary() {
+        return dictionary;
+    }
+
+    public boolean getOmitNulls() {
+        return omitNulls;
+    }
+
+    @Override
+    public boolean getViews() {
+        return views;
+    }
+
+    @Override
+    public TableSerializer withViews() {
+        return views ? this : new DelimitedTableSerializer(layout, dictionary, omitNulls, true);
+    }
+
+    @Override
+    public void write(List<Table> tables, StringBuilder out, long maxLength) {
+        List<Table> selected = select(tables);
+        List<int[]> columns = new ArrayList<>(selected.size());
+        for (Table table : selected) {
+            columns.add(keptColumns(table));
+        }
+        Map<String, String> references = dictionary ? buildDictionary(selected, columns) : Map.of();
+        if (!references.isEmpty()) {
+            out.append(DICTIONARY_HEADER).append("\n");
+            for (Map.Entry<String, String> reference : references.entrySet()) {
+                out.append(reference.getValue());
+                separator(out);
+                value(out, reference.getKey());
+                lineEnd(out);
+            }
+            out.append("\n");
+        }
+        for (int t = 0; t < selected.size(); t++) {
+            Table table = selected.get(t);
+            int[] kept = columns.get(t);
+            out.append(table.view() ? "View: " : "Table: ").append(table.name()).append("\n");
+            for (int i = 0; i < kept.length; i++) {
+                if (i > 0) {
+                    separator(out);
+                }
+                value(out, table.columns().get(kept[i]));
+            }
+            lineEnd(out);
+            int omittedRows = table.omittedRows();
+            for (List<String> row : table.rows()) {
+                if (maxLength >= 0 && out.length() >= maxLength) {
+                    omittedRows++;
+                    continue;
+                }
+                for (int i = 0; i < kept.length; i++) {
+                    if (i > 0) {
+                        separator(out);
+                    }
+                    String value = row.get(kept[i]);
+                    if (value == null) {
+                        if (!omitNulls) {
+                            out.append("null");
+                        }
+                        continue;
+                    }
+                    String reference = references.get(value);
+                    value(out, reference != null ? reference : value);
+                }
+                lineEnd(out);
+            }
+            if (omittedRows > 0) {
+                out.append("[... ").append(omittedRows).append(" more rows omitted, file size limit reached ...]\n");
+            }
+            out.append("\n");
+        }
+    }
+
+    private List<Table> select(List<Table> tables) {
+        List<Table> plainTables = new ArrayList<>();
+        for (Table table : tables) {
+            if (!table.view()) {
+                plainTables.add(table);
+            }
+        }
+        if (!views) {
+            return plainTables;
+        }
+        //views that add rows of their own
+        Set<Table> keptViews = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Table> written = new ArrayList<>(plainTables);
+        for (Table table : tables) {
+            if (table.view() && table.totalRows() > 0 && !repeatsRows(table, written)) {
+                keptViews.add(table);
+                written.add(table);
+            }
+        }
+        List<Table> selected = new ArrayList<>();
+        for (Table table : tables) {
+            if (table.view() ? keptViews.contains(table) : !isJoinedByView(table, keptViews)) {
+                selected.add(table);
+            }
+        }
+        return selected;
+    }
+
+    //only rows read in full can be compared, a view cut short by the size limit is written as far as it goes
+    private static boolean repeatsRows(Table view, List<Table> written) {
+        if (view.omittedRows() > 0) {
+            return false;
+        }
+        List<String> viewColumns = lowerCase(view.columns());
+        for (Table other : written) {
+            if (other.omittedRows() == 0 && other.rows().size() >= view.rows().size() && lowerCase(other.columns()).equals(viewColumns)
+                    && new HashSet<>(other.rows()).containsAll(view.rows())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //a table that holds nothing but the keys of two or more others, joined by a view with at least as many rows
+    private boolean isJoinedByView(Table table, Set<Table> keptViews) {
+        if (table.foreignKeyColumns().size() < 2) {
+            return false;
+        }
+        for (int index : keptColumns(table)) {
+            if (!table.foreignKeyColumns().contains(table.columns().get(index).toLowerCase(Locale.ROOT))) {
+                return false;
+            }
+        }
+        String name = table.name().toLowerCase(Locale.ROOT);
+        for (Table view : keptViews) {
+            if (view.sourceTables().contains(name) && view.totalRows() >= table.totalRows()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //indexes of the columns to write, all of them unless nulls are omitted and a column has nothing else
+    private int[] keptColumns(Table table) {
+        int columnCount = table.columns().size();
+        boolean[] hasValue = new boolean[columnCount];
+        if (!omitNulls || table.rows().isEmpty()) {
+            Arrays.fill(hasValue, true);
+        } else {
+            for (List<String> row : table.rows()) {
+                for (int i = 0; i < columnCount; i++) {
+                    hasValue[i] |= row.get(i) != null;
+                }
+            }
+        }
+        int count = 0;
+        for (boolean value : hasValue) {
+            count += value ? 1 : 0;
+        }
+        int[] kept = new int[count];
+        int next = 0;
+        for (int i = 0; i < columnCount; i++) {
+            if (hasValue[i]) {
+                kept[next++] = i;
+            }
+        }
+        return kept;
+    }
+
+    //value to reference, in order of first use, for the values that save more tokens than listing them costs
+    private static Map<String, String> buildDictionary(List<Table> tables, List<int[]> columns) {
+        Map<String, int[]> counts = new LinkedHashMap<>();
+        for (int t = 0; t < tables.size(); t++) {
+            for (List<String> row : tables.get(t).rows()) {
+                for (int index : columns.get(t)) {
+                    String value = row.get(index);
+                    if (value != null && value.length() > REFERENCE_TOKENS) {
+                        counts.computeIfAbsent(value, key -> new int[1])[0]++;
+                    }
+                }
+            }
+        }
+        Map<String, String> references = new LinkedHashMap<>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            int uses = entry.getValue()[0];
+            if (uses < 2) {
+                continue;
+            }
+            int valueTokens = TokenCounter.count(entry.getKey());
+            if (valueTokens < MIN_DICTIONARY_TOKENS) {
+                continue;
+            }
+            //the listing costs the value once plus a reference and a line, every use costs a reference
+            if ((long) uses * valueTokens > valueTokens + (long) (uses + 1) * REFERENCE_TOKENS + 1) {
+                references.put(entry.getKey(), "@" + (references.size() + 1));
+            }
+        }
+        return references;
+    }
+
+    private void separator(StringBuilder out) {
+        switch (layout) {
+            case SPACED -> out.append(' ');
+            case TSV -> out.append('\t');
+            case CSV -> out.append(',');
+        }
+    }
+
+    private void lineEnd(StringBuilder out) {
+        //the old layout ends every value, the last one too, with a space
+        if (layout == Layout.SPACED) {
+            out.append(' ');
+        }
+        out.append('\n');
+    }
+
+    private void value(StringBuilder out, String value) {
+        switch (layout) {
+            case SPACED -> out.append(value);
+            case TSV -> appendTsv(out, value);
+            case CSV -> appendCsv(out, value);
+        }
+    }
+
+    //tabs, line breaks and backslashes are escaped so every row stays on one line
+    private static void appendTsv(StringBuilder out, String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escape = switch (c) {
+                case '\t' -> "\\t";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                case '\\' -> "\\\\";
+                default -> null;
+            };
+            if (escape != null) {
+                out.append(value, start, i).append(escape);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, length);
+    }
+
+    //quoted (with quotes doubled) only when the value has a comma, a quote or a line break
+    private static void appendCsv(StringBuilder out, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                out.append(value, start, i + 1).append('"');
+                start = i + 1;
+            }
+        }
+        out.append(value, start, value.length()).append('"');
+    }
+
+    private static List<String> lowerCase(List<String> values) {
+        List<String> lowered = new ArrayList<>(values.size());
+        for (String value : values) {
+            lowered.add(value.toLowerCase(Locale.ROOT));
+        }
+        return lowered;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,429 @@
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Several base urls and api keys behind one engine. Every call goes to the endpoint with the best score: the
+ * fewest requests in flight for its weight, or, latency-aware, in-flight requests times the recent latency. An
+ * endpoint that doesn't answer, answers with server errors or whose key is rejected or out of quota is taken
+ * out of rotation (its circuit opens) and the call fails over to the next endpoint; after a cooldown one probe
+ * request is let through and its success closes the circuit again. Health is judged only from real traffic.
+ *
+ * Each endpoint has the shared rate limiter of its api key, so keys are throttled independently.
+ */
+public class EndpointPool {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+    private static final double LATENCY_DECAY = 0.2; //weight of the newest latency in the moving average
+
+    //every failover attempt gets one try, the last endpoint left gets the full retry policy
+    private static final RetryPolicy NO_RETRIES = new RetryPolicy(0);
+
+    public enum Balancing {
+        LEAST_OUTSTANDING, LATENCY_AWARE
+    }
+
+    private enum Circuit {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    //what a call got when it claimed an endpoint: a place in rotation, or the single probe of an open circuit
+    private enum Claim {
+        REQUEST, PROBE
+    }
+
+    public static final class Endpoint {
+        private final String name;
+        private final String baseUrl;
+        private final String apiKey;
+        private final int weight;
+        private final RateLimiter limiter;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong failovers = new AtomicLong();
+        private final AtomicLong circuitOpenings = new AtomicLong();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile double averageLatencyMillis = -1; //exponentially weighted, -1 until the first success
+        private Circuit circuit = Circuit.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openUntilMillis = 0;
+
+        private Endpoint(String name, String baseUrl, String apiKey, int weight) {
+            this.name = name;
+            this.baseUrl = baseUrl.replaceAll("/+$", "");
+            this.apiKey = apiKey;
+            this.weight = Math.max(1, weight);
+            this.limiter = RateLimiter.forApiKey(apiKey);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public RateLimiter getRateLimiter() {
+            return limiter;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        //calls that gave up on this endpoint and went on to another one
+        public long getFailovers() {
+            return failovers.get();
+        }
+
+        public long getCircuitOpenings() {
+            return circuitOpenings.get();
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public double getAverageLatencyMillis() {
+            return averageLatencyMillis;
+        }
+
+        public synchronized boolean isHealthy() {
+            return circuit == Circuit.CLOSED;
+        }
+
+        public synchronized String getCircuitState() {
+            return circuit.name().toLowerCase(Locale.ROOT);
+        }
+
+        //closed circuits take anything, an open one only a single probe once its cooldown is over
+        private synchronized boolean isAvailable(long now) {
+            if (circuit == Circuit.CLOSED) {
+                return true;
+            }
+            return now >= openUntilMillis && !probing.get();
+        }
+
+        /*
+         * Claims the endpoint for a call, null if it can't be had. Taking the probe and going half open happen in
+         * one step, so of two calls that both saw the cooldown over only one gets it; ignoreCircuit lets a call
+         * through anyway when every endpoint is out of rotation.
+         */
+        private synchronized Claim claim(long now, boolean ignoreCircuit) {
+            Claim claim;
+            if (circuit == Circuit.CLOSED) {
+                claim = Claim.REQUEST;
+            } else if (now >= openUntilMillis && probing.compareAndSet(false, true)) {
+                circuit = Circuit.HALF_OPEN;
+                claim = Claim.PROBE;
+            } else if (ignoreCircuit) {
+                claim = Claim.REQUEST;
+            } else {
+                return null;
+            }
+            outstanding.incrementAndGet();
+            requests.incrementAndGet();
+            return claim;
+        }
+
+        //only the probe itself gives the probe back, a call that went out before the circuit opened doesn't
+        private void finished(Claim claim) {
+            if (claim == Claim.PROBE) {
+                probing.set(false);
+            }
+        }
+
+        private synchronized void succeeded(Claim claim, long latencyNanos) {
+            outstanding.decrementAndGet();
+            consecutiveFailures = 0;
+            circuit = Circuit.CLOSED;
+            finished(claim);
+            latencies.recordNanos(latencyNanos);
+            double millis = latencyNanos / 1e6;
+            averageLatencyMillis = averageLatencyMillis < 0 ? millis : averageLatencyMillis + LATENCY_DECAY * (millis - averageLatencyMillis);
+        }
+
+        //openForMillis > 0 opens the circuit right away (a 429 or a rejected key), otherwise only after threshold failures in a row
+        private synchronized void failed(Claim claim, int failureThreshold, long openMillis, long openForMillis) {
+            outstanding.decrementAndGet();
+            failures.incrementAndGet();
+            consecutiveFailures++;
+            finished(claim);
+            if (openForMillis > 0 || circuit == Circuit.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                if (circuit != Circuit.OPEN) {
+                    circuitOpenings.incrementAndGet();
+                }
+                circuit = Circuit.OPEN;
+                openUntilMillis = System.currentTimeMillis() + (openForMillis > 0 ? openForMillis : openMillis);
+            }
+        }
+
+        //a call cancelled by its caller says nothing about the endpoint's health
+        private synchronized void abandoned(Claim claim) {
+            outstanding.decrementAndGet();
+            finished(claim);
+        }
+
+        private synchronized long getOpenUntilMillis() {
+            return openUntilMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{circuit=" + getCircuitState() + ", weight=" + weight + ", outstanding=" + getOutstanding() + ", requests=" + getRequests() + ", failures=" + getFailures()
+                    + ", failovers=" + getFailovers() + ", avgLatencyMs=" + String.format("%.1f", Math.max(0, averageLatencyMillis)) + ", p99Ms=" + latencies.getValueAtPercentile(99) / 1000 + "}";
+        }
+    }
+
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+    private volatile Balancing balancing = Balancing.LEAST_OUTSTANDING;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openMillis = DEFAULT_OPEN_MILLIS;
+    private final AtomicLong failovers = new AtomicLong();
+
+    public EndpointPool() {
+    }
+
+    public EndpointPool(Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    public EndpointPool add(String baseUrl, String apiKey, int weight) {
+        String keySuffix = apiKey != null && apiKey.length() > 4 ? apiKey.substring(apiKey.length() - 4) : "";
+        return add(baseUrl + " (..." + keySuffix + ")", baseUrl, apiKey, weight);
+    }
+
+    public EndpointPool add(String name, String baseUrl, String apiKey, int weight) {
+        endpoints.add(new Endpoint(name, baseUrl, apiKey, weight));
+        return this;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    public void setBalancing(Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    //failures in a row (server errors, dropped connections, timeouts) before an endpoint is taken out of rotation
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    //how long an endpoint stays out of rotation before a probe, unless a 429 says otherwise
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    //the endpoint a response came from, e.g. for its rate limiter, null if it is not one of the pool's
+    public Endpoint endpointFor(HttpResponse<?> response) {
+        HttpRequest request = response.request();
+        String url = request.uri().toString();
+        String authorization = request.headers().firstValue("Authorization").orElse("");
+        for (Endpoint endpoint : endpoints) {
+            if (url.startsWith(endpoint.baseUrl) && authorization.equals("Bearer " + endpoint.apiKey)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Posts the body to path on the best endpoint. A dropped connection, timeout, 429, 408, server error, 401 or
+     * 403 sends it on to the next available endpoint without a retry on the first; only the last endpoint left
+     * retries as the policy allows. Whatever that last attempt gets is the result. Cancelling the returned
+     * future cancels the attempt in progress.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(OpenAiTransport transport, String path, String body, float readTimeoutSeconds, HttpResponse.BodyHandler<T> bodyHandler,
+                                                       int estimatedTokens, RetryPolicy policy, Runnable onRetry) {
+        return send(transport, path, body, readTimeoutSeconds, bodyHandler, estimatedTokens, policy, onRetry, 0);
+    }
+
+    //timeoutMillis bounds each attempt from the moment its endpoint's limiter lets it through, see OpenAiTransport.sendWithRetry
+    public <T> CompletableFuture<HttpResponse<T>> send(OpenAiTransport transport, String path, String body, float readTimeoutSeconds, HttpResponse.BodyHandler<T> bodyHandler,
+                                                       int estimatedTokens, RetryPolicy policy, Runnable onRetry, long timeoutMillis) {
+        PooledExchange<T> exchange = new PooledExchange<>(transport, path, body, readTimeoutSeconds, bodyHandler, estimatedTokens, policy, onRetry, timeoutMillis,
+                new HashSet<>(), new CompletableFuture<>(), new AtomicReference<>());
+        attempt(exchange);
+        exchange.result.whenComplete((response, error) -> {
+            CompletableFuture<?> inProgress = exchange.current.get();
+            if (error != null && inProgress != null) {
+                inProgress.cancel(true);
+            }
+        });
+        return exchange.result;
+    }
+
+    private record PooledExchange<T>(OpenAiTransport transport, String path, String body, float readTimeoutSeconds, HttpResponse.BodyHandler<T> bodyHandler,
+                                     int estimatedTokens, RetryPolicy policy, Runnable onRetry, long timeoutMillis, Set<Endpoint> tried,
+                                     CompletableFuture<HttpResponse<T>> result, AtomicReference<CompletableFuture<?>> current) {
+    }
+
+    private <T> void attempt(PooledExchange<T> exchange) {
+        if (exchange.result.isDone()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Endpoint candidate = null;
+        Claim claim = null;
+        //an endpoint whose probe another call took in the meantime is skipped, not sent a second probe
+        Set<Endpoint> skipped = new HashSet<>(exchange.tried);
+        while (claim == null) {
+            candidate = choose(skipped, now, false);
+            if (candidate != null) {
+                claim = candidate.claim(now, false);
+                skipped.add(candidate);
+                continue;
+            }
+            //every endpoint is out of rotation: rather than failing, try the one that comes back first
+            candidate = choose(exchange.tried, now, true);
+            if (candidate == null) {
+                exchange.result.completeExceptionally(new IllegalStateException("The endpoint pool is empty."));
+                return;
+            }
+            claim = candidate.claim(now, true);
+        }
+        Endpoint endpoint = candidate;
+        Claim claimed = claim;
+        exchange.tried.add(endpoint);
+        boolean canFailOver = choose(exchange.tried, now, false) != null;
+        HttpRequest request = exchange.transport.postJson(endpoint.baseUrl + exchange.path, endpoint.apiKey, exchange.body, exchange.readTimeoutSeconds);
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> sent = exchange.transport.sendWithRetry(request, exchange.bodyHandler, endpoint.limiter, exchange.estimatedTokens,
+                canFailOver ? NO_RETRIES : exchange.policy, exchange.onRetry, exchange.timeoutMillis);
+        exchange.current.set(sent);
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof CancellationException || exchange.result.isDone()) {
+                    endpoint.abandoned(claimed);
+                    exchange.result.completeExceptionally(cause);
+                    return;
+                }
+                endpoint.failed(claimed, failureThreshold, openMillis, 0);
+                if (canFailOver && cause instanceof IOException) {
+                    failOver(exchange, endpoint);
+                } else {
+                    exchange.result.completeExceptionally(cause);
+                }
+                return;
+            }
+            int status = response.statusCode();
+            boolean rejected = status == 401 || status == 403;
+            if (!rejected && !exchange.policy.isRetryable(status)) {
+                endpoint.succeeded(claimed, System.nanoTime() - start);
+                if (!exchange.result.complete(response)) {
+                    OpenAiTransport.closeBody(response);
+                }
+                return;
+            }
+            //a key that is out of quota or refused won't do better on the next call either
+            long openFor = status == 429 ? Math.max(1, exchange.policy.delayMillis(0, response.headers())) : rejected ? openMillis : 0;
+            endpoint.failed(claimed, failureThreshold, openMillis, openFor);
+            if (canFailOver && !exchange.result.isDone()) {
+                OpenAiTransport.closeBody(response);
+                failOver(exchange, endpoint);
+            } else if (!exchange.result.complete(response)) {
+                OpenAiTransport.closeBody(response);
+            }
+        });
+    }
+
+    private <T> void failOver(PooledExchange<T> exchange, Endpoint from) {
+        from.failovers.incrementAndGet();
+        failovers.incrementAndGet();
+        attempt(exchange);
+    }
+
+    private Endpoint choose(Set<Endpoint> tried, long now, boolean ignoreCircuits) {
+        List<Endpoint> all = endpoints;
+        if (all.isEmpty()) {
+            return null;
+        }
+        Balancing mode = balancing;
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        //start at a random endpoint so ties are spread out
+        int offset = ThreadLocalRandom.current().nextInt(all.size());
+        for (int i = 0; i < all.size(); i++) {
+            Endpoint endpoint = all.get((offset + i) % all.size());
+            if (tried.contains(endpoint)) {
+                continue;
+            }
+            double score;
+            if (ignoreCircuits) {
+                score = endpoint.getOpenUntilMillis();
+            } else if (!endpoint.isAvailable(now)) {
+                continue;
+            } else if (mode == Balancing.LATENCY_AWARE) {
+                //an endpoint without a latency yet scores 0, so every endpoint gets tried early on
+                score = Math.max(0, endpoint.averageLatencyMillis) * (endpoint.getOutstanding() + 1) / endpoint.weight;
+            } else {
+                score = (endpoint.getOutstanding() + 1.0) / endpoint.weight;
+            }
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("EndpointPool{").append(balancing.name().toLowerCase(Locale.ROOT)).append(", failovers=").append(getFailovers());
+        for (Endpoint endpoint : getEndpoints()) {
+            out.append("\n  ").append(endpoint);
+        }
+        return out.append("\n}").toString();
+    }
+}
@@ -0,0 +1,294 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class FileContentCache {
+
+    //contents kept in memory per cache, counted as two bytes a char (what a string takes at most)
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    private static final FileContentCache memoryCache = new FileContentCache(null);
+    private static final Map<Path, FileContentCache> directoryCaches = new ConcurrentHashMap<>();
+    private static final String INDEX_FILE_NAME = "index.json";
+
+    //null when the cache only lives in memory
+    private final Path directory;
+
+    //path + variant -> what the file looked like when it was last extracted
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    //content hash + variant -> extracted contents, least recently used first; guarded by itself
+    private final LinkedHashMap<String, String> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private volatile long maxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private record Entry(long size, long lastModified, String hash) {
+    }
+
+    private FileContentCache(Path directory) {
+        this.directory = directory;
+        if (directory != null) {
+            loadIndex();
+        }
+    }
+
+    public static FileContentCache inMemory() {
+        return memoryCache;
+    }
+
+    public static FileContentCache forDirectory(String directory) {
+        return directoryCaches.computeIfAbsent(Path.of(directory).toAbsolutePath().normalize(), FileContentCache::new);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /*
+     * Once the contents in memory take more than this, the least recently used are dropped: a directory cache
+     * reads them back from disk, an in-memory one extracts the file again. The most recent contents are always
+     * kept, however large.
+     */
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        synchronized (blobs) {
+            evict();
+        }
+    }
+
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    //returns the cached contents for the file if it is unchanged, otherwise runs the extractor and caches its output
+    public String get(File file, String variant, Function<File, String> extractor) {
+        if (!file.isFile()) {
+            return extractor.apply(file);
+        }
+        String entryKey = file.getAbsolutePath() + "|" + variant;
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = entries.get(entryKey);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            String contents = loadBlob(entry.hash + "-" + variant);
+            if (contents != null) {
+                return contents;
+            }
+        }
+        //size or mtime changed (or first time we see this path): only re-extract if the bytes changed too
+        String hash;
+        try {
+            hash = hashFile(file);
+        } catch (IOException e) {
+            System.out.println("Failed to hash file for cache: " + e.getMessage());
+            return extractor.apply(file);
+        }
+        String blobKey = hash + "-" + variant;
+        String contents = loadBlob(blobKey);
+        if (contents == null) {
+            misses.incrementAndGet();
+            contents = extractor.apply(file);
+            putBlob(blobKey, contents);
+            writeBlob(blobKey, contents);
+        }
+        Entry previous = entries.put(entryKey, new Entry(size, lastModified, hash));
+        if (previous != null && !previous.hash.equals(hash)) {
+            dropUnreferencedBlob(previous.hash, variant);
+        }
+        writeIndex();
+        return contents;
+    }
+
+    private void putBlob(String blobKey, String contents) {
+        synchronized (blobs) {
+            String replaced = blobs.put(blobKey, contents);
+            memoryBytes += 2L * contents.length() - (replaced != null ? 2L * replaced.length() : 0);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, String>> eldest = blobs.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && blobs.size() > 1) {
+            memoryBytes -= 2L * eldest.next().getValue().length();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    //a file that changed leaves its old contents behind, they go once no other path has the same bytes
+    private void dropUnreferencedBlob(String hash, String variant) {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().hash.equals(hash) && entry.getKey().endsWith("|" + variant)) {
+                return;
+            }
+        }
+        synchronized (blobs) {
+            String removed = blobs.remove(hash + "-" + variant);
+            if (removed != null) {
+                memoryBytes -= 2L * removed.length();
+            }
+        }
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(hash + "-" + variant + ".txt"));
+        } catch (IOException e) {
+            System.out.println("Failed to delete cached file contents: " + e.getMessage());
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getMemoryBytes() {
+        synchronized (blobs) {
+            return memoryBytes;
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        synchronized (blobs) {
+            blobs.clear();
+            memoryBytes = 0;
+        }
+        if (directory == null) {
+            return;
+        }
+        try (var paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to clear file cache: " + e.getMessage());
+        }
+    }
+
+    private String loadBlob(String blobKey) {
+        String contents;
+        synchronized (blobs) {
+            contents = blobs.get(blobKey);
+        }
+        if (contents != null) {
+            memoryHits.incrementAndGet();
+            return contents;
+        }
+        if (directory == null) {
+            return null;
+        }
+        Path blobPath = directory.resolve(blobKey + ".txt");
+        if (!Files.isRegularFile(blobPath)) {
+            return null;
+        }
+        try {
+            contents = Files.readString(blobPath, StandardCharsets.UTF_8);
+            putBlob(blobKey, contents);
+            diskHits.incrementAndGet();
+            return contents;
+        } catch (IOException e) {
+            System.out.println("Failed to read cached file contents: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeBlob(String blobKey, String contents) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            writeAtomically(directory.resolve(blobKey + ".txt"), contents);
+        } catch (IOException e) {
+            System.out.println("Failed to write cached file contents: " + e.getMessage());
+        }
+    }
+
+    private synchronized void writeIndex() {
+        if (directory == null) {
+            return;
+        }
+        JSONObject index = new JSONObject();
+        entries.forEach((key, entry) -> index.put(key, new JSONObject()
+                .put("size", entry.size)
+                .put("lastModified", entry.lastModified)
+                .put("hash", entry.hash)));
+        try {
+            Files.createDirectories(directory);
+            writeAtomically(directory.resolve(INDEX_FILE_NAME), index.toString());
+        } catch (IOException e) {
+            System.out.println("Failed to write file cache index: " + e.getMessage());
+        }
+    }
+
+    private void loadIndex() {
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        if (!Files.isRegularFile(indexPath)) {
+            return;
+        }
+        try {
+            JSONObject index = new JSONObject(Files.readString(indexPath, StandardCharsets.UTF_8));
+            for (String key : index.keySet()) {
+                JSONObject entry = index.getJSONObject(key);
+                entries.put(key, new Entry(entry.getLong("size"), entry.getLong("lastModified"), entry.getString("hash")));
+            }
+        } catch (IOException | JSONException e) {
+            System.out.println("Failed to read file cache index: " + e.getMessage());
+        }
+    }
+
+    private static void writeAtomically(Path target, String contents) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        Files.writeString(temp, contents, StandardCharsets.UTF_8);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hashFile(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+public class FileIngestor {
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 2L * 1024 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 8L * 1024 * 1024;
+
+    //files bigger than this are memory mapped instead of read into a heap buffer
+    private static final long MAP_THRESHOLD_BYTES = 1024 * 1024;
+
+    private final long maxFileBytes;
+    private final long maxTotalBytes;
+    private final ForkJoinPool pool;
+
+    public record IngestedFile(File file, String contents, long fileBytes, boolean truncated, long elapsedNanos) {
+
+        @Override
+        public String toString() {
+            return file.getName() + ": " + fileBytes + " bytes -> " + contents.length() + " chars in " + (elapsedNanos / 1000000) + " ms" + (truncated ? " (truncated)" : "");
+        }
+    }
+
+    public record IngestionReport(List<IngestedFile> files, long totalFileBytes, long totalChars, boolean truncated, long elapsedNanos) {
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(files.size()).append(" files, ").append(totalFileBytes).append(" bytes -> ").append(totalChars).append(" chars in ").append(elapsedNanos / 1000000).append(" ms").append(truncated ? " (total cap reached)" : "").append("\n");
+            for (IngestedFile file : files) {
+                out.append("  ").append(file).append("\n");
+            }
+            return out.toString();
+        }
+    }
+
+    public FileIngestor() {
+        this(DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_TOTAL_BYTES, ForkJoinPool.commonPool());
+    }
+
+    public FileIngestor(long maxFileBytes, long maxTotalBytes, ForkJoinPool pool) {
+        this.maxFileBytes = maxFileBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.pool = pool;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    //runs the extractor for every file in parallel, results are returned in the original file order
+    public List<IngestedFile> ingest(List<File> files, Function<File, String> extractor) {
+        List<ForkJoinTask<IngestedFile>> tasks = new ArrayList<>();
+        for (File file : files) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                long start = System.nanoTime();
+                String contents = extractor.apply(file);
+                boolean truncated = false;
+                if (maxFileBytes > 0 && contents.length() > maxFileBytes) {
+                    contents = headAndTail(contents, (int) maxFileBytes);
+                    truncated = true;
+                }
+                return new IngestedFile(file, contents, file.length(), truncated, System.nanoTime() - start);
+            }));
+        }
+        if (tasks.size() == 1) {
+            return List.of(tasks.get(0).invoke());
+        }
+        List<IngestedFile> ingested = new ArrayList<>();
+        for (ForkJoinTask<IngestedFile> task : tasks) {
+            pool.execute(task);
+        }
+        for (ForkJoinTask<IngestedFile> task : tasks) {
+            ingested.add(task.join());
+        }
+        return ingested;
+    }
+
+    //caps the combined size by cutting the files that come last
+    public IngestionReport applyTotalCap(List<IngestedFile> files, long elapsedNanos) {
+        List<IngestedFile> capped = new ArrayList<>();
+        long remaining = maxTotalBytes > 0 ? maxTotalBytes : Long.MAX_VALUE;
+        long totalFileBytes = 0;
+        long totalChars = 0;
+        boolean truncated = false;
+        for (IngestedFile file : files) {
+            IngestedFile cappedFile = file;
+            if (file.contents.length() > remaining) {
+                String contents = remaining > 0 ? file.contents.substring(0, (int) remaining) + "\n[... remaining " + (file.contents.length() - remaining) + " characters omitted, total size limit reached ...]\n" : "[omitted, total size limit reached]\n";
+                cappedFile = new IngestedFile(file.file, contents, file.fileBytes, true, file.elapsedNanos);
+                truncated = true;
+            }
+            remaining -= Math.min(remaining, file.contents.length());
+            totalFileBytes += cappedFile.fileBytes;
+            totalChars += cappedFile.contents.length();
+            capped.add(cappedFile);
+        }
+        return new IngestionReport(capped, totalFileBytes, totalChars, truncated, elapsedNanos);
+    }
+
+    //reads a file as UTF-8 without ever holding more than the per-file cap, keeping its head and tail if it is too big
+    public String readText(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (maxFileBytes <= 0 || size <= maxFileBytes) {
+                return decode(channel, 0, size, false);
+            }
+            long headBytes = maxFileBytes * 2 / 3;
+            long tailBytes = maxFileBytes - headBytes;
+            long tailStart = size - tailBytes;
+            String head = decode(channel, 0, headBytes, true);
+            String tail = decode(channel, tailStart, size, false);
+            return head + "\n[... " + (tailStart - headBytes) + " bytes omitted ...]\n" + tail;
+        }
+    }
+
+    private static String decode(FileChannel channel, long start, long end, boolean cutAtEnd) throws IOException {
+        ByteBuffer bytes;
+        int length = (int) (end - start);
+        if (length >= MAP_THRESHOLD_BYTES) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } else {
+            bytes = ByteBuffer.allocate(length);
+            while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) != -1) {
+                //keep reading until the range is filled
+            }
+            bytes.flip();
+        }
+        //never start or stop in the middle of a multi-byte character
+        while (start > 0 && bytes.hasRemaining() && isContinuationByte(bytes.get(bytes.position()))) {
+            bytes.position(bytes.position() + 1);
+        }
+        if (cutAtEnd) {
+            int lead = bytes.limit() - 1;
+            while (lead > bytes.position() && isContinuationByte(bytes.get(lead))) {
+                lead--;
+            }
+            if (lead >= bytes.position()) {
+                int first = bytes.get(lead) & 0xFF;
+                int expected = first >= 0xF0 ? 4 : first >= 0xE0 ? 3 : first >= 0xC0 ? 2 : 1;
+                if (lead + expected > bytes.limit()) {
+                    bytes.limit(lead);
+                }
+            }
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            CharBuffer chars = decoder.decode(bytes);
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            throw new IOException("Failed to decode file as UTF-8.", e);
+        }
+    }
+
+    private static boolean isContinuationByte(byte value) {
+        return (value & 0xC0) == 0x80;
+    }
+
+    static String headAndTail(String contents, int maxChars) {
+        int head = maxChars * 2 / 3;
+        int tail = maxChars - head;
+        return contents.substring(0, head) + "\n[... " + (contents.length() - head - tail) + " characters omitted ...]\n" + contents.substring(contents.length() - tail);
+    }
+}
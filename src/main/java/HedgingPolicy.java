@@ -0,0 +1,159 @@
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+public class HedgingPolicy {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final double DEFAULT_MAX_EXTRA_RATE = 0.05;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+    private static final int WINDOW_SIZE = 256;
+
+    private final double percentile;
+    private final double maxExtraRate;
+    private final int minSamples;
+    private final long minDelayMillis;
+
+    //latencies of the most recent calls, a ring buffer
+    private final long[] window = new long[WINDOW_SIZE];
+    private int windowCount = 0;
+    private int windowNext = 0;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedgesIssued = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesSkipped = new AtomicLong();
+
+    public HedgingPolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MAX_EXTRA_RATE, DEFAULT_MIN_SAMPLES, 0);
+    }
+
+    //percentile of recent latencies to wait before hedging, and the most extra requests allowed as a share of calls
+    public HedgingPolicy(double percentile, double maxExtraRate) {
+        this(percentile, maxExtraRate, DEFAULT_MIN_SAMPLES, 0);
+    }
+
+    public HedgingPolicy(double percentile, double maxExtraRate, int minSamples, long minDelayMillis) {
+        this.percentile = percentile;
+        this.maxExtraRate = maxExtraRate;
+        this.minSamples = minSamples;
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /*
+     * Starts the call, and if it has not succeeded once the configured percentile of recent latencies has passed,
+     * starts the same call again. Whichever succeeds first wins and the other is cancelled; if one fails the
+     * other still gets its chance. No hedge is sent until minSamples latencies are known, or when hedges already
+     * make up maxExtraRate of all calls.
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> attempt, Predicate<T> succeeded) {
+        calls.incrementAndGet();
+        long start = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<T> primary = attempt.get();
+        CompletableFuture<?>[] hedge = new CompletableFuture<?>[1];
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicBoolean hedgeStarted = new AtomicBoolean();
+        race(primary, false, result, pending, succeeded, start);
+        long delay = getHedgeDelayMillis();
+        if (delay >= 0) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                if (result.isDone() || !hedgeStarted.compareAndSet(false, true)) {
+                    return;
+                }
+                if (hedgesIssued.get() + 1 > maxExtraRate * calls.get()) {
+                    hedgesSkipped.incrementAndGet();
+                    return;
+                }
+                hedgesIssued.incrementAndGet();
+                pending.incrementAndGet();
+                CompletableFuture<T> second = attempt.get();
+                synchronized (hedge) {
+                    hedge[0] = second;
+                }
+                race(second, true, result, pending, succeeded, start);
+                if (result.isDone()) {
+                    second.cancel(true);
+                }
+            });
+        }
+        //the loser (or both, if the caller gave up) is cancelled so its http exchange is aborted
+        result.whenComplete((value, error) -> {
+            hedgeStarted.set(true);
+            primary.cancel(true);
+            synchronized (hedge) {
+                if (hedge[0] != null) {
+                    hedge[0].cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    private <T> void race(CompletableFuture<T> attempt, boolean isHedge, CompletableFuture<T> result, AtomicInteger pending, Predicate<T> succeeded, long start) {
+        attempt.whenComplete((value, error) -> {
+            boolean last = pending.decrementAndGet() == 0;
+            if (error == null && succeeded.test(value)) {
+                if (result.complete(value)) {
+                    recordLatency((System.nanoTime() - start) / 1000000);
+                    if (isHedge) {
+                        hedgesWon.incrementAndGet();
+                    }
+                }
+            } else if (last) {
+                //nobody succeeded: hand back what the last one to finish got
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+    }
+
+    public synchronized void recordLatency(long millis) {
+        window[windowNext] = millis;
+        windowNext = (windowNext + 1) % WINDOW_SIZE;
+        windowCount = Math.min(windowCount + 1, WINDOW_SIZE);
+    }
+
+    //how long a call may run before it is hedged, -1 while there are too few samples to tell
+    public synchronized long getHedgeDelayMillis() {
+        if (windowCount < Math.max(1, minSamples)) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(window, windowCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return Math.max(minDelayMillis, sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))]);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getHedgesIssued() {
+        return hedgesIssued.get();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    //hedges that were due but not sent because of maxExtraRate
+    public long getHedgesSkipped() {
+        return hedgesSkipped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingPolicy{p" + percentile + " delayMs=" + getHedgeDelayMillis() + ", calls=" + getCalls() + ", hedgesIssued=" + getHedgesIssued()
+                + ", hedgesWon=" + getHedgesWon() + ", hedgesSkipped=" + getHedgesSkipped() + "}";
+    }
+}
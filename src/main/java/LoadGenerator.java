@@ -0,0 +1,98 @@
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGenerator {
+
+    public static final List<String> DEFAULT_MESSAGES = List.of(
+            "What College, Department, and Major am I in?",
+            "What grade do I need in the class CS375 to get the credit?",
+            "What concentration am I in?",
+            "What other concentrations are available for my major?",
+            "Which classes should I take next semester?");
+
+    private final OpenAiAssistantEngine engine;
+    private final List<String> messages;
+    private long thinkTimeMillis = 0;
+
+    public record LoadReport(int sessions, long requests, long failures, long wallMillis, long totalTokens, double meanLatencyMillis,
+                             double p50Millis, double p90Millis, double p99Millis, double p999Millis, double maxLatencyMillis) {
+
+        public double getThroughputPerSecond() {
+            return wallMillis == 0 ? 0 : requests * 1000.0 / wallMillis;
+        }
+
+        @Override
+        public String toString() {
+            return sessions + " sessions, " + requests + " requests (" + failures + " failed) in " + wallMillis + " ms, " + String.format("%.2f", getThroughputPerSecond()) + " requests/s, " + totalTokens + " tokens\n"
+                    + "latency ms: mean " + String.format("%.1f", meanLatencyMillis) + ", p50 " + String.format("%.1f", p50Millis) + ", p90 " + String.format("%.1f", p90Millis)
+                    + ", p99 " + String.format("%.1f", p99Millis) + ", p99.9 " + String.format("%.1f", p999Millis) + ", max " + String.format("%.1f", maxLatencyMillis);
+        }
+    }
+
+    public LoadGenerator(OpenAiAssistantEngine engine) {
+        this(engine, DEFAULT_MESSAGES);
+    }
+
+    public LoadGenerator(OpenAiAssistantEngine engine, List<String> messages) {
+        this.engine = engine;
+        this.messages = List.copyOf(messages);
+    }
+
+    //pause between a session's turns, like a user reading the answer
+    public void setThinkTimeMillis(long thinkTimeMillis) {
+        this.thinkTimeMillis = Math.max(0, thinkTimeMillis);
+    }
+
+    /*
+     * Closed-loop load: every session is a virtual thread with its own conversation that sends its next message
+     * as soon as (plus the think time) the previous one is answered, so the number of sessions is the number of
+     * requests in flight. Latency is measured around chatGPTAsync, so it is what callers of the engine see:
+     * prompt building, rate limiting, retries and hedging included.
+     */
+    public LoadReport run(int sessions, int turnsPerSession) {
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong failures = new AtomicLong();
+        AtomicLong totalTokens = new AtomicLong();
+        long start = System.nanoTime();
+        try (AssistantSessionManager sessionManager = new AssistantSessionManager(engine, Math.max(sessions, 1), 0, 40);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int s = 0; s < sessions; s++) {
+                String sessionId = "load-" + s;
+                int offset = s;
+                executor.execute(() -> {
+                    for (int turn = 0; turn < turnsPerSession; turn++) {
+                        String message = messages.get((offset + turn) % messages.size());
+                        long requestStart = System.nanoTime();
+                        try {
+                            ChatResult result = sessionManager.chatAsync(sessionId, message, false).join();
+                            if (!result.isSuccessful()) {
+                                failures.incrementAndGet();
+                            }
+                            totalTokens.addAndGet(result.getTotalTokens());
+                        } catch (CompletionException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies.recordNanos(System.nanoTime() - requestStart);
+                        if (thinkTimeMillis > 0 && turn < turnsPerSession - 1) {
+                            try {
+                                TimeUnit.MILLISECONDS.sleep(thinkTimeMillis);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        return new LoadReport(sessions, latencies.getCount(), failures.get(), wallMillis, totalTokens.get(), latencies.getMeanMicros() / 1000,
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxMicros() / 1000.0);
+    }
+}
@@ -0,0 +1,315 @@
+
+/*
+ * Renders the markdown the models answer with (**bold**, *italic* or _italic_, `inline code` and ``` fenced
+ * blocks) as ANSI terminal styles in a single pass over the text. It is incremental: append() takes a streamed
+ * chunk and returns what can already be printed, holding back only the characters that still depend on what
+ * comes next (an opening marker waiting for its closing one on the same line, or backticks at the start of a
+ * line that may turn out to be a fence), and finish() flushes the rest once the stream ends. A marker that is
+ * never closed before the end of its line is printed as it was written.
+ *
+ * One renderer follows one response and is not thread safe; render() is the one-shot form for complete text.
+ */
+public final class MarkdownRenderer {
+
+    private static final String BOLD = "\033[1m";
+    private static final String ITALIC = "\033[3m";
+    private static final String CODE = "\033[0;37m";
+    private static final String RESET = "\033[0m";
+
+    private enum State {
+        TEXT, //plain text
+        MARKERS, //a run of * or _ that may open a span
+        SPAN, //inside an emphasis span, waiting for the closing markers
+        INLINE_CODE, //inside `...`, waiting for the closing backtick
+        FENCE_OPEN, //backticks at the start of a line that may open a fence
+        FENCE_INFO, //the rest of an opening fence line, the language name, which is not printed
+        FENCED, //inside a fenced block
+        FENCE_CLOSE, //backticks at the start of a line inside a fenced block that may close it
+        FENCE_TAIL //the rest of a closing fence line
+    }
+
+    private final StringBuilder out = new StringBuilder();
+    //the raw text of an unresolved span or marker run, printed styled or as written once it is resolved
+    private final StringBuilder held = new StringBuilder();
+    private State state = State.TEXT;
+    private boolean lineStart = true;
+    private char previous = '\n'; //the last character of plain text, to keep snake_case from turning italic
+    private char marker; //* or _ of the current marker run or span
+    private int markerCount; //length of the opening run, 1 for italic and 2 for bold
+    private int closingCount; //closing markers seen so far at the end of the held span
+    private int backticks;
+
+    public static String render(String text) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        MarkdownRenderer renderer = new MarkdownRenderer(text.length() + 64);
+        renderer.feed(text);
+        renderer.flush();
+        return renderer.out.toString();
+    }
+
+    public MarkdownRenderer() {
+        this(256);
+    }
+
+    private MarkdownRenderer(int capacity) {
+        out.ensureCapacity(capacity);
+    }
+
+    //renders the next chunk and returns what is ready to print, possibly the empty string
+    public String append(CharSequence chunk) {
+        if (chunk != null) {
+            feed(chunk);
+        }
+        return drain();
+    }
+
+    //ends the text: anything still held is printed and an open fenced block is reset
+    public String finish() {
+        flush();
+        return drain();
+    }
+
+    private String drain() {
+        if (out.length() == 0) {
+            return "";
+        }
+        String ready = out.toString();
+        out.setLength(0);
+        return ready;
+    }
+
+    private void feed(CharSequence chunk) {
+        int length = chunk.length();
+        for (int i = 0; i < length; i++) {
+            accept(chunk.charAt(i));
+        }
+    }
+
+    private void accept(char c) {
+        switch (state) {
+            case TEXT -> text(c);
+            case MARKERS -> markers(c);
+            case SPAN -> span(c);
+            case INLINE_CODE -> inlineCode(c);
+            case FENCE_OPEN -> fenceOpen(c);
+            case FENCE_INFO -> {
+                if (c == '\n') {
+                    out.append(CODE);
+                    state = State.FENCED;
+                    lineStart = true;
+                }
+            }
+            case FENCED -> fenced(c);
+            case FENCE_CLOSE -> fenceClose(c);
+            case FENCE_TAIL -> {
+                if (c == '\n') {
+                    out.append('\n');
+                    state = State.TEXT;
+                    lineStart = true;
+                    previous = '\n';
+                }
+            }
+        }
+    }
+
+    private void text(char c) {
+        if (c == '`') {
+            if (lineStart) {
+                state = State.FENCE_OPEN;
+                backticks = 1;
+            } else {
+                state = State.INLINE_CODE;
+                held.setLength(0);
+            }
+            return;
+        }
+        if ((c == '*' || c == '_') && !(c == '_' && Character.isLetterOrDigit(previous))) {
+            state = State.MARKERS;
+            marker = c;
+            markerCount = 1;
+            lineStart = false;
+            return;
+        }
+        plain(c);
+    }
+
+    private void plain(char c) {
+        out.append(c);
+        previous = c;
+        lineStart = c == '\n';
+    }
+
+    private void markers(char c) {
+        if (c == marker && markerCount < 2) {
+            markerCount++;
+            return;
+        }
+        if (c == marker) {
+            //a third marker can't open anything, print the first one and keep looking at the rest
+            out.append(marker);
+            previous = marker;
+            return;
+        }
+        if (Character.isWhitespace(c)) {
+            //"* item" or "a * b" is not emphasis
+            literalMarkers();
+            text(c);
+            return;
+        }
+        state = State.SPAN;
+        held.setLength(0);
+        closingCount = 0;
+        span(c);
+    }
+
+    private void literalMarkers() {
+        for (int i = 0; i < markerCount; i++) {
+            out.append(marker);
+        }
+        previous = marker;
+        state = State.TEXT;
+    }
+
+    private void span(char c) {
+        if (c == '\n') {
+            unresolvedSpan();
+            text(c);
+            return;
+        }
+        if (c == marker && closingCount < markerCount && held.length() > closingCount
+                && !Character.isWhitespace(held.charAt(held.length() - closingCount - 1))) {
+            closingCount++;
+            held.append(c);
+            if (closingCount == markerCount && marker == '*') {
+                closeSpan();
+            }
+            return;
+        }
+        if (closingCount == markerCount) {
+            //a closing _ run only counts at the end of a word, so snake_case inside a span survives
+            if (Character.isLetterOrDigit(c)) {
+                closingCount = 0;
+                held.append(c);
+                return;
+            }
+            closeSpan();
+            text(c);
+            return;
+        }
+        closingCount = 0;
+        held.append(c);
+    }
+
+    private void closeSpan() {
+        out.append(markerCount == 2 ? BOLD : ITALIC);
+        out.append(held, 0, held.length() - markerCount);
+        out.append(RESET);
+        previous = marker;
+        state = State.TEXT;
+    }
+
+    private void unresolvedSpan() {
+        literalMarkers();
+        out.append(held);
+        if (held.length() > 0) {
+            previous = held.charAt(held.length() - 1);
+        }
+    }
+
+    private void inlineCode(char c) {
+        if (c == '`' && held.length() > 0) {
+            out.append(CODE).append(held).append(RESET);
+            previous = '`';
+            state = State.TEXT;
+        } else if (c == '\n' || c == '`') {
+            out.append('`').append(held);
+            state = State.TEXT;
+            text(c);
+        } else {
+            held.append(c);
+        }
+    }
+
+    private void fenceOpen(char c) {
+        if (c == '`' && backticks < 3) {
+            backticks++;
+            if (backticks == 3) {
+                state = State.FENCE_INFO;
+            }
+            return;
+        }
+        //one or two backticks at the start of a line: inline code or literal backticks
+        lineStart = false;
+        if (backticks == 1) {
+            state = State.INLINE_CODE;
+            held.setLength(0);
+            inlineCode(c);
+        } else {
+            out.append("``");
+            previous = '`';
+            state = State.TEXT;
+            text(c);
+        }
+    }
+
+    private void fenced(char c) {
+        if (c == '`' && lineStart) {
+            state = State.FENCE_CLOSE;
+            backticks = 1;
+            return;
+        }
+        out.append(c);
+        lineStart = c == '\n';
+    }
+
+    private void fenceClose(char c) {
+        if (c == '`' && backticks < 3) {
+            backticks++;
+            if (backticks == 3) {
+                out.append(RESET);
+                state = State.FENCE_TAIL;
+            }
+            return;
+        }
+        for (int i = 0; i < backticks; i++) {
+            out.append('`');
+        }
+        state = State.FENCED;
+        lineStart = false;
+        fenced(c);
+    }
+
+    private void flush() {
+        switch (state) {
+            case MARKERS -> literalMarkers();
+            case SPAN -> {
+                if (closingCount == markerCount) {
+                    closeSpan();
+                } else {
+                    unresolvedSpan();
+                }
+            }
+            case INLINE_CODE -> out.append('`').append(held);
+            case FENCE_OPEN -> {
+                for (int i = 0; i < backticks; i++) {
+                    out.append('`');
+                }
+            }
+            case FENCED, FENCE_INFO -> out.append(RESET);
+            case FENCE_CLOSE -> {
+                for (int i = 0; i < backticks; i++) {
+                    out.append('`');
+                }
+                out.append(RESET);
+            }
+            default -> {
+            }
+        }
+        state = State.TEXT;
+        held.setLength(0);
+        lineStart = true;
+        previous = '\n';
+    }
+}
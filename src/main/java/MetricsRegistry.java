@@ -0,0 +1,244 @@
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsRegistry {
+
+    public static final String JMX_DOMAIN = "AiChatBot";
+    private static final double[] EXPORTED_QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final MetricsRegistry globalRegistry = new MetricsRegistry();
+
+    //"name" + tags -> metric, tags sorted so the same set always gives the same key
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+    private volatile boolean jmxEnabled = false;
+
+    public interface CounterMXBean {
+        long getValue();
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+    }
+
+    public static final class Counter implements CounterMXBean {
+
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        @Override
+        public long getValue() {
+            return value.sum();
+        }
+    }
+
+    public static final class HistogramView implements HistogramMXBean {
+
+        private final LatencyHistogram histogram;
+
+        private HistogramView(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return histogram.getMeanMicros() / 1000;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return histogram.getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return histogram.getValueAtPercentile(90) / 1000.0;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return histogram.getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return histogram.getMaxMicros() / 1000.0;
+        }
+    }
+
+    private record Metric(String name, String help, Map<String, String> tags, Object value) {
+    }
+
+    public static MetricsRegistry global() {
+        return globalRegistry;
+    }
+
+    //tags are given as alternating names and values, e.g. counter("x", "help", "model", "gpt-4o")
+    public Counter counter(String name, String help, String... tags) {
+        return (Counter) register(name, help, tags, Counter.class);
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... tags) {
+        return (LatencyHistogram) register(name, help, tags, LatencyHistogram.class);
+    }
+
+    //registers every metric, existing and future, as an MXBean under the AiChatBot domain
+    public synchronized void enableJmx() {
+        if (jmxEnabled) {
+            return;
+        }
+        jmxEnabled = true;
+        metrics.values().forEach(this::registerMBean);
+    }
+
+    public List<String> getMetricKeys() {
+        List<String> keys = new ArrayList<>(metrics.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /*
+     * Prometheus text exposition format (version 0.0.4). Counters are exported as counters and histograms as
+     * summaries in seconds (quantiles, _sum and _count), which keeps the output small while the quantiles come
+     * from the full-resolution buckets.
+     */
+    public String toPrometheusText() {
+        Map<String, List<Metric>> byName = new TreeMap<>();
+        for (Metric metric : metrics.values()) {
+            byName.computeIfAbsent(metric.name, name -> new ArrayList<>()).add(metric);
+        }
+        StringBuilder out = new StringBuilder();
+        for (List<Metric> family : byName.values()) {
+            family.sort((first, second) -> first.tags.toString().compareTo(second.tags.toString()));
+            Metric first = family.get(0);
+            boolean isCounter = first.value instanceof Counter;
+            String name = isCounter ? first.name + "_total" : first.name + "_seconds";
+            out.append("# HELP ").append(name).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(name).append(isCounter ? " counter" : " summary").append('\n');
+            for (Metric metric : family) {
+                if (metric.value instanceof Counter counter) {
+                    out.append(name).append(labels(metric.tags, null)).append(' ').append(counter.getValue()).append('\n');
+                    continue;
+                }
+                LatencyHistogram histogram = (LatencyHistogram) metric.value;
+                for (double quantile : EXPORTED_QUANTILES) {
+                    out.append(name).append(labels(metric.tags, String.valueOf(quantile))).append(' ')
+                            .append(histogram.getValueAtPercentile(quantile * 100) / 1e6).append('\n');
+                }
+                out.append(name).append("_sum").append(labels(metric.tags, null)).append(' ').append(histogram.getSumMicros() / 1e6).append('\n');
+                out.append(name).append("_count").append(labels(metric.tags, null)).append(' ').append(histogram.getCount()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    //serves toPrometheusText() at http://host:port/metrics on a daemon thread
+    public HttpServer startPrometheusEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private Object register(String name, String help, String[] tags, Class<?> type) {
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags must be name/value pairs.");
+        }
+        Map<String, String> tagMap = new TreeMap<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            tagMap.put(tags[i], String.valueOf(tags[i + 1]));
+        }
+        String key = name + tagMap;
+        Metric metric = metrics.get(key);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(key, ignored -> {
+                Metric created = new Metric(name, help, tagMap, type == Counter.class ? new Counter() : new LatencyHistogram());
+                if (jmxEnabled) {
+                    registerMBean(created);
+                }
+                return created;
+            });
+        }
+        if (!type.isInstance(metric.value)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + metric.value.getClass().getSimpleName() + ".");
+        }
+        return metric.value;
+    }
+
+    private void registerMBean(Metric metric) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        StringBuilder objectName = new StringBuilder(JMX_DOMAIN).append(":type=").append(metric.value instanceof Counter ? "counter" : "histogram")
+                .append(",name=").append(ObjectName.quote(metric.name));
+        metric.tags.forEach((tag, value) -> objectName.append(',').append(tag).append('=').append(ObjectName.quote(value)));
+        try {
+            ObjectName mbeanName = new ObjectName(objectName.toString());
+            if (!server.isRegistered(mbeanName)) {
+                server.registerMBean(metric.value instanceof LatencyHistogram histogram ? new HistogramView(histogram) : metric.value, mbeanName);
+            }
+        } catch (JMException e) {
+            System.out.println("Failed to register metric with JMX: " + e.getMessage());
+        }
+    }
+
+    private static String labels(Map<String, String> tags, String quantile) {
+        if (tags.isEmpty() && quantile == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        tags.forEach((tag, value) -> {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            out.append(tag).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        });
+        if (quantile != null) {
+            out.append(out.length() > 1 ? "," : "").append("quantile=\"").append(quantile).append('"');
+        }
+        return out.append('}').toString();
+    }
+}
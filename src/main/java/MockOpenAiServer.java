@@ -0,0 +1,415 @@
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public final class MockOpenAiServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8089;
+    private static final double Z_99 = 2.326; //standard normal quantile of the 99th percentile
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    //log-normal latency before the response headers, given by its median and 99th percentile
+    private volatile long medianLatencyMillis = 300;
+    private volatile long p99LatencyMillis = 1200;
+    private volatile long streamChunkDelayMillis = 20;
+    private volatile int responseWords = 60;
+    private volatile double errorRate = 0;
+    private volatile double rateLimitRate = 0;
+    private volatile long retryAfterMillis = 1000;
+
+    //recordings by request key, served instead of made-up answers when a request matches
+    private final Map<String, JSONObject> recordings = new ConcurrentHashMap<>();
+    private volatile Path recordFile;
+    private volatile String upstreamBaseUrl;
+    private volatile String upstreamApiKey;
+    private volatile HttpClient upstreamClient;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong streamedRequests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong injectedRateLimits = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+
+    //port 0 picks a free port, see getPort()
+    public MockOpenAiServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 256);
+        server.setExecutor(executor);
+        server.createContext("/v1/chat/completions", this::handleChatCompletion);
+        server.createContext("/v1/models", exchange -> respond(exchange, 200, new JSONObject().put("object", "list")
+                .put("data", new JSONArray().put(new JSONObject().put("id", "mock-model").put("object", "model"))).toString()));
+    }
+
+    public MockOpenAiServer() throws IOException {
+        this(DEFAULT_PORT);
+    }
+
+    public MockOpenAiServer start() {
+        server.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    //what to pass to the engine's setBaseUrl
+    public String getBaseUrl() {
+        return "http://localhost:" + getPort() + "/v1";
+    }
+
+    public void setLatencyMillis(long medianMillis, long p99Millis) {
+        this.medianLatencyMillis = Math.max(0, medianMillis);
+        this.p99LatencyMillis = Math.max(medianMillis, p99Millis);
+    }
+
+    public void setStreamChunkDelayMillis(long streamChunkDelayMillis) {
+        this.streamChunkDelayMillis = Math.max(0, streamChunkDelayMillis);
+    }
+
+    public void setResponseWords(int responseWords) {
+        this.responseWords = Math.max(1, responseWords);
+    }
+
+    //share of requests answered with a 500
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    //share of requests answered with a 429 and a Retry-After of retryAfterMillis
+    public void setRateLimitRate(double rateLimitRate, long retryAfterMillis) {
+        this.rateLimitRate = rateLimitRate;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /*
+     * Record mode: requests that have no recording yet are passed on to the real api (non-streamed, whatever the
+     * client asked for) and the response is appended to the file, so later runs replay it with the configured
+     * latency instead of paying for it again. Recordings already in the file are loaded first.
+     */
+    public void recordTo(Path file, String upstreamBaseUrl, String upstreamApiKey) throws IOException {
+        if (Files.exists(file)) {
+            loadRecordings(file);
+        }
+        this.upstreamBaseUrl = upstreamBaseUrl.replaceAll("/+$", "");
+        this.upstreamApiKey = upstreamApiKey;
+        this.upstreamClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.recordFile = file;
+    }
+
+    //replay mode: requests matching a recording get the recorded answer, the rest get made-up ones
+    public int loadRecordings(Path file) throws IOException {
+        int loaded = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JSONObject recording = new JSONObject(line);
+                recordings.put(recording.getString("key"), recording.getJSONObject("response"));
+                loaded++;
+            } catch (JSONException e) {
+                System.out.println("Skipping unreadable recording in " + file + ": " + e.getMessage());
+            }
+        }
+        return loaded;
+    }
+
+    public int getRecordingCount() {
+        return recordings.size();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getStreamedRequests() {
+        return streamedRequests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getInjectedRateLimits() {
+        return injectedRateLimits.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MockOpenAiServer{" + getBaseUrl() + ", requests=" + getRequests() + ", streamed=" + getStreamedRequests() + ", errors=" + getInjectedErrors()
+                + ", rateLimited=" + getInjectedRateLimits() + ", replayed=" + getReplayed() + ", recorded=" + getRecorded() + "}";
+    }
+
+    private void handleChatCompletion(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("Only POST is supported.", "invalid_request_error"));
+                return;
+            }
+            requests.incrementAndGet();
+            JSONObject request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                respond(exchange, 400, error("Could not parse the request body: " + e.getMessage(), "invalid_request_error"));
+                return;
+            }
+            sleep(sampleLatencyMillis());
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < rateLimitRate) {
+                injectedRateLimits.incrementAndGet();
+                exchange.getResponseHeaders().add("retry-after-ms", String.valueOf(retryAfterMillis));
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(Math.max(1, (retryAfterMillis + 999) / 1000)));
+                respond(exchange, 429, error("Rate limit reached (injected by MockOpenAiServer).", "rate_limit_exceeded"));
+                return;
+            }
+            if (roll < rateLimitRate + errorRate) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, 500, error("The server had an error while processing your request (injected by MockOpenAiServer).", "server_error"));
+                return;
+            }
+            JSONObject completion = completionFor(request);
+            if (request.optBoolean("stream")) {
+                streamedRequests.incrementAndGet();
+                stream(exchange, completion, request.optJSONObject("stream_options") != null && request.getJSONObject("stream_options").optBoolean("include_usage"));
+            } else {
+                respond(exchange, 200, completion.toString());
+            }
+        }
+    }
+
+    private JSONObject completionFor(JSONObject request) {
+        String key = requestKey(request);
+        JSONObject recording = recordings.get(key);
+        if (recording != null) {
+            replayed.incrementAndGet();
+            return recording;
+        }
+        if (recordFile != null) {
+            JSONObject upstream = fetchUpstream(request);
+            if (upstream != null) {
+                record(key, upstream);
+                return upstream;
+            }
+        }
+        return syntheticCompletion(request);
+    }
+
+    //a made-up answer that echoes the question
+    private JSONObject syntheticCompletion(JSONObject request) {
+        JSONArray messages = request.optJSONArray("messages");
+        String question = "";
+        if (messages != null && !messages.isEmpty()) {
+            question = messages.getJSONObject(messages.length() - 1).optString("content");
+        }
+        StringBuilder content = new StringBuilder("Mock answer to \"").append(question.length() > 80 ? question.substring(0, 80) + "..." : question).append("\":");
+        String[] words = {"your", "advisor", "can", "help", "with", "the", "degree", "plan", "and", "course", "credits", "this", "semester"};
+        for (int i = 0; i < responseWords; i++) {
+            content.append(' ').append(words[i % words.length]);
+        }
+        content.append('.');
+        //about four characters a token, cheap enough not to load the machine the load test runs on
+        int promptTokens = 0;
+        for (int i = 0; messages != null && i < messages.length(); i++) {
+            promptTokens += 4 + messages.getJSONObject(i).optString("content").length() / 4;
+        }
+        int completionTokens = content.length() / 4;
+        JSONObject message = new JSONObject().put("role", "assistant").put("content", content.toString());
+        JSONObject usage = new JSONObject().put("prompt_tokens", promptTokens).put("completion_tokens", completionTokens).put("total_tokens", promptTokens + completionTokens)
+                .put("prompt_tokens_details", new JSONObject().put("cached_tokens", 0));
+        return new JSONObject().put("id", "chatcmpl-mock" + requests.get()).put("object", "chat.completion").put("created", System.currentTimeMillis() / 1000)
+                .put("model", request.optString("model", "mock-model"))
+                .put("choices", new JSONArray().put(new JSONObject().put("index", 0).put("message", message).put("finish_reason", "stop")))
+                .put("usage", usage);
+    }
+
+    //server-sent events in the same shape as the real api: role, content deltas, finish_reason, usage, [DONE]
+    private void stream(HttpExchange exchange, JSONObject completion, boolean includeUsage) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        JSONObject choice = completion.getJSONArray("choices").getJSONObject(0);
+        String content = choice.getJSONObject("message").optString("content");
+        try (OutputStream out = exchange.getResponseBody()) {
+            sendEvent(out, chunk(completion, new JSONObject().put("role", "assistant").put("content", ""), null));
+            int start = 0;
+            while (start < content.length()) {
+                //one word (and the space before it) per chunk, roughly a token
+                int end = content.indexOf(' ', start + 1);
+                end = end == -1 ? content.length() : end;
+                sleep(streamChunkDelayMillis);
+                sendEvent(out, chunk(completion, new JSONObject().put("content", content.substring(start, end)), null));
+                start = end;
+            }
+            sendEvent(out, chunk(completion, new JSONObject(), choice.optString("finish_reason", "stop")));
+            if (includeUsage && completion.has("usage")) {
+                sendEvent(out, chunk(completion, null, null).put("choices", new JSONArray()).put("usage", completion.get("usage")));
+            }
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static JSONObject chunk(JSONObject completion, JSONObject delta, String finishReason) {
+        JSONObject chunk = new JSONObject().put("id", completion.optString("id")).put("object", "chat.completion.chunk")
+                .put("created", completion.optLong("created")).put("model", completion.optString("model"));
+        if (delta != null) {
+            chunk.put("choices", new JSONArray().put(new JSONObject().put("index", 0).put("delta", delta).put("finish_reason", finishReason == null ? JSONObject.NULL : finishReason)));
+        }
+        return chunk;
+    }
+
+    private static void sendEvent(OutputStream out, JSONObject chunk) throws IOException {
+        out.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private JSONObject fetchUpstream(JSONObject request) {
+        JSONObject upstreamRequest = new JSONObject(request.toString());
+        upstreamRequest.remove("stream");
+        upstreamRequest.remove("stream_options");
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(upstreamBaseUrl + "/chat/completions"))
+                .header("Authorization", "Bearer " + upstreamApiKey)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(120))
+                .POST(HttpRequest.BodyPublishers.ofString(upstreamRequest.toString()))
+                .build();
+        try {
+            HttpResponse<String> response = upstreamClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                System.out.println("MockOpenAiServer: upstream returned " + response.statusCode() + ", not recording: " + response.body());
+                return null;
+            }
+            return new JSONObject(response.body());
+        } catch (IOException | JSONException e) {
+            System.out.println("MockOpenAiServer: could not record from upstream: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private synchronized void record(String key, JSONObject response) {
+        recordings.put(key, response);
+        try (BufferedWriter writer = Files.newBufferedWriter(recordFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(new JSONObject().put("key", key).put("response", response).toString());
+            writer.newLine();
+            recorded.incrementAndGet();
+        } catch (IOException e) {
+            System.out.println("MockOpenAiServer: failed to write recording: " + e.getMessage());
+        }
+    }
+
+    //model and messages identify a request, sampling options and the stream flag do not
+    static String requestKey(JSONObject request) {
+        String identity = request.optString("model") + "\n" + request.optJSONArray("messages");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long sampleLatencyMillis() {
+        long median = medianLatencyMillis;
+        if (median <= 0) {
+            return 0;
+        }
+        double sigma = Math.log((double) Math.max(median, p99LatencyMillis) / median) / Z_99;
+        return (long) (median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private static String error(String message, String type) {
+        return new JSONObject().put("error", new JSONObject().put("message", message).put("type", type).put("code", JSONObject.NULL)).toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * java MockOpenAiServer [port] [--latency median,p99] [--errors rate] [--rate-limits rate]
+     *                       [--replay file] [--record file] (recording needs OPENAI_API_KEY)
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        MockOpenAiServer mock = new MockOpenAiServer(port);
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--latency" -> {
+                    String[] values = args[++i].split(",");
+                    mock.setLatencyMillis(Long.parseLong(values[0]), Long.parseLong(values[values.length - 1]));
+                }
+                case "--errors" -> mock.setErrorRate(Double.parseDouble(args[++i]));
+                case "--rate-limits" -> mock.setRateLimitRate(Double.parseDouble(args[++i]), 1000);
+                case "--replay" -> System.out.println("Loaded " + mock.loadRecordings(Path.of(args[++i])) + " recordings.");
+                case "--record" -> mock.recordTo(Path.of(args[++i]), OpenAiAssistantEngine.DEFAULT_BASE_URL, System.getenv("OPENAI_API_KEY"));
+                default -> {
+                }
+            }
+        }
+        mock.start();
+        System.out.println("Mock OpenAI api listening on " + mock.getBaseUrl());
+    }
+}
@@ -0,0 +1,284 @@
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Sends each message to a fast, cheap model or to a stronger one, decided locally before the request is made:
+ * short messages about at most a couple of things, with no reasoning cues, whose words all show up in the
+ * context retrieved for them, go to the fast model; long, multi-entity or open-ended ones, and ones the
+ * retrieved context does not cover, go to the strong model. A fast answer that was cut off, came back empty or
+ * hedges ("I'm not sure") is escalated: the same prompt is sent again to the strong model.
+ *
+ * The router keeps per-route counts, latencies and tokens of its own; the engine also reports them to its
+ * metrics registry tagged by route.
+ */
+public class ModelRouter {
+
+    public static final int DEFAULT_MAX_FAST_TOKENS = 40;
+    public static final int DEFAULT_MAX_FAST_ENTITIES = 2;
+    public static final double DEFAULT_MIN_CONTEXT_COVERAGE = 0.6;
+
+    public static final List<String> DEFAULT_LOW_CONFIDENCE_PHRASES = List.of(
+            "i'm not sure", "i am not sure", "i don't know", "i do not know", "not enough information",
+            "cannot determine", "can't determine", "unable to determine", "i don't have access", "i do not have access",
+            "i don't have information", "i do not have information");
+
+    //words that ask for reasoning rather than a lookup
+    private static final Set<String> REASONING_CUES = Set.of(
+            "why", "explain", "compare", "difference", "differences", "plan", "recommend", "recommendation", "should",
+            "analyze", "analyse", "evaluate", "pros", "cons", "tradeoff", "tradeoffs", "strategy", "prove", "derive",
+            "design", "debug", "refactor", "optimize", "calculate", "step", "steps", "best", "better");
+
+    //words too common to say anything about whether the context covers the message
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "the", "and", "or", "but", "if", "of", "to", "in", "on", "at", "by", "for", "with", "about", "from",
+            "as", "is", "are", "was", "were", "be", "been", "am", "do", "does", "did", "have", "has", "had", "i", "me",
+            "my", "you", "your", "we", "our", "it", "its", "this", "that", "these", "those", "what", "which", "who",
+            "whom", "when", "where", "how", "can", "could", "would", "will", "shall", "may", "might", "must", "need",
+            "there", "their", "they", "them", "so", "than", "then", "not", "no", "yes", "any", "all", "some", "please",
+            "tell", "show", "give", "get", "know", "much", "many");
+
+    public enum Route {
+        FAST, STRONG;
+
+        //as used in response data and metric tags
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public record Decision(Route route, String model, String reason) {
+    }
+
+    public record RouteStats(long requests, long escalations, long totalTokens, double meanLatencyMillis, double p50Millis, double p99Millis) {
+    }
+
+    private final String fastModel;
+    private final String strongModel;
+    private final int maxFastTokens;
+    private final int maxFastEntities;
+    private final double minContextCoverage;
+    private volatile List<String> lowConfidencePhrases = DEFAULT_LOW_CONFIDENCE_PHRASES;
+    private volatile boolean escalateOnTruncation = true;
+
+    private final RouteCounters fast = new RouteCounters();
+    private final RouteCounters strong = new RouteCounters();
+
+    public ModelRouter(String fastModel, String strongModel) {
+        this(fastModel, strongModel, DEFAULT_MAX_FAST_TOKENS, DEFAULT_MAX_FAST_ENTITIES, DEFAULT_MIN_CONTEXT_COVERAGE);
+    }
+
+    //messages longer than maxFastTokens, naming more than maxFastEntities things or less than minContextCoverage covered by their context go to the strong model
+    public ModelRouter(String fastModel, String strongModel, int maxFastTokens, int maxFastEntities, double minContextCoverage) {
+        this.fastModel = fastModel;
+        this.strongModel = strongModel;
+        this.maxFastTokens = maxFastTokens;
+        this.maxFastEntities = maxFastEntities;
+        this.minContextCoverage = minContextCoverage;
+    }
+
+    public String getFastModel() {
+        return fastModel;
+    }
+
+    public String getStrongModel() {
+        return strongModel;
+    }
+
+    //phrases (matched case-insensitively) that make a fast answer count as low confidence
+    public void setLowConfidencePhrases(List<String> phrases) {
+        List<String> lowered = new ArrayList<>(phrases.size());
+        for (String phrase : phrases) {
+            lowered.add(phrase.toLowerCase(Locale.ROOT));
+        }
+        this.lowConfidencePhrases = List.copyOf(lowered);
+    }
+
+    public List<String> getLowConfidencePhrases() {
+        return lowConfidencePhrases;
+    }
+
+    public void setEscalateOnTruncation(boolean escalateOnTruncation) {
+        this.escalateOnTruncation = escalateOnTruncation;
+    }
+
+    public boolean getEscalateOnTruncation() {
+        return escalateOnTruncation;
+    }
+
+    public String modelFor(Route route) {
+        return route == Route.FAST ? fastModel : strongModel;
+    }
+
+    /*
+     * The context is what was looked up for this message (retrieved file chunks, database rows, the history
+     * summary), or null if nothing was: then coverage can't be judged and only the message itself decides.
+     */
+    public Decision route(String message, String context) {
+        if (message == null || message.isBlank()) {
+            return decision(Route.FAST, "empty message");
+        }
+        if (TokenCounter.count(message) > maxFastTokens) {
+            return decision(Route.STRONG, "long message");
+        }
+        List<String> terms = Bm25Index.tokenize(message);
+        for (String term : terms) {
+            if (REASONING_CUES.contains(term)) {
+                return decision(Route.STRONG, "reasoning");
+            }
+        }
+        if (countEntities(message) > maxFastEntities) {
+            return decision(Route.STRONG, "entities");
+        }
+        if (context != null && !context.isBlank()) {
+            if (contextCoverage(terms, context) < minContextCoverage) {
+                return decision(Route.STRONG, "context does not cover it");
+            }
+            return decision(Route.FAST, "covered by context");
+        }
+        return decision(Route.FAST, "simple");
+    }
+
+    private Decision decision(Route route, String reason) {
+        return new Decision(route, modelFor(route), reason);
+    }
+
+    //the reason a fast answer should be escalated, or null if it can stand
+    public String escalationReason(String content, String finishReason) {
+        if (content == null || content.isBlank()) {
+            return "empty";
+        }
+        if (escalateOnTruncation && "length".equals(finishReason)) {
+            return "truncated";
+        }
+        String lower = content.toLowerCase(Locale.ROOT).replace('’', '\'');
+        for (String phrase : lowConfidencePhrases) {
+            if (lower.contains(phrase)) {
+                return "low confidence";
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Things the message names: words with digits (CS375, 2024, a student id; "CS 375" counts once) and runs of
+     * capitalized words that don't start a sentence ("Abilene Christian University" counts once).
+     */
+    static int countEntities(String message) {
+        int entities = 0;
+        boolean sentenceStart = true;
+        boolean inName = false;
+        boolean previousWasCode = false;
+        int length = message.length();
+        int i = 0;
+        while (i < length) {
+            char c = message.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                if (c == '.' || c == '?' || c == '!' || c == '\n') {
+                    sentenceStart = true;
+                    inName = false;
+                    previousWasCode = false;
+                } else if (c != ' ' && c != '-') {
+                    inName = false;
+                }
+                i++;
+                continue;
+            }
+            int start = i;
+            boolean hasDigit = false;
+            boolean allUpper = true;
+            while (i < length && Character.isLetterOrDigit(message.charAt(i))) {
+                char w = message.charAt(i);
+                hasDigit |= Character.isDigit(w);
+                allUpper &= !Character.isLowerCase(w);
+                i++;
+            }
+            boolean capitalized = Character.isUpperCase(message.charAt(start)) && !(i - start == 1 && message.charAt(start) == 'I');
+            if (hasDigit) {
+                //the number of "CS 375" belongs to the code before it
+                if (!previousWasCode) {
+                    entities++;
+                }
+                inName = false;
+                previousWasCode = false;
+            } else if (capitalized && !sentenceStart) {
+                if (!inName) {
+                    entities++;
+                }
+                inName = true;
+                previousWasCode = allUpper && i - start <= 4;
+            } else {
+                inName = false;
+                previousWasCode = allUpper && capitalized && i - start <= 4;
+            }
+            sentenceStart = false;
+        }
+        return entities;
+    }
+
+    //share of the message's meaningful words that appear in the context
+    static double contextCoverage(List<String> messageTerms, String context) {
+        Set<String> contextTerms = new HashSet<>(Bm25Index.tokenize(context));
+        int meaningful = 0;
+        int covered = 0;
+        for (String term : new HashSet<>(messageTerms)) {
+            if (term.length() < 2 || STOP_WORDS.contains(term)) {
+                continue;
+            }
+            meaningful++;
+            if (contextTerms.contains(term)) {
+                covered++;
+            }
+        }
+        return meaningful == 0 ? 1 : (double) covered / meaningful;
+    }
+
+    //latency is the whole call on that route, tokens are what the call was billed
+    public void recordResult(Route route, long latencyNanos, int totalTokens) {
+        RouteCounters counters = counters(route);
+        counters.requests.incrementAndGet();
+        counters.tokens.addAndGet(totalTokens);
+        counters.latencies.recordNanos(latencyNanos);
+    }
+
+    public void recordEscalation() {
+        fast.escalations.incrementAndGet();
+    }
+
+    public RouteStats getStats(Route route) {
+        RouteCounters counters = counters(route);
+        LatencyHistogram latencies = counters.latencies;
+        return new RouteStats(counters.requests.get(), counters.escalations.get(), counters.tokens.get(), latencies.getMeanMicros() / 1000,
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0);
+    }
+
+    //share of fast answers that had to be sent again to the strong model
+    public double getEscalationRate() {
+        long requests = fast.requests.get();
+        return requests == 0 ? 0 : (double) fast.escalations.get() / requests;
+    }
+
+    private RouteCounters counters(Route route) {
+        return route == Route.FAST ? fast : strong;
+    }
+
+    private static final class RouteCounters {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong escalations = new AtomicLong();
+        private final AtomicLong tokens = new AtomicLong();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+    }
+
+    @Override
+    public String toString() {
+        RouteStats fastStats = getStats(Route.FAST);
+        RouteStats strongStats = getStats(Route.STRONG);
+        return "ModelRouter{fast=" + fastModel + " " + fastStats.requests() + " requests, " + fastStats.totalTokens() + " tokens, p50 " + String.format("%.0f", fastStats.p50Millis())
+                + " ms, " + fastStats.escalations() + " escalated; strong=" + strongModel + " " + strongStats.requests() + " requests, " + strongStats.totalTokens() + " tokens, p50 "
+                + String.format("%.0f", strongStats.p50Millis()) + " ms}";
+    }
+}
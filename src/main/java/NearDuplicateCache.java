@@ -0,0 +1,267 @@
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+public class NearDuplicateCache {
+
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    public static final int DEFAULT_MAX_ENTRIES_PER_CONTEXT = 500;
+    public static final int DEFAULT_MAX_CONTEXTS = 1000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    //two answers to the same question are taken to agree when their own similarity is at least this
+    public static final double DEFAULT_ANSWER_AGREEMENT = 0.5;
+
+    private static final int SIGNATURE_LENGTH = 64;
+    private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+    //question words that change the wording but not what is asked
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "the", "i", "me", "my", "mine", "am", "is", "are", "was", "were", "be", "do", "does", "did",
+            "what", "whats", "which", "who", "whos", "whom", "how", "hows", "where", "wheres", "when", "im", "s", "in", "on", "of", "to", "for", "at", "by", "with",
+            "and", "or", "it", "its", "this", "that", "can", "could", "would", "should", "will", "you", "your",
+            "please", "tell", "currently", "right", "now");
+    //words that turn the question around; with the apostrophe dropped, "isn't" is "isnt"
+    private static final Set<String> NEGATIONS = Set.of(
+            "not", "no", "never", "none", "nothing", "nobody", "neither", "nor", "cannot", "without",
+            "dont", "doesnt", "didnt", "isnt", "arent", "wasnt", "werent", "cant", "couldnt", "wouldnt", "shouldnt",
+            "wont", "havent", "hasnt", "hadnt", "aint", "mustnt", "neednt");
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            seed = mix(seed + i);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private final double threshold;
+    private final int maxEntriesPerContext;
+    private final long ttlMillis;
+    private final double answerAgreement;
+
+    //context key -> entries, newest first; access ordered so the least recently used context is dropped first
+    private final LinkedHashMap<String, Deque<Entry>> contexts;
+
+    private long lookups = 0;
+    private long hits = 0;
+    private long truePositives = 0;
+    private long falsePositives = 0;
+    private long trueNegatives = 0;
+    private long falseNegatives = 0;
+
+    private record Entry(String message, int[] signature, Set<String> exactTokens, String response, int[] responseSignature, long expiresAtMillis) {
+    }
+
+    public record Match(String contextKey, String message, String matchedMessage, String response, double similarity) {
+    }
+
+    private record Candidate(Entry entry, double similarity) {
+    }
+
+    public NearDuplicateCache() {
+        this(DEFAULT_THRESHOLD, DEFAULT_MAX_ENTRIES_PER_CONTEXT, DEFAULT_MAX_CONTEXTS, DEFAULT_TTL_MILLIS);
+    }
+
+    public NearDuplicateCache(double threshold, int maxEntriesPerContext, int maxContexts, long ttlMillis) {
+        this.threshold = threshold;
+        this.maxEntriesPerContext = maxEntriesPerContext;
+        this.ttlMillis = ttlMillis;
+        this.answerAgreement = DEFAULT_ANSWER_AGREEMENT;
+        this.contexts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Deque<Entry>> eldest) {
+                return size() > maxContexts;
+            }
+        };
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    //the most similar earlier question in the same context if it is at least as similar as the threshold
+    public synchronized Match lookup(String contextKey, String message) {
+        lookups++;
+        Candidate best = findBest(contextKey, Signature.of(message));
+        if (best == null || best.similarity < threshold) {
+            return null;
+        }
+        hits++;
+        return new Match(contextKey, message, best.entry.message, best.entry.response, best.similarity);
+    }
+
+    public synchronized void put(String contextKey, String message, String response) {
+        Signature signature = Signature.of(message);
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        Deque<Entry> entries = contexts.computeIfAbsent(contextKey, key -> new ArrayDeque<>());
+        entries.addFirst(new Entry(message, signature.minHash, signature.exactTokens, response, Signature.of(response).minHash, expiresAt));
+        while (entries.size() > maxEntriesPerContext) {
+            entries.removeLast();
+        }
+    }
+
+    /*
+     * Precision and recall can not be known without labels, so they are estimated: a sample of hits is also
+     * sent upstream and the fresh answer compared with the cached one (recordVerification), and every miss
+     * checks whether the closest earlier question below the threshold had an answer that agrees with the new
+     * one (recordMiss), which would have been a hit worth taking. Explicit labels can be added with recordFeedback.
+     */
+    public synchronized void recordVerification(Match match, String actualResponse) {
+        recordFeedback(match, similarity(Signature.of(match.response).minHash, Signature.of(actualResponse).minHash) >= answerAgreement);
+    }
+
+    public synchronized void recordFeedback(Match match, boolean correct) {
+        if (correct) {
+            truePositives++;
+        } else {
+            falsePositives++;
+        }
+    }
+
+    public synchronized void recordMiss(String contextKey, String message, String actualResponse) {
+        Candidate closest = findBest(contextKey, Signature.of(message));
+        if (closest == null) {
+            return;
+        }
+        if (similarity(closest.entry.responseSignature, Signature.of(actualResponse).minHash) >= answerAgreement) {
+            falseNegatives++;
+        } else {
+            trueNegatives++;
+        }
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getTruePositives() {
+        return truePositives;
+    }
+
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    public synchronized long getTrueNegatives() {
+        return trueNegatives;
+    }
+
+    public synchronized long getFalseNegatives() {
+        return falseNegatives;
+    }
+
+    //share of verified hits whose cached answer agreed with a fresh one, NaN before any hit is verified
+    public synchronized double getPrecision() {
+        long verified = truePositives + falsePositives;
+        return verified == 0 ? Double.NaN : (double) truePositives / verified;
+    }
+
+    //share of answerable repeats that were served from the cache, scaling the verified sample up to all hits
+    public synchronized double getRecall() {
+        double precision = getPrecision();
+        double correctHits = Double.isNaN(precision) ? hits : hits * precision;
+        return correctHits + falseNegatives == 0 ? Double.NaN : correctHits / (correctHits + falseNegatives);
+    }
+
+    public synchronized void clear() {
+        contexts.clear();
+    }
+
+    public static double similarity(String first, String second) {
+        Signature a = Signature.of(first);
+        Signature b = Signature.of(second);
+        return a.exactTokens.equals(b.exactTokens) ? similarity(a.minHash, b.minHash) : 0;
+    }
+
+    private Candidate findBest(String contextKey, Signature signature) {
+        Deque<Entry> entries = contexts.get(contextKey);
+        if (entries == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry bestEntry = null;
+        double bestSimilarity = -1;
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.expiresAtMillis <= now) {
+                iterator.remove();
+                continue;
+            }
+            //numbers, codes (a student id, CS375) and negations have to match exactly, similar wording is not enough
+            if (!entry.exactTokens.equals(signature.exactTokens)) {
+                continue;
+            }
+            double similarity = similarity(entry.signature, signature.minHash);
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                bestEntry = entry;
+            }
+        }
+        return bestEntry == null ? null : new Candidate(bestEntry, bestSimilarity);
+    }
+
+    private static double similarity(int[] first, int[] second) {
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            if (first[i] == second[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / SIGNATURE_LENGTH;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    //MinHash over the character trigrams of the content words, and the set of negations and words that contain a digit
+    private record Signature(int[] minHash, Set<String> exactTokens) {
+
+        static Signature of(String text) {
+            int[] minHash = new int[SIGNATURE_LENGTH];
+            Arrays.fill(minHash, Integer.MAX_VALUE);
+            Set<String> exactTokens = new TreeSet<>();
+            boolean empty = true;
+            for (String word : text.toLowerCase(Locale.ROOT).replace("'", "").replace("\u2019", "").split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty() || STOP_WORDS.contains(word)) {
+                    continue;
+                }
+                if (NEGATIONS.contains(word) || word.chars().anyMatch(Character::isDigit)) {
+                    exactTokens.add(word);
+                }
+                String padded = " " + word + " ";
+                for (int i = 0; i + 3 <= padded.length(); i++) {
+                    long shingle = padded.charAt(i) * 31L * 31L + padded.charAt(i + 1) * 31L + padded.charAt(i + 2);
+                    for (int j = 0; j < SIGNATURE_LENGTH; j++) {
+                        int hash = (int) mix(shingle ^ SEEDS[j]);
+                        if (hash < minHash[j]) {
+                            minHash[j] = hash;
+                        }
+                    }
+                }
+                empty = false;
+            }
+            if (empty) {
+                //nothing but stop words: fall back to the whole normalized text so "hi" only matches "hi"
+                long whole = ResponseCache.normalize(text).hashCode();
+                for (int j = 0; j < SIGNATURE_LENGTH; j++) {
+                    minHash[j] = (int) mix(whole ^ SEEDS[j]);
+                }
+            }
+            return new Signature(minHash, exactTokens);
+        }
+    }
+}
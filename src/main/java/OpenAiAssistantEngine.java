@@ -1,29 +1,33 @@
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -45,19 +49,62 @@ public class OpenAiAssistantEngine {
     private float dynamicPromptLengthScale = 5;
     private float timeoutFlagSeconds = 60;
     private String currentModel = "gpt-3.5-turbo";
+    private float connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+    private float readTimeoutSeconds = DEFAULT_READ_TIMEOUT_SECONDS;
+    private String baseUrl = DEFAULT_BASE_URL; //e.g. http://localhost:8089/v1 for MockOpenAiServer
+    private boolean fileRetrieval = false; //only send the file chunks most relevant to each message ('file-search' only)
+    private int retrievalTopK = 8;
+    private int retrievalTokenBudget = 2000;
+    private List<String> retrievalPinnedFiles = new ArrayList<>(); //files that are always sent in full, e.g. the user's profile
+    private String databaseExtraction = "full"; //either 'full' (dump every table) or 'query' (only rows related to the message)
+    private TableSerializer tableSerializer = TableSerializer.COMPACT; //how database rows are written into the prompt
+    private FileContentCache fileContentCache = FileContentCache.inMemory(); //unchanged files are never extracted twice
+    private long maxFileBytes = FileIngestor.DEFAULT_MAX_FILE_BYTES; //larger files keep only their head and tail
+    private long maxTotalFileBytes = FileIngestor.DEFAULT_MAX_TOTAL_BYTES;
+    private int contextWindowTokens = -1; //-1 uses the known context window of the current model
+    private int reservedResponseTokens = 1024; //kept free in the context window for the response
+    private ResponseCache responseCache; //answers repeated questions locally, off unless set
+    private NearDuplicateCache nearDuplicateCache; //also answers rephrased questions, off unless set
+    private double nearDuplicateVerifyRate = 0.05; //share of near-duplicate hits also sent upstream to measure precision
+    private boolean historyCompaction = false; //summarize old turns in the background instead of re-sending them
+    private int historyWindowEntries = ConversationCompactor.DEFAULT_WINDOW_ENTRIES; //recent entries always sent verbatim
+    private int historyCompactionThresholdTokens = ConversationCompactor.DEFAULT_THRESHOLD_TOKENS;
+
+    //per-message framing and the fixed wording around files and summary that buildPrompt adds
+    private static final int PROMPT_WRAPPER_TOKENS = 48;
+
+    //http transport (shared between engines with the same connect timeout unless set by the user)
+    public static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+    public static final String DEFAULT_CONVERSATION_ID = "default";
+    private static final String CHAT_COMPLETIONS_PATH = "/chat/completions";
+    private static final float DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    private static final float DEFAULT_READ_TIMEOUT_SECONDS = 60;
+    private OpenAiTransport transport;
+    private RateLimiter rateLimiter; //shared by every engine with the same api key unless set by the user
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private HedgingPolicy hedgingPolicy; //sends a second copy of slow requests, off unless set
+    private MetricsRegistry metrics = MetricsRegistry.global(); //latencies and token/error counts, tagged by model and assistant type
+    private EndpointPool endpointPool; //several base urls and keys with failover, off (baseUrl and the api key are used) unless set
+    private ModelRouter modelRouter; //picks a fast or a strong model per message, off (everything goes to currentModel) unless set
 
     //internal file management
-    private File[] lastUsedFiles;
-    private String fileContents;
-
-    //internal chat management
-    private List<String> chatCache;
-    private String lastPromptUsed;
-    private String lastResponseReceived;
-    private Map<String, Object> responseDataMap;
-
-    //database connection
-    private Connection dbConnection;
+    private volatile File[] lastUsedFiles;
+    private volatile String fileContents;
+    private volatile Bm25Index retrievalIndex;
+    private volatile FileIngestor fileIngestor;
+    private volatile FileIngestor.IngestionReport ingestionReport;
+    private volatile List<SqliteContextExtractor> databaseExtractors = new ArrayList<>();
+
+    //internal chat management (last* and responseDataMap always describe the most recently finished call)
+    private volatile List<String> chatCache;
+    private volatile ConversationCompactor chatCompactor;
+    private volatile ConversationStore conversationStore; //keeps chatCache and its summary in sqlite, off (memory only) unless set
+    private volatile String lastPromptUsed;
+    private volatile String lastResponseReceived;
+    private volatile Map<String, Object> responseDataMap;
+
+    //async calls run on virtual threads shared by every engine
+    private static final ExecutorService virtualThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     // Constructors
     public OpenAiAssistantEngine(String apiKey, String assistantType, String initialInstrction) {
@@ -76,7 +123,39 @@ public class OpenAiAssistantEngine {
         this.USER_API_KEY = jsonConfig.optString("apikey", null);
         this.assistantType = jsonConfig.optString("assistantType", "chat");
         this.initialInstruction = jsonConfig.optString("instruction", null);
-        this.chatCache = new ArrayList<>();
+        this.baseUrl = jsonConfig.optString("baseUrl", DEFAULT_BASE_URL);
+        JSONArray endpointsArray = jsonConfig.optJSONArray("endpoints");
+        if (endpointsArray != null) {
+            this.endpointPool = new EndpointPool();
+            for (int i = 0; i < endpointsArray.length(); i++) {
+                JSONObject endpoint = endpointsArray.getJSONObject(i);
+                endpointPool.add(endpoint.optString("baseUrl", DEFAULT_BASE_URL), endpoint.optString("apikey", USER_API_KEY), endpoint.optInt("weight", 1));
+            }
+        }
+        if (jsonConfig.has("fastModel") && jsonConfig.has("strongModel")) {
+            this.modelRouter = new ModelRouter(jsonConfig.getString("fastModel"), jsonConfig.getString("strongModel"));
+        }
+        this.chatCache = Collections.synchronizedList(new ArrayList<>());
+        this.chatCompactor = new ConversationCompactor(chatCache);
+        TableSerializer configuredSerializer = TableSerializer.forName(jsonConfig.optString("tableFormat", null));
+        if (configuredSerializer != null) {
+            this.tableSerializer = configuredSerializer;
+        } else if (jsonConfig.has("tableFormat")) {
+            System.out.println("Unknown table format " + jsonConfig.get("tableFormat") + ", using " + tableSerializer.getName() + ".");
+        }
+        String conversationStorePath = jsonConfig.optString("conversationStore", null);
+        if (conversationStorePath != null) {
+            ConversationStore store = null;
+            try {
+                store = new ConversationStore(new File(conversationStorePath));
+                setConversationStore(store, jsonConfig.optString("conversationId", DEFAULT_CONVERSATION_ID));
+            } catch (SQLException | IllegalStateException e) {
+                System.out.println("Failed to open conversation store " + conversationStorePath + ": " + e.getMessage());
+                if (store != null) {
+                    store.close();
+                }
+            }
+        }
 
         JSONArray filesArray = jsonConfig.optJSONArray("files");
         if (filesArray != null) {
@@ -139,7 +218,7 @@ public class OpenAiAssistantEngine {
     }
 
     public void clearAllCachedTokens() {
-        makeCallToChatGPT("Clear all cached tokens.");
+        makeCallToChatGPT("Clear all cached tokens.", ChatMessages.ofUser("Clear all cached tokens."));
     }
 
     public File[] getFiles() {
@@ -154,13 +233,36 @@ public class OpenAiAssistantEngine {
         return chatCache;
     }
 
+    //with a conversation store this replaces the stored conversation (and drops its summary) in one transaction
     public void setChatCache(List<String> chatCache) {
-        this.chatCache.clear();
-        this.chatCache.addAll(chatCache);
+        List<String> entries = new ArrayList<>(chatCache);
+        List<String> history = this.chatCache;
+        ConversationStore.atomically(history, () -> {
+            history.clear();
+            history.addAll(entries);
+            chatCompactor.reset();
+        });
     }
 
     public void clearChatCache() {
-        chatCache.clear();
+        List<String> history = chatCache;
+        ConversationStore.atomically(history, () -> {
+            history.clear();
+            chatCompactor.reset();
+        });
+    }
+
+    //summary of the turns that compaction has removed from the chat cache, null if there are none
+    public String getChatSummary() {
+        return chatCompactor.getSummary();
+    }
+
+    public void setChatSummary(String summary) {
+        chatCompactor.setSummary(summary);
+    }
+
+    public ConversationCompactor getChatCompactor() {
+        return chatCompactor;
     }
 
     public void setDynamicPromptLength(boolean dynamicPromptLength) {
@@ -245,18 +347,305 @@ public class OpenAiAssistantEngine {
         return dynamicPromptLengthScale;
     }
 
+    public void setConnectTimeoutSeconds(float connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public float getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public void setReadTimeoutSeconds(float readTimeoutSeconds) {
+        this.readTimeoutSeconds = readTimeoutSeconds;
+    }
+
+    public float getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+
+    //everything up to the api paths, chat completions are sent to baseUrl + "/chat/completions"
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl == null ? DEFAULT_BASE_URL : baseUrl.replaceAll("/+$", "");
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setTransport(OpenAiTransport transport) {
+        this.transport = transport;
+    }
+
+    public OpenAiTransport getTransport() {
+        return transport != null ? transport : OpenAiTransport.shared(connectTimeoutSeconds);
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter != null ? rateLimiter : RateLimiter.forApiKey(USER_API_KEY);
+    }
+
+    //requests and tokens per minute for this engine's rate limiter (otherwise learned from the api's headers)
+    public void setRateLimits(int requestsPerMinute, int tokensPerMinute) {
+        getRateLimiter().setLimits(requestsPerMinute, tokensPerMinute);
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    public void setEndpointPool(EndpointPool endpointPool) {
+        this.endpointPool = endpointPool;
+    }
+
+    public EndpointPool getEndpointPool() {
+        return endpointPool;
+    }
+
+    /*
+     * Keeps the chat cache and its summary in the store under conversationId: what an earlier run (or another
+     * instance, during a deploy) left there is picked up as it was, and every turn added from now on is saved. The
+     * store is shared, several engines can each have their own conversation in it; null goes back to a chat cache
+     * in memory only. If the stored conversation can't be read this throws IllegalStateException and keeps the
+     * chat cache it had.
+     */
+    public void setConversationStore(ConversationStore store, String conversationId) {
+        if (store == null) {
+            this.conversationStore = null;
+            this.chatCache = Collections.synchronizedList(new ArrayList<>());
+            this.chatCompactor = new ConversationCompactor(chatCache);
+            return;
+        }
+        ConversationStore.Conversation conversation = store.conversation(conversationId);
+        ConversationCompactor compactor = new ConversationCompactor(conversation, conversation.getSummary());
+        compactor.setSummaryListener(conversation::setSummary);
+        this.conversationStore = store;
+        this.chatCache = conversation;
+        this.chatCompactor = compactor;
+    }
+
+    public ConversationStore getConversationStore() {
+        return conversationStore;
+    }
+
+    //the id the chat cache is stored under, null without a conversation store
+    public String getConversationId() {
+        return chatCache instanceof ConversationStore.Conversation conversation ? conversation.getId() : null;
+    }
+
+    public void setModelRouter(ModelRouter modelRouter) {
+        this.modelRouter = modelRouter;
+    }
+
+    public ModelRouter getModelRouter() {
+        return modelRouter;
+    }
+
+    public void setFileRetrieval(boolean fileRetrieval) {
+        this.fileRetrieval = fileRetrieval;
+    }
+
+    public boolean getFileRetrieval() {
+        return fileRetrieval;
+    }
+
+    public void setRetrievalTopK(int retrievalTopK) {
+        this.retrievalTopK = retrievalTopK;
+    }
+
+    public int getRetrievalTopK() {
+        return retrievalTopK;
+    }
+
+    public void setRetrievalTokenBudget(int retrievalTokenBudget) {
+        this.retrievalTokenBudget = retrievalTokenBudget;
+    }
+
+    public int getRetrievalTokenBudget() {
+        return retrievalTokenBudget;
+    }
+
+    public void setRetrievalPinnedFiles(List<String> retrievalPinnedFiles) {
+        this.retrievalPinnedFiles = new ArrayList<>(retrievalPinnedFiles);
+    }
+
+    public List<String> getRetrievalPinnedFiles() {
+        return retrievalPinnedFiles;
+    }
+
+    public void setDatabaseExtraction(String databaseExtraction) {
+        if (!databaseExtraction.equals(this.databaseExtraction)) {
+            this.databaseExtraction = databaseExtraction;
+            if (files != null) {
+                processFileContents();
+            }
+        }
+    }
+
+    public String getDatabaseExtraction() {
+        return databaseExtraction;
+    }
+
+    public void setTableSerializer(TableSerializer tableSerializer) {
+        if (!tableSerializer.getName().equals(this.tableSerializer.getName())) {
+            this.tableSerializer = tableSerializer;
+            if (files != null) {
+                processFileContents();
+            }
+        }
+    }
+
+    public TableSerializer getTableSerializer() {
+        return tableSerializer;
+    }
+
+    //persists extracted file contents in the directory so restarts do not re-read unchanged files
+    public void setFileCacheDirectory(String directory) {
+        this.fileContentCache = directory == null ? FileContentCache.inMemory() : FileContentCache.forDirectory(directory);
+    }
+
+    public FileContentCache getFileContentCache() {
+        return fileContentCache;
+    }
+
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public void setMaxTotalFileBytes(long maxTotalFileBytes) {
+        this.maxTotalFileBytes = maxTotalFileBytes;
+    }
+
+    public long getMaxTotalFileBytes() {
+        return maxTotalFileBytes;
+    }
+
+    //per-file sizes and timings of the last time the files were processed
+    public FileIngestor.IngestionReport getIngestionReport() {
+        return ingestionReport;
+    }
+
+    public void setContextWindowTokens(int contextWindowTokens) {
+        this.contextWindowTokens = contextWindowTokens;
+    }
+
+    public int getContextWindowTokens() {
+        if (contextWindowTokens > 0) {
+            return contextWindowTokens;
+        }
+        //a routed prompt has to fit whichever model it ends up on
+        ModelRouter router = modelRouter;
+        if (router != null) {
+            return Math.min(PromptAssembler.contextWindowFor(router.getFastModel()), PromptAssembler.contextWindowFor(router.getStrongModel()));
+        }
+        return PromptAssembler.contextWindowFor(currentModel);
+    }
+
+    public void setReservedResponseTokens(int reservedResponseTokens) {
+        this.reservedResponseTokens = reservedResponseTokens;
+    }
+
+    public int getReservedResponseTokens() {
+        return reservedResponseTokens;
+    }
+
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public void setNearDuplicateCache(NearDuplicateCache nearDuplicateCache) {
+        this.nearDuplicateCache = nearDuplicateCache;
+    }
+
+    public NearDuplicateCache getNearDuplicateCache() {
+        return nearDuplicateCache;
+    }
+
+    public void setNearDuplicateVerifyRate(double nearDuplicateVerifyRate) {
+        this.nearDuplicateVerifyRate = nearDuplicateVerifyRate;
+    }
+
+    public double getNearDuplicateVerifyRate() {
+        return nearDuplicateVerifyRate;
+    }
+
+    public void setHistoryCompaction(boolean historyCompaction) {
+        this.historyCompaction = historyCompaction;
+    }
+
+    public boolean getHistoryCompaction() {
+        return historyCompaction;
+    }
+
+    public void setHistoryWindowEntries(int historyWindowEntries) {
+        this.historyWindowEntries = historyWindowEntries;
+    }
+
+    public int getHistoryWindowEntries() {
+        return historyWindowEntries;
+    }
+
+    public void setHistoryCompactionThresholdTokens(int historyCompactionThresholdTokens) {
+        this.historyCompactionThresholdTokens = historyCompactionThresholdTokens;
+    }
+
+    public int getHistoryCompactionThresholdTokens() {
+        return historyCompactionThresholdTokens;
+    }
+
     // Public Methods
     public String chatGPT(String message, boolean format) {
         if (!isValidConfiguration()) {
             return getInvalidConfigurationMessage();
         }
-        String response = makeCallToChatGPT(buildPrompt(message));
+        ChatMessages prompt = buildPrompt(message);
+        String cacheKey = responseCacheKey(message, prompt);
+        ChatResult cached = cachedResult(message, prompt, cacheKey);
+        String response;
+        if (cached != null) {
+            publishResult(cached);
+            response = cached.getResponse();
+        } else {
+            response = makeCallToChatGPT(message, prompt);
+            storeCachedResponse(cacheKey, message, prompt, response);
+        }
         if (maxPromptPrecision && response.trim().length() > maxPromptLength) {
             chatGPT(message, format);
         }
         if (response != null && !response.isEmpty()) {
-            chatCache.add("User: " + message);
-            chatCache.add("You: " + response);
+            addTurnToChatCache(chatCache, message, response);
+            compactHistory(chatCompactor);
         }
         if ("code-interpreter".equals(assistantType) && response != null && !response.isEmpty()) {
             response += processCodeBlocksForCodeInterpreter(response);
@@ -264,8 +653,106 @@ public class OpenAiAssistantEngine {
         return format ? formatMarkdown(response) : response;
     }
 
+    public String chatGPTStream(String message, boolean format, ChatStreamListener listener) {
+        if (!isValidConfiguration()) {
+            String invalidConfigurationMessage = getInvalidConfigurationMessage();
+            listener.onError(invalidConfigurationMessage);
+            return invalidConfigurationMessage;
+        }
+        if (format) {
+            listener = formattingListener(listener);
+        }
+        ChatMessages prompt = buildPrompt(message);
+        String cacheKey = responseCacheKey(message, prompt);
+        ChatResult cached = cachedResult(message, prompt, cacheKey);
+        String response;
+        if (cached != null) {
+            publishResult(cached);
+            response = cached.getResponse();
+            listener.onDelta(response);
+            listener.onComplete(response);
+        } else {
+            response = makeStreamingCallToChatGPT(message, prompt, listener);
+            storeCachedResponse(cacheKey, message, prompt, response);
+        }
+        if (response != null && !response.isEmpty()) {
+            addTurnToChatCache(chatCache, message, response);
+            compactHistory(chatCompactor);
+        }
+        if ("code-interpreter".equals(assistantType) && response != null && !response.isEmpty()) {
+            response += processCodeBlocksForCodeInterpreter(response);
+        }
+        return format ? formatMarkdown(response) : response;
+    }
+
+    public CompletableFuture<ChatResult> chatGPTAsync(String message) {
+        return chatGPTAsync(message, false);
+    }
+
+    public CompletableFuture<ChatResult> chatGPTAsync(String message, boolean format) {
+        return chatGPTAsync(message, format, chatCache, chatCompactor);
+    }
+
+    //uses the given history instead of the engine's own chat cache so one engine can serve many conversations
+    public CompletableFuture<ChatResult> chatGPTAsync(String message, boolean format, List<String> history) {
+        return chatGPTAsync(message, format, history, null);
+    }
+
+    //same as above, with old turns of the history compacted into the compactor's summary when compaction is on
+    public CompletableFuture<ChatResult> chatGPTAsync(String message, boolean format, List<String> history, ConversationCompactor compactor) {
+        if (!isValidConfiguration()) {
+            return CompletableFuture.completedFuture(ChatResult.failed(message, null, getInvalidConfigurationMessage()));
+        }
+        CompletableFuture<ChatResult> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<ChatResult>> inFlight = new AtomicReference<>();
+        //prompt building can re-read files, so it runs on a virtual thread instead of the caller's
+        virtualThreadExecutor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<ChatResult> call;
+            ChatMessages prompt;
+            String cacheKey;
+            try {
+                prompt = buildPrompt(message, history, compactor != null ? compactor.getSummary() : null);
+                cacheKey = responseCacheKey(message, prompt);
+                ChatResult cached = cachedResult(message, prompt, cacheKey);
+                if (cached != null) {
+                    result.complete(finishAsyncChat(cached, format, history, compactor));
+                    return;
+                }
+                call = sendRoutedChatRequest(message, prompt);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            inFlight.set(call);
+            if (result.isDone()) {
+                call.cancel(true);
+                return;
+            }
+            call.whenComplete((chatResult, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    storeCachedResponse(cacheKey, message, prompt, chatResult.getResponse());
+                    result.complete(finishAsyncChat(chatResult, format, history, compactor));
+                }
+            });
+        });
+        //cancelling the returned future aborts the http exchange, timeoutFlagSeconds is applied by the transport
+        result.whenComplete((chatResult, error) -> {
+            CompletableFuture<ChatResult> call = inFlight.get();
+            if (error != null && call != null) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
     public String forceDirectChatGPT(String message, boolean format) {
-        return format ? formatMarkdown(makeCallToChatGPT(message)) : makeCallToChatGPT(message);
+        String response = makeCallToChatGPT(message, ChatMessages.ofUser(message));
+        return format ? formatMarkdown(response) : response;
     }
 
     public int setFiles(File[] userFiles) {
@@ -319,29 +806,19 @@ public class OpenAiAssistantEngine {
     }
 
     public static boolean testAPIKey(String apiKey) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<Boolean> future = executor.submit(() -> {
-            String url = "https://api.openai.com/v1/engines";
-            try {
-                URL obj = new URL(url);
-                HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-                con.setRequestMethod("GET");
-                con.setRequestProperty("Authorization", "Bearer " + apiKey);
-                int responseCode = con.getResponseCode();
-                return responseCode == 200;
-            } catch (IOException e) {
-                return false;
-            }
-        });
+        return testAPIKey(apiKey, DEFAULT_BASE_URL);
+    }
+
+    public static boolean testAPIKey(String apiKey, String baseUrl) {
+        OpenAiTransport transport = OpenAiTransport.shared(DEFAULT_CONNECT_TIMEOUT_SECONDS);
+        HttpRequest request = transport.newRequest(baseUrl + "/models", apiKey, 10).GET().build();
         try {
-            return future.get(10, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            future.cancel(true);
+            return transport.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (IOException e) {
             return false;
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
-        } finally {
-            executor.shutdown();
         }
     }
 
@@ -350,7 +827,8 @@ public class OpenAiAssistantEngine {
         this.USER_API_KEY = apiKey;
         this.assistantType = assistantType;
         this.initialInstruction = initialInstrction;
-        this.chatCache = new ArrayList<>();
+        this.chatCache = Collections.synchronizedList(new ArrayList<>());
+        this.chatCompactor = new ConversationCompactor(chatCache);
         this.files = userFiles;
         if (userFiles != null) {
             lastUsedFiles = files;
@@ -360,11 +838,11 @@ public class OpenAiAssistantEngine {
 
     private boolean isValidConfiguration() {
         boolean validAssistantType = "chat".equals(assistantType) || "file-search".equals(assistantType) || "code-interpreter".equals(assistantType);
-        return USER_API_KEY != null && initialInstruction != null && assistantType != null && validAssistantType;
+        return (USER_API_KEY != null || endpointPool != null) && initialInstruction != null && assistantType != null && validAssistantType;
     }
 
     private String getInvalidConfigurationMessage() {
-        if (USER_API_KEY == null) {
+        if (USER_API_KEY == null && endpointPool == null) {
             return "API key not set.";
         }
         if (initialInstruction == null) {
@@ -376,177 +854,719 @@ public class OpenAiAssistantEngine {
         return "Invalid configuration.";
     }
 
-    private String buildPrompt(String message) {
-        StringBuilder prompt = new StringBuilder(initialInstruction);
+    private synchronized Bm25Index getRetrievalIndex() {
+        if (retrievalIndex == null) {
+            retrievalIndex = new Bm25Index(fileContents);
+        }
+        return retrievalIndex;
+    }
+
+    private ChatMessages buildPrompt(String message) {
+        return buildPrompt(message, chatCache, chatCompactor.getSummary());
+    }
+
+    /*
+     * Lays the request out so its beginning is the same on every turn: the instruction and the full file
+     * contents come first, then the summary and history, and only then what depends on the latest message
+     * (retrieved chunks, database rows, a dynamic length limit) right before the message itself. Providers
+     * cache a repeated prefix, so only the part after it is processed again.
+     */
+    private ChatMessages buildPrompt(String message, List<String> history, String historySummary) {
+        long buildStart = System.nanoTime();
+        List<String> historySnapshot;
+        synchronized (history) {
+            historySnapshot = new ArrayList<>(history);
+        }
+        StringBuilder instruction = new StringBuilder(initialInstruction);
+        StringBuilder turnContext = new StringBuilder();
+        //a dynamic limit changes with the message's length, so it is a message of its own that cache keys leave out
+        String lengthLimit = null;
         if (maxPromptLength != -1 && !"code-interpreter".equals(assistantType)) {
             int promptLength = dynamicPromptLength ? (int) Math.max(message.trim().length() * dynamicPromptLengthScale, 100) : maxPromptLength;
-            prompt.append(" Please keep the response length under ").append(promptLength).append(" characters.");
-        }
-        if (!chatCache.isEmpty() && chatCache.size() > 1) {
-            prompt.append(" This is the chat history between you and the user: [ ").append(chatCache).append(" ]");
-            prompt.append(" This is the latest message from the user: [").append(message).append("] ");
-        } else {
-            prompt.append(" This is the first message from the user: [").append(message).append("] ");
+            String limit = "Please keep the response length under " + promptLength + " characters.";
+            if (dynamicPromptLength) {
+                lengthLimit = limit;
+            } else {
+                instruction.append(" ").append(limit);
+            }
         }
+        String contextLabel = null;
+        String context = null;
+        boolean contextInPrefix = false;
         if ("file-search".equals(assistantType)) {
             if (lastUsedFiles != files) {
                 processFileContents();
             }
-            prompt.append(" This is the contents of the provided files from the user: [ ").append(fileContents).append(" ]");
-            if (cacheTokens) {
-                prompt.append(" Please keep this content of these files in cached tokens.");
+            if (fileRetrieval) {
+                contextLabel = "These are the parts of the provided files from the user most relevant to the latest message: [ ";
+                context = getRetrievalIndex().searchAsText(message, retrievalTopK, retrievalTokenBudget, retrievalPinnedFiles);
+            } else {
+                contextLabel = "This is the contents of the provided files from the user: [ ";
+                context = fileContents;
+                contextInPrefix = true;
+            }
+            List<SqliteContextExtractor> extractors = databaseExtractors;
+            if (!extractors.isEmpty()) {
+                //the user's profile (any non-database file) names the student, the message names courses, departments, etc.
+                String entityText = message + "\n" + fileContents;
+                for (SqliteContextExtractor extractor : extractors) {
+                    turnContext.append(" These are the rows of ").append(extractor.getFile().getName()).append(" related to the latest message: [ ").append(extractor.extract(entityText)).append(" ]");
+                }
             }
         }
         if ("code-interpreter".equals(assistantType)) {
             if (lastUsedFiles != files) {
                 processFileContents();
             }
-            prompt.append(" These are the files provided by the user: [ ").append(fileContents).append(" ]");
-            prompt.append(" If the user requests edit be made to the code please return the updated code block in full, and only return the code block if any edits were made.");
+            instruction.append(" If the user requests edit be made to the code please return the updated code block in full, and only return the code block if any edits were made.");
+            contextLabel = "These are the files provided by the user: [ ";
+            context = fileContents;
+            contextInPrefix = true;
         }
-        return prompt.toString();
+
+        //drop old history and cut the file context if the whole prompt would not fit in the model's context window
+        int fixedTokens = TokenCounter.count(instruction.toString()) + TokenCounter.count(turnContext.toString()) + TokenCounter.count(lengthLimit) + TokenCounter.count(historySummary) + TokenCounter.count(message) + TokenCounter.count(contextLabel) + PROMPT_WRAPPER_TOKENS;
+        PromptAssembler.Fitted fitted = new PromptAssembler(getContextWindowTokens() - reservedResponseTokens).fit(fixedTokens, historySnapshot, context);
+        if (fitted.droppedHistoryEntries() > 0 || fitted.contextTruncated()) {
+            System.out.println("OpenAI: prompt trimmed to fit " + currentModel + " (dropped " + fitted.droppedHistoryEntries() + " history entries" + (fitted.contextTruncated() ? ", file contents truncated" : "") + ").");
+        }
+
+        List<ChatMessages.Message> messages = new ArrayList<>();
+        messages.add(new ChatMessages.Message("system", instruction.toString()));
+        if (contextLabel != null && contextInPrefix) {
+            messages.add(new ChatMessages.Message("system", contextLabel + fitted.context() + " ]"));
+        }
+        int prefixLength = messages.size();
+        if (historySummary != null) {
+            messages.add(new ChatMessages.Message("system", "This is a summary of the earlier chat between you and the user: [ " + historySummary + " ]"));
+        }
+        messages.addAll(ChatMessages.fromHistory(fitted.history()));
+        if (contextLabel != null && !contextInPrefix) {
+            turnContext.insert(0, contextLabel + fitted.context() + " ]");
+        }
+        int turnStart = messages.size();
+        if (turnContext.length() > 0) {
+            messages.add(new ChatMessages.Message("system", turnContext.toString().trim()));
+        }
+        int lengthLimitIndex = -1;
+        if (lengthLimit != null) {
+            lengthLimitIndex = messages.size();
+            messages.add(new ChatMessages.Message("system", lengthLimit));
+        }
+        messages.add(new ChatMessages.Message("user", message));
+        histogram("aichatbot_prompt_build", "Time to build a prompt, including any file re-reads and database queries.").recordNanos(System.nanoTime() - buildStart);
+        return new ChatMessages(messages, prefixLength, turnStart, lengthLimitIndex);
     }
 
-    private String makeCallToChatGPT(String message) {
+    private String makeCallToChatGPT(String message, ChatMessages prompt) {
         //System.out.println("OpenAI: " + System.currentTimeMillis() + " Processing message: " + message);
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<String> future = executor.submit(() -> {
-            long startTime = System.currentTimeMillis();
-            String url = "https://api.openai.com/v1/chat/completions";
-            String apiKey = USER_API_KEY;
-            String sentMessage = filterMessage(message);
-            lastPromptUsed = sentMessage;
-            StringBuilder response = new StringBuilder();
+        CompletableFuture<ChatResult> future = sendRoutedChatRequest(message, prompt);
+        ChatResult result;
+        try {
+            //the transport enforces timeoutFlagSeconds once the request is actually sent
+            result = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            future.cancel(true);
+            if (isTimeout(e)) {
+                System.out.println("OpenAI API connection timed out after " + timeoutFlagSeconds + " seconds.");
+            } else {
+                System.out.println("OpenAI: " + System.currentTimeMillis() + " An error occurred while processing the request. " + e.getMessage());
+            }
+            return null;
+        }
+        publishResult(result);
+        return result.getResponse();
+    }
+
+    private CompletableFuture<ChatResult> sendChatRequest(String message, ChatMessages prompt) {
+        return sendChatRequest(message, prompt, currentModel);
+    }
+
+    /*
+     * With a model router the message goes to the model it picks. A fast answer that was cut off, is empty or
+     * hedges is asked again of the strong model with the same prompt, and that answer is the one returned.
+     * The route (and any escalation) is added to the response data.
+     */
+    private CompletableFuture<ChatResult> sendRoutedChatRequest(String message, ChatMessages prompt) {
+        ModelRouter router = modelRouter;
+        if (router == null) {
+            return sendChatRequest(message, prompt, currentModel);
+        }
+        ModelRouter.Decision decision = router.route(message, routingContext(prompt));
+        long startNanos = System.nanoTime();
+        return sendChatRequest(message, prompt, decision.model()).thenCompose(result -> {
+            recordRoute(router, decision.route(), startNanos, result.getTotalTokens());
+            Map<String, Object> routeData = new HashMap<>();
+            routeData.put("route", decision.route().label());
+            routeData.put("route_reason", decision.reason());
+            //a failed call (a 4xx, an unreadable body) would fail the same way on the strong model, so only answers are judged
+            String reason = decision.route() == ModelRouter.Route.FAST && result.getError() == null ? router.escalationReason(result.getResponse(), finishReasonOf(result)) : null;
+            if (reason == null) {
+                return CompletableFuture.completedFuture(result.withResponseData(routeData));
+            }
+            router.recordEscalation();
+            metrics.counter("aichatbot_route_escalations", "Fast answers sent again to the strong model.", "reason", reason, "assistant_type", String.valueOf(assistantType)).increment();
+            routeData.put("escalated_from", decision.model());
+            routeData.put("escalation_reason", reason);
+            long escalationStart = System.nanoTime();
+            return sendChatRequest(message, prompt, router.getStrongModel()).thenApply(strongResult -> {
+                recordRoute(router, ModelRouter.Route.STRONG, escalationStart, strongResult.getTotalTokens());
+                return strongResult.withResponseData(routeData);
+            });
+        });
+    }
+
+    //what was looked up for this message: the system messages after the cacheable prefix (summary, retrieved chunks, database rows)
+    private static String routingContext(ChatMessages prompt) {
+        List<ChatMessages.Message> messages = prompt.getMessages();
+        StringBuilder context = new StringBuilder();
+        for (int i = prompt.getPrefixLength(); i < messages.size(); i++) {
+            ChatMessages.Message message = messages.get(i);
+            if ("system".equals(message.role())) {
+                context.append(message.content()).append('\n');
+            }
+        }
+        return context.length() > 0 ? context.toString() : null;
+    }
+
+    private static String finishReasonOf(ChatResult result) {
+        ChatCompletion completion = result.getCompletion();
+        return completion != null ? completion.getFinishReason() : null;
+    }
+
+    private void recordRoute(ModelRouter router, ModelRouter.Route route, long startNanos, int totalTokens) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        router.recordResult(route, latencyNanos, totalTokens);
+        String routeName = route.label();
+        metrics.counter("aichatbot_route_requests", "Requests sent on each model route.", "route", routeName, "assistant_type", String.valueOf(assistantType)).increment();
+        metrics.counter("aichatbot_route_tokens", "Tokens billed on each model route.", "route", routeName, "assistant_type", String.valueOf(assistantType)).add(totalTokens);
+        metrics.histogram("aichatbot_route_latency", "Time from sending a request on a model route to its response.", "route", routeName, "assistant_type", String.valueOf(assistantType)).recordNanos(latencyNanos);
+    }
+
+    //does not touch any mutable engine state so any number of calls can be in flight at once
+    private CompletableFuture<ChatResult> sendChatRequest(String message, ChatMessages prompt, String model) {
+        long startTime = System.currentTimeMillis();
+        String sentMessage = prompt.toJson();
+        String body = buildRequestBody(prompt, false, model);
+        int estimatedTokens = prompt.estimateTokens();
+        HedgingPolicy hedging = hedgingPolicy;
+        long startNanos = System.nanoTime();
+        counter("aichatbot_requests", "Requests sent to the api, not counting retries and hedges.", model).increment();
+        //the headers arrive before the body is read, which is when the handler is asked for a subscriber
+        HttpResponse.BodyHandler<byte[]> bodyHandler = responseInfo -> {
+            histogram("aichatbot_time_to_first_byte", "Time from sending a request to its response headers.", model).recordNanos(System.nanoTime() - startNanos);
+            return HttpResponse.BodySubscribers.ofByteArray();
+        };
+        Runnable onRetry = () -> counter("aichatbot_retries", "Requests sent again after a 429, server error or dropped connection.", model).increment();
+        Supplier<CompletableFuture<HttpResponse<byte[]>>> send = () -> sendChatCompletion(body, bodyHandler, estimatedTokens, onRetry);
+        CompletableFuture<HttpResponse<byte[]>> exchange = hedging != null ? hedging.call(send, httpResponse -> httpResponse.statusCode() < 400) : send.get();
+        CompletableFuture<ChatResult> result = exchange.thenApply(httpResponse -> {
+            if (httpResponse.statusCode() >= 400) {
+                counter("aichatbot_errors", "Requests that failed with an error status, a connection error or an unreadable response.", model).increment();
+                System.out.println(System.currentTimeMillis() + " Server returned HTTP response code: " + httpResponse.statusCode() + " for URL: " + httpResponse.uri());
+                return ChatResult.failed(message, sentMessage, new String(httpResponse.body(), StandardCharsets.UTF_8));
+            }
+            //one pass over the bytes as received, the raw json only becomes a string if someone asks for it
+            ChatCompletion completion;
             try {
-                URL obj = new URL(url);
-                HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-                con.setRequestMethod("POST");
-                con.setRequestProperty("Authorization", "Bearer " + apiKey);
-                con.setRequestProperty("Content-Type", "application/json");
-                String body = "{\"model\": \"" + currentModel + "\", \"messages\": [{\"role\": \"user\", \"content\": \"" + sentMessage + "\"}]}";
-                con.setDoOutput(true);
-                try (OutputStreamWriter writer = new OutputStreamWriter(con.getOutputStream())) {
-                    writer.write(body);
-                    writer.flush();
-                }
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))) {
-                    String inputLine;
-                    response = new StringBuilder();
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                    }
-                }
-                responseDataMap = parseJSONResponse(response.toString());
-                lastResponseReceived = extractContentFromJSON(response.toString());
-                long endTime = System.currentTimeMillis();
-                responseDataMap.put("processing_time_ms", endTime - startTime);
-                responseDataMap.put("total_tokens", extractTotalTokensFromJSON(response.toString()));
-                if (files != null && assistantType.equals("file-search")) {
-                    List<String> fileNames = new ArrayList<>();
-                    for (File file : files) {
-                        fileNames.add(file.getName());
-                    }
-                    responseDataMap.put("file_names", fileNames);
-                }
-                responseDataMap.put("assistant_type", assistantType);
-                responseDataMap.put("initial_instrution", initialInstruction);
-                responseDataMap.put("received_message_length", lastResponseReceived.trim().length());
-                return lastResponseReceived;
-            } catch (IOException e) {
-                System.out.println(System.currentTimeMillis() + " " + e.getMessage());
-                lastResponseReceived = response.toString();
-                return null;
+                completion = ChatCompletion.parse(httpResponse.body());
+            } catch (JSONException e) {
+                counter("aichatbot_errors", "Requests that failed with an error status, a connection error or an unreadable response.", model).increment();
+                System.out.println("Failed to parse JSON response: " + e.getMessage());
+                return ChatResult.failed(message, sentMessage, "Failed to parse JSON response: " + e.getMessage());
+            }
+            Map<String, Object> responseData = new HashMap<>();
+            addCompletionData(responseData, completion);
+            responseData.put("processing_time_ms", System.currentTimeMillis() - startTime);
+            reconcileRateLimit(httpResponse, estimatedTokens, completion.getUsage().totalTokens(), responseData);
+            responseData.put("estimated_prompt_tokens", estimatedTokens);
+            addEngineResponseData(responseData, completion.getContent());
+            histogram("aichatbot_request_latency", "Time from sending a request to its parsed response.", model).recordNanos(System.nanoTime() - startNanos);
+            recordUsage(completion.getUsage(), model);
+            return new ChatResult(message, sentMessage, completion.getContent(), null, responseData);
+        });
+        result.whenComplete((chatResult, error) -> {
+            if (error != null) {
+                recordFailure(error, model);
+                exchange.cancel(true);
             }
         });
+        return result;
+    }
+
+    private ChatResult finishAsyncChat(ChatResult result, boolean format, List<String> history, ConversationCompactor compactor) {
+        publishResult(result);
+        String response = result.getResponse();
+        if (response == null || response.isEmpty()) {
+            return result;
+        }
+        addTurnToChatCache(history, result.getMessage(), response);
+        if (compactor != null) {
+            compactHistory(compactor);
+        }
+        if ("code-interpreter".equals(assistantType)) {
+            response += processCodeBlocksForCodeInterpreter(response);
+        }
+        return result.withResponse(format ? formatMarkdown(response) : response);
+    }
+
+    //the legacy getters report on whichever call finished last
+    private void publishResult(ChatResult result) {
+        lastPromptUsed = result.getPrompt();
+        if (result.getError() != null) {
+            lastResponseReceived = result.getError();
+            return;
+        }
+        lastResponseReceived = result.getResponse();
+        responseDataMap = new HashMap<>(result.getResponseData());
+    }
+
+    private static void addTurnToChatCache(List<String> history, String message, String response) {
+        synchronized (history) {
+            history.add("User: " + message);
+            history.add("You: " + response);
+        }
+    }
+
+    private String responseCacheKey(String message, ChatMessages prompt) {
+        return responseCache != null ? ResponseCache.keyFor(currentModel, message, prompt) : null;
+    }
+
+    //a response from the cache dressed up like a call that cost nothing, null on a miss
+    private ChatResult cachedResult(String message, ChatMessages prompt, String cacheKey) {
+        long startTime = System.nanoTime();
+        String response = cacheKey != null ? responseCache.get(cacheKey) : null;
+        NearDuplicateCache.Match match = null;
+        if (response == null && nearDuplicateCache != null) {
+            match = nearDuplicateCache.lookup(ResponseCache.contextKeyFor(currentModel, prompt), message);
+            if (match != null) {
+                response = match.response();
+                verifyNearDuplicate(match, prompt);
+            }
+        }
+        if (response == null) {
+            return null;
+        }
+        counter("aichatbot_cache_hits", "Messages answered from the response or near-duplicate cache.").increment();
+        Map<String, Object> responseData = new HashMap<>();
+        responseData.put("cache_hit", true);
+        if (match != null) {
+            responseData.put("cache_similarity", match.similarity());
+            responseData.put("cache_matched_message", match.matchedMessage());
+        }
+        responseData.put("total_tokens", 0);
+        responseData.put("processing_time_ms", (System.nanoTime() - startTime) / 1000000);
+        responseData.put("processing_time_us", (System.nanoTime() - startTime) / 1000);
+        addEngineResponseData(responseData, response);
+        return new ChatResult(message, prompt.toJson(), response, null, responseData);
+    }
+
+    //responses that maxPromptPrecision would retry are not kept, otherwise the retry would hit them forever
+    private void storeCachedResponse(String cacheKey, String message, ChatMessages prompt, String response) {
+        if (response == null || response.isEmpty() || (maxPromptPrecision && response.trim().length() > maxPromptLength)) {
+            return;
+        }
+        if (cacheKey != null) {
+            responseCache.put(cacheKey, response);
+        }
+        NearDuplicateCache cache = nearDuplicateCache;
+        if (cache != null) {
+            String contextKey = ResponseCache.contextKeyFor(currentModel, prompt);
+            cache.recordMiss(contextKey, message, response);
+            cache.put(contextKey, message, response);
+        }
+    }
+
+    //sends a sample of near-duplicate hits upstream anyway, in the background, to see if the cached answer holds up
+    private void verifyNearDuplicate(NearDuplicateCache.Match match, ChatMessages prompt) {
+        if (nearDuplicateVerifyRate <= 0 || ThreadLocalRandom.current().nextDouble() >= nearDuplicateVerifyRate) {
+            return;
+        }
+        NearDuplicateCache cache = nearDuplicateCache;
+        sendChatRequest(match.message(), prompt).thenAccept(result -> {
+            if (result.isSuccessful()) {
+                cache.recordVerification(match, result.getResponse());
+            }
+        });
+    }
+
+    //starts a background summary of the old turns once they pass the threshold, never waits for it
+    private void compactHistory(ConversationCompactor compactor) {
+        if (historyCompaction) {
+            compactor.maybeCompact(historyWindowEntries, historyCompactionThresholdTokens, this::summarizeHistory);
+        }
+    }
+
+    //a plain request that leaves the last* getters alone, so a summary never shows up as the user's response
+    private CompletableFuture<String> summarizeHistory(String summaryPrompt) {
+        return sendChatRequest(summaryPrompt, ChatMessages.ofUser(summaryPrompt)).thenApply(result -> {
+            if (!result.isSuccessful()) {
+                throw new IllegalStateException(result.getError());
+            }
+            return result.getResponse();
+        });
+    }
+
+    private String makeStreamingCallToChatGPT(String message, ChatMessages prompt, ChatStreamListener listener) {
+        long startTime = System.currentTimeMillis();
+        String sentMessage = prompt.toJson();
+        //streamed answers are routed but never escalated, the listener has already shown them
+        ModelRouter router = modelRouter;
+        ModelRouter.Decision decision = router != null ? router.route(message, routingContext(prompt)) : null;
+        String model = decision != null ? decision.model() : currentModel;
+        String body = buildRequestBody(prompt, true, model);
+        int estimatedTokens = prompt.estimateTokens();
+        long startNanos = System.nanoTime();
+        counter("aichatbot_requests", "Requests sent to the api, not counting retries and hedges.", model).increment();
+        Runnable onRetry = () -> counter("aichatbot_retries", "Requests sent again after a 429, server error or dropped connection.", model).increment();
+        CompletableFuture<HttpResponse<Stream<String>>> future = sendChatCompletion(body, HttpResponse.BodyHandlers.ofLines(), estimatedTokens, onRetry);
+        HttpResponse<Stream<String>> httpResponse;
         try {
-            return future.get((long) timeoutFlagSeconds, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
+            httpResponse = future.get();
+            histogram("aichatbot_time_to_first_byte", "Time from sending a request to its response headers.", model).recordNanos(System.nanoTime() - startNanos);
+        } catch (InterruptedException | ExecutionException e) {
             future.cancel(true);
-            System.out.println("OpenAI API connection timed out after " + timeoutFlagSeconds + " seconds.");
+            recordFailure(e, model);
+            if (isTimeout(e)) {
+                System.out.println("OpenAI API connection timed out after " + timeoutFlagSeconds + " seconds.");
+                listener.onError("Timed out after " + timeoutFlagSeconds + " seconds.");
+            } else {
+                System.out.println("OpenAI: " + System.currentTimeMillis() + " An error occurred while processing the request. " + e.getMessage());
+                listener.onError(e.getMessage());
+            }
             return null;
-        } catch (InterruptedException | ExecutionException e) {
-            System.out.println("OpenAI: " + System.currentTimeMillis() + " An error occurred while processing the request. " + e.getMessage());
+        }
+        StringBuilder response = new StringBuilder();
+        long firstTokenTime = -1;
+        String id = null;
+        String responseModel = null;
+        long created = 0;
+        String systemFingerprint = null;
+        String finishReason = null;
+        ChatCompletion.Usage usage = ChatCompletion.Usage.NONE;
+        try (Stream<String> lines = httpResponse.body()) {
+            if (httpResponse.statusCode() >= 400) {
+                counter("aichatbot_errors", "Requests that failed with an error status, a connection error or an unreadable response.", model).increment();
+                lines.forEach(response::append);
+                System.out.println(System.currentTimeMillis() + " Server returned HTTP response code: " + httpResponse.statusCode() + " for URL: " + httpResponse.uri());
+                publishResult(ChatResult.failed(message, sentMessage, response.toString()));
+                listener.onError(response.toString());
+                return null;
+            }
+            Iterator<String> iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                String line = iterator.next();
+                //server-sent events: only "data:" lines carry chunks, the stream ends with [DONE]
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                JSONObject chunk = new JSONObject(data);
+                if (id == null) {
+                    id = chunk.optString("id", null);
+                    responseModel = chunk.optString("model", null);
+                    created = chunk.optLong("created");
+                    systemFingerprint = chunk.optString("system_fingerprint", null);
+                }
+                if (chunk.optJSONObject("usage") != null) {
+                    usage = ChatCompletion.Usage.fromJSON(chunk.getJSONObject("usage"));
+                }
+                JSONArray choices = chunk.optJSONArray("choices");
+                if (choices == null || choices.isEmpty()) {
+                    continue;
+                }
+                JSONObject choice = choices.getJSONObject(0);
+                if (!choice.isNull("finish_reason")) {
+                    finishReason = choice.getString("finish_reason");
+                }
+                JSONObject delta = choice.optJSONObject("delta");
+                if (delta == null || delta.isNull("content")) {
+                    continue;
+                }
+                String content = delta.getString("content");
+                if (content.isEmpty()) {
+                    continue;
+                }
+                if (firstTokenTime == -1) {
+                    firstTokenTime = System.currentTimeMillis();
+                    histogram("aichatbot_time_to_first_token", "Time from sending a streamed request to its first content.", model).recordNanos(System.nanoTime() - startNanos);
+                }
+                response.append(content);
+                listener.onDelta(content);
+            }
+        } catch (JSONException | UncheckedIOException e) {
+            recordFailure(e, model);
+            System.out.println("Failed to read streamed response: " + e.getMessage());
+            publishResult(ChatResult.failed(message, sentMessage, response.toString()));
+            listener.onError(e.getMessage());
             return null;
-        } finally {
-            executor.shutdown();
         }
+        String content = response.toString();
+        ChatCompletion completion = new ChatCompletion(id, responseModel, created, systemFingerprint, content, finishReason, usage);
+        Map<String, Object> streamData = new HashMap<>();
+        addCompletionData(streamData, completion);
+        long endTime = System.currentTimeMillis();
+        streamData.put("processing_time_ms", endTime - startTime);
+        streamData.put("time_to_first_token_ms", firstTokenTime == -1 ? endTime - startTime : firstTokenTime - startTime);
+        reconcileRateLimit(httpResponse, estimatedTokens, usage.totalTokens(), streamData);
+        streamData.put("estimated_prompt_tokens", estimatedTokens);
+        addEngineResponseData(streamData, content);
+        histogram("aichatbot_request_latency", "Time from sending a request to its parsed response.", model).recordNanos(System.nanoTime() - startNanos);
+        recordUsage(usage, model);
+        if (decision != null) {
+            recordRoute(router, decision.route(), startNanos, usage.totalTokens());
+            streamData.put("route", decision.route().label());
+            streamData.put("route_reason", decision.reason());
+        }
+        publishResult(new ChatResult(message, sentMessage, content, null, streamData));
+        listener.onComplete(content);
+        return content;
     }
 
-    private static String filterMessage(String message) {
-        return message.replaceAll("[^a-zA-Z0-9\\s\\-_.~]", "").replace("\n", " ");
+    private void addEngineResponseData(Map<String, Object> responseData, String content) {
+        File[] currentFiles = files;
+        if (currentFiles != null && "file-search".equals(assistantType)) {
+            List<String> fileNames = new ArrayList<>();
+            for (File file : currentFiles) {
+                fileNames.add(file.getName());
+            }
+            responseData.put("file_names", fileNames);
+        }
+        responseData.put("assistant_type", assistantType);
+        responseData.put("initial_instrution", initialInstruction);
+        if (content != null) {
+            responseData.put("received_message_length", content.trim().length());
+        }
     }
 
-    private Map<String, Object> parseJSONResponse(String jsonResponse) {
-        Map<String, Object> responseData = new HashMap<>();
-        try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            jsonObject.keySet().forEach(key -> {
-                responseData.put(key, jsonObject.get(key));
-            });
-        } catch (JSONException e) {
-            System.out.println("Failed to parse JSON response: " + e.getMessage());
+    //through the endpoint pool if there is one, otherwise to baseUrl with the engine's own key and rate limiter
+    private <T> CompletableFuture<HttpResponse<T>> sendChatCompletion(String body, HttpResponse.BodyHandler<T> bodyHandler, int estimatedTokens, Runnable onRetry) {
+        EndpointPool pool = endpointPool;
+        if (pool != null) {
+            return pool.send(getTransport(), CHAT_COMPLETIONS_PATH, body, readTimeoutSeconds, bodyHandler, estimatedTokens, retryPolicy, onRetry, timeoutFlagMillis());
         }
-        return responseData;
+        HttpRequest request = getTransport().postJson(baseUrl + CHAT_COMPLETIONS_PATH, USER_API_KEY, body, readTimeoutSeconds);
+        return getTransport().sendWithRetry(request, bodyHandler, getRateLimiter(), estimatedTokens, retryPolicy, onRetry, timeoutFlagMillis());
     }
 
-    private String extractContentFromJSON(String jsonResponse) {
-        try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            return jsonObject.getJSONArray("choices")
-                    .getJSONObject(0)
-                    .getJSONObject("message")
-                    .getString("content");
-        } catch (JSONException e) {
-            System.out.println("Failed to extract content from JSON response: " + e.getMessage());
-            return null;
+    /*
+     * timeoutFlagSeconds bounds each attempt from the moment the rate limiter lets it through. Time spent queued
+     * behind other callers or waiting out a Retry-After is not counted, so a busy key delays an answer instead of
+     * losing it.
+     */
+    private long timeoutFlagMillis() {
+        return timeoutFlagSeconds > 0 ? (long) (timeoutFlagSeconds * 1000) : 0;
+    }
+
+    private static boolean isTimeout(Throwable error) {
+        return (error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() instanceof HttpTimeoutException;
+    }
+
+    //tells the rate limiter that admitted the call (the pool endpoint's, if any) what it really cost
+    private void reconcileRateLimit(HttpResponse<?> response, int estimatedTokens, int actualTokens, Map<String, Object> responseData) {
+        EndpointPool pool = endpointPool;
+        EndpointPool.Endpoint endpoint = pool != null ? pool.endpointFor(response) : null;
+        if (endpoint != null) {
+            endpoint.getRateLimiter().reconcile(estimatedTokens, actualTokens);
+            responseData.put("endpoint", endpoint.getName());
+        } else if (pool == null) {
+            getRateLimiter().reconcile(estimatedTokens, actualTokens);
         }
     }
 
-    private int extractTotalTokensFromJSON(String jsonResponse) {
-        try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            return jsonObject.getJSONObject("usage").getInt("total_tokens");
-        } catch (JSONException e) {
-            System.out.println("Failed to extract total tokens from JSON response: " + e.getMessage());
-            return 0;
+    //with cacheTokens on, requests sharing a prefix carry the same prompt_cache_key so they are routed to the same cache
+    private String buildRequestBody(ChatMessages prompt, boolean stream, String model) {
+        StringBuilder body = new StringBuilder("{\"model\": ");
+        ChatMessages.appendJsonString(body, model);
+        if (stream) {
+            body.append(", \"stream\": true, \"stream_options\": {\"include_usage\": true}");
+        }
+        if (cacheTokens && prompt.getPrefixLength() > 0) {
+            body.append(", \"prompt_cache_key\": ");
+            ChatMessages.appendJsonString(body, prompt.prefixHash());
         }
+        body.append(", \"messages\": ");
+        return prompt.appendJson(body).append('}').toString();
     }
 
-    private String formatMarkdown(String text) {
-        if (text == null || text.isEmpty()) {
-            return text;
+    //the typed completion plus flat copies of its fields, including how many prompt tokens the provider served from its prompt cache
+    private static void addCompletionData(Map<String, Object> responseData, ChatCompletion completion) {
+        responseData.put("completion", completion);
+        if (completion.getId() != null) {
+            responseData.put("id", completion.getId());
+        }
+        if (completion.getModel() != null) {
+            responseData.put("model", completion.getModel());
+        }
+        responseData.put("created", completion.getCreated());
+        if (completion.getFinishReason() != null) {
+            responseData.put("finish_reason", completion.getFinishReason());
+        }
+        ChatCompletion.Usage usage = completion.getUsage();
+        responseData.put("total_tokens", usage.totalTokens());
+        responseData.put("prompt_tokens", usage.promptTokens());
+        responseData.put("completion_tokens", usage.completionTokens());
+        responseData.put("cached_tokens", usage.cachedTokens());
+        responseData.put("reasoning_tokens", usage.reasoningTokens());
+    }
+
+    //every metric of an engine carries its model and assistant type, so engines sharing a registry stay apart
+    private MetricsRegistry.Counter counter(String name, String help) {
+        return counter(name, help, currentModel);
+    }
+
+    //for calls that went to another model than currentModel, e.g. one picked by the model router
+    private MetricsRegistry.Counter counter(String name, String help, String model) {
+        return metrics.counter(name, help, "model", model, "assistant_type", String.valueOf(assistantType));
+    }
+
+    private LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, currentModel);
+    }
+
+    private LatencyHistogram histogram(String name, String help, String model) {
+        return metrics.histogram(name, help, "model", model, "assistant_type", String.valueOf(assistantType));
+    }
+
+    private void recordUsage(ChatCompletion.Usage usage, String model) {
+        counter("aichatbot_prompt_tokens", "Prompt tokens billed by the api.", model).add(usage.promptTokens());
+        counter("aichatbot_completion_tokens", "Completion tokens billed by the api.", model).add(usage.completionTokens());
+        counter("aichatbot_cached_tokens", "Prompt tokens the api served from its prompt cache.", model).add(usage.cachedTokens());
+    }
+
+    //a cancelled call was given up on by its caller (who counts timeouts) and is not an error of its own
+    private void recordFailure(Throwable error, String model) {
+        Throwable cause = (error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) {
+            return;
+        }
+        if (cause instanceof HttpTimeoutException) {
+            counter("aichatbot_timeouts", "Calls that gave up after timeoutFlagSeconds or the read timeout.", model).increment();
+        } else {
+            counter("aichatbot_errors", "Requests that failed with an error status, a connection error or an unreadable response.", model).increment();
         }
-        text = text.replaceAll("\\*(.*?)\\*", "\033[1m$1\033[0m");
-        text = text.replaceAll("_(.*?)_", "\033[3m$1\033[0m");
-        text = text.replaceAll("`(.*?)`", "\033[0;37m$1\033[0m");
-        text = text.replaceAll("```(.*?)```", "\033[0;37m$1\033[0m");
-        return text;
     }
 
-    private int processFileContents() {
-        if (files == null || files.length == 0) {
+    private String formatMarkdown(String text) {
+        return MarkdownRenderer.render(text);
+    }
+
+    //hands the listener rendered deltas, so styles show up while the reply is still streaming
+    private static ChatStreamListener formattingListener(ChatStreamListener listener) {
+        MarkdownRenderer renderer = new MarkdownRenderer();
+        return new ChatStreamListener() {
+            @Override
+            public void onDelta(String delta) {
+                String rendered = renderer.append(delta);
+                if (!rendered.isEmpty()) {
+                    listener.onDelta(rendered);
+                }
+            }
+
+            @Override
+            public void onComplete(String response) {
+                String rest = renderer.finish();
+                if (!rest.isEmpty()) {
+                    listener.onDelta(rest);
+                }
+                listener.onComplete(response);
+            }
+
+            @Override
+            public void onError(String error) {
+                String rest = renderer.finish();
+                if (!rest.isEmpty()) {
+                    listener.onDelta(rest);
+                }
+                listener.onError(error);
+            }
+        };
+    }
+
+    private synchronized int processFileContents() {
+        File[] currentFiles = files;
+        if (currentFiles == null || currentFiles.length == 0) {
             return 0;
         }
+        long start = System.nanoTime();
+        List<SqliteContextExtractor> oldExtractors = databaseExtractors;
+        List<SqliteContextExtractor> extractors = new ArrayList<>();
+        //everything except query-mode databases is extracted (or loaded from the cache) in parallel
+        FileIngestor ingestor = getFileIngestor();
+        List<File> ingestedFiles = new ArrayList<>();
+        for (File file : currentFiles) {
+            if (!isQueriedDatabaseFile(file)) {
+                ingestedFiles.add(file);
+            }
+        }
+        String variantSuffix = "-" + maxFileBytes;
+        List<FileIngestor.IngestedFile> ingested = ingestor.ingest(ingestedFiles, file -> getFileContentCache().get(file, (file.getName().endsWith(".db") ? "db-full-" + tableSerializer.getName() : "text") + variantSuffix, this::processFile));
+        FileIngestor.IngestionReport report = ingestor.applyTotalCap(ingested, System.nanoTime() - start);
         StringBuilder out = new StringBuilder();
-        for (File file : files) {
+        int next = 0;
+        for (File file : currentFiles) {
             out.append("File: ").append(file.getName()).append("\n");
-            if (file.getName().endsWith(".db")) {
-                processDatabaseFile(file, out);
-            } else if (file.getName().endsWith(".txt")) {
-                processTextFile(file, out);
+            if (isQueriedDatabaseFile(file)) {
+                processQueriedDatabaseFile(file, out, extractors);
             } else {
-                processOtherFile(file, out);
+                out.append(report.files().get(next++).contents());
             }
         }
         fileContents = out.toString();
+        ingestionReport = report;
+        retrievalIndex = null;
+        databaseExtractors = extractors;
+        for (SqliteContextExtractor extractor : oldExtractors) {
+            extractor.close();
+        }
+        histogram("aichatbot_file_processing", "Time to read, extract and cap every attached file.").recordNanos(System.nanoTime() - start);
         return out.length();
     }
 
+    private boolean isQueriedDatabaseFile(File file) {
+        return file.getName().endsWith(".db") && "query".equals(databaseExtraction);
+    }
+
+    private FileIngestor getFileIngestor() {
+        FileIngestor ingestor = fileIngestor;
+        if (ingestor == null || ingestor.getMaxFileBytes() != maxFileBytes || ingestor.getMaxTotalBytes() != maxTotalFileBytes) {
+            ingestor = new FileIngestor(maxFileBytes, maxTotalFileBytes, ForkJoinPool.commonPool());
+            fileIngestor = ingestor;
+        }
+        return ingestor;
+    }
+
+    private String processFile(File file) {
+        StringBuilder out = new StringBuilder();
+        if (file.getName().endsWith(".db")) {
+            processDatabaseFile(file, out);
+        } else if (file.getName().endsWith(".txt")) {
+            processTextFile(file, out);
+        } else {
+            processOtherFile(file, out);
+        }
+        return out.toString();
+    }
+
     private void processDatabaseFile(File file, StringBuilder out) {
+        try (Connection dbConnection = connectToDatabase(file.getAbsolutePath())) {
+            out.append("{");
+            tableSerializer.write(dbConnection, out, out.length() + maxFileBytes);
+            out.append("}").append("\n");
+        } catch (SQLException e) {
+            System.out.println("Failed to read database file: " + e.getMessage());
+        }
+    }
+
+    private void processQueriedDatabaseFile(File file, StringBuilder out, List<SqliteContextExtractor> extractors) {
         try {
-            connectToDatabase(file.getAbsolutePath());
-            out.append("{").append(readContentFromAllTables()).append("}").append("\n");
-            closeDatabaseConnection();
+            SqliteContextExtractor extractor = new SqliteContextExtractor(file);
+            extractor.setTableSerializer(tableSerializer);
+            extractors.add(extractor);
+            out.append("{Database with tables ").append(extractor.getTableNames()).append(" and views ").append(extractor.getViewNames()).append(". Rows related to the latest message are listed separately.}").append("\n");
         } catch (SQLException e) {
             System.out.println("Failed to read database file: " + e.getMessage());
         }
@@ -554,83 +1574,34 @@ public class OpenAiAssistantEngine {
 
     private void processTextFile(File file, StringBuilder out) {
         try {
-            out.append(new String(Files.readAllBytes(Paths.get(file.getAbsolutePath())))).append("\n");
+            out.append(getFileIngestor().readText(file)).append("\n");
         } catch (IOException e) {
             System.out.println("Failed to read text file: " + e.getMessage());
         }
     }
 
     private void processOtherFile(File file, StringBuilder out) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.toURI().toURL().openStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                out.append(line).append("\n");
+        try {
+            String contents = getFileIngestor().readText(file);
+            out.append(contents);
+            if (!contents.isEmpty() && !contents.endsWith("\n")) {
+                out.append("\n");
             }
         } catch (IOException e) {
             System.out.println("Failed to read file: " + e.getMessage());
         }
     }
 
-    private void connectToDatabase(String dbFilePath) throws SQLException {
+    private Connection connectToDatabase(String dbFilePath) throws SQLException {
         String url = "jdbc:sqlite:" + dbFilePath;
         try {
             Class.forName("org.sqlite.JDBC");
-            dbConnection = DriverManager.getConnection(url);
+            return DriverManager.getConnection(url);
         } catch (ClassNotFoundException e) {
             throw new SQLException("JDBC Driver not found. Ensure the SQLite JDBC driver is included in your project dependencies.", e);
         }
     }
 
-    private void closeDatabaseConnection() throws SQLException {
-        if (dbConnection != null && !dbConnection.isClosed()) {
-            dbConnection.close();
-        }
-    }
-
-    private String readContentFromAllTables() {
-        if (dbConnection == null) {
-            return "No database connection.";
-        }
-        StringBuilder content = new StringBuilder();
-        try {
-            Statement statement = dbConnection.createStatement();
-            ResultSet resultSet = statement.executeQuery("SELECT name FROM sqlite_master WHERE type='table';");
-            while (resultSet.next()) {
-                String tableName = resultSet.getString("name");
-                content.append("Table: ").append(tableName).append("\n");
-                content.append(readContentFromTable(tableName)).append("\n");
-            }
-        } catch (SQLException e) {
-            System.out.println("Failed to read content from all tables: " + e.getMessage());
-        }
-        return content.toString();
-    }
-
-    private String readContentFromTable(String tableName) {
-        if (dbConnection == null) {
-            return "No database connection.";
-        }
-        StringBuilder content = new StringBuilder();
-        try {
-            Statement statement = dbConnection.createStatement();
-            ResultSet resultSet = statement.executeQuery("SELECT * FROM " + tableName + ";");
-            int columnCount = resultSet.getMetaData().getColumnCount();
-            for (int i = 1; i <= columnCount; i++) {
-                content.append(resultSet.getMetaData().getColumnName(i)).append(" ");
-            }
-            content.append("\n");
-            while (resultSet.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    content.append(resultSet.getString(i)).append(" ");
-                }
-                content.append("\n");
-            }
-        } catch (SQLException e) {
-            System.out.println("Failed to read content from table: " + e.getMessage());
-        }
-        return content.toString();
-    }
-
     private static List<String> extractCodeSnippet(String content) {
         String[] lines = content.split(System.lineSeparator());
         List<String> codeSnippets = new ArrayList<>();
@@ -716,6 +1687,35 @@ public class OpenAiAssistantEngine {
         private float dynamicPromptLengthScale = 5;
         private float timeoutFlagSeconds = 60;
         private String currentModel = "gpt-3.5-turbo";
+        private float connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+        private float readTimeoutSeconds = DEFAULT_READ_TIMEOUT_SECONDS;
+        private String baseUrl = DEFAULT_BASE_URL;
+        private OpenAiTransport transport;
+        private RateLimiter rateLimiter;
+        private RetryPolicy retryPolicy = new RetryPolicy();
+        private HedgingPolicy hedgingPolicy;
+        private MetricsRegistry metrics = MetricsRegistry.global();
+        private EndpointPool endpointPool;
+        private ModelRouter modelRouter;
+        private ConversationStore conversationStore;
+        private String conversationId = DEFAULT_CONVERSATION_ID;
+        private boolean fileRetrieval = false;
+        private int retrievalTopK = 8;
+        private int retrievalTokenBudget = 2000;
+        private List<String> retrievalPinnedFiles = new ArrayList<>();
+        private String databaseExtraction = "full";
+        private TableSerializer tableSerializer = TableSerializer.COMPACT;
+        private String fileCacheDirectory;
+        private long maxFileBytes = FileIngestor.DEFAULT_MAX_FILE_BYTES;
+        private long maxTotalFileBytes = FileIngestor.DEFAULT_MAX_TOTAL_BYTES;
+        private int contextWindowTokens = -1;
+        private int reservedResponseTokens = 1024;
+        private ResponseCache responseCache;
+        private NearDuplicateCache nearDuplicateCache;
+        private double nearDuplicateVerifyRate = 0.05;
+        private boolean historyCompaction = false;
+        private int historyWindowEntries = ConversationCompactor.DEFAULT_WINDOW_ENTRIES;
+        private int historyCompactionThresholdTokens = ConversationCompactor.DEFAULT_THRESHOLD_TOKENS;
 
         public Builder setApiKey(String apiKey) {
             this.apiKey = apiKey;
@@ -772,6 +1772,147 @@ public class OpenAiAssistantEngine {
             return this;
         }
 
+        public Builder setConnectTimeoutSeconds(float connectTimeoutSeconds) {
+            this.connectTimeoutSeconds = connectTimeoutSeconds;
+            return this;
+        }
+
+        public Builder setReadTimeoutSeconds(float readTimeoutSeconds) {
+            this.readTimeoutSeconds = readTimeoutSeconds;
+            return this;
+        }
+
+        public Builder setBaseUrl(String baseUrl) {
+            this.baseUrl = baseUrl;
+            return this;
+        }
+
+        public Builder setTransport(OpenAiTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        public Builder setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        public Builder setMetricsRegistry(MetricsRegistry metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder setEndpointPool(EndpointPool endpointPool) {
+            this.endpointPool = endpointPool;
+            return this;
+        }
+
+        public Builder setModelRouter(ModelRouter modelRouter) {
+            this.modelRouter = modelRouter;
+            return this;
+        }
+
+        public Builder setConversationStore(ConversationStore conversationStore, String conversationId) {
+            this.conversationStore = conversationStore;
+            this.conversationId = conversationId;
+            return this;
+        }
+
+        public Builder setFileRetrieval(boolean fileRetrieval) {
+            this.fileRetrieval = fileRetrieval;
+            return this;
+        }
+
+        public Builder setRetrievalTopK(int retrievalTopK) {
+            this.retrievalTopK = retrievalTopK;
+            return this;
+        }
+
+        public Builder setRetrievalTokenBudget(int retrievalTokenBudget) {
+            this.retrievalTokenBudget = retrievalTokenBudget;
+            return this;
+        }
+
+        public Builder setRetrievalPinnedFiles(List<String> retrievalPinnedFiles) {
+            this.retrievalPinnedFiles = new ArrayList<>(retrievalPinnedFiles);
+            return this;
+        }
+
+        public Builder setDatabaseExtraction(String databaseExtraction) {
+            this.databaseExtraction = databaseExtraction;
+            return this;
+        }
+
+        public Builder setTableSerializer(TableSerializer tableSerializer) {
+            this.tableSerializer = tableSerializer;
+            return this;
+        }
+
+        public Builder setFileCacheDirectory(String fileCacheDirectory) {
+            this.fileCacheDirectory = fileCacheDirectory;
+            return this;
+        }
+
+        public Builder setMaxFileBytes(long maxFileBytes) {
+            this.maxFileBytes = maxFileBytes;
+            return this;
+        }
+
+        public Builder setMaxTotalFileBytes(long maxTotalFileBytes) {
+            this.maxTotalFileBytes = maxTotalFileBytes;
+            return this;
+        }
+
+        public Builder setContextWindowTokens(int contextWindowTokens) {
+            this.contextWindowTokens = contextWindowTokens;
+            return this;
+        }
+
+        public Builder setReservedResponseTokens(int reservedResponseTokens) {
+            this.reservedResponseTokens = reservedResponseTokens;
+            return this;
+        }
+
+        public Builder setResponseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        public Builder setNearDuplicateCache(NearDuplicateCache nearDuplicateCache) {
+            this.nearDuplicateCache = nearDuplicateCache;
+            return this;
+        }
+
+        public Builder setNearDuplicateVerifyRate(double nearDuplicateVerifyRate) {
+            this.nearDuplicateVerifyRate = nearDuplicateVerifyRate;
+            return this;
+        }
+
+        public Builder setHistoryCompaction(boolean historyCompaction) {
+            this.historyCompaction = historyCompaction;
+            return this;
+        }
+
+        public Builder setHistoryWindowEntries(int historyWindowEntries) {
+            this.historyWindowEntries = historyWindowEntries;
+            return this;
+        }
+
+        public Builder setHistoryCompactionThresholdTokens(int historyCompactionThresholdTokens) {
+            this.historyCompactionThresholdTokens = historyCompactionThresholdTokens;
+            return this;
+        }
+
         public OpenAiAssistantEngine build() {
             OpenAiAssistantEngine engine = new OpenAiAssistantEngine();
             engine.USER_API_KEY = this.apiKey;
@@ -785,7 +1926,34 @@ public class OpenAiAssistantEngine {
             engine.dynamicPromptLengthScale = this.dynamicPromptLengthScale;
             engine.timeoutFlagSeconds = this.timeoutFlagSeconds;
             engine.currentModel = this.currentModel;
-            engine.chatCache = new ArrayList<>();
+            engine.connectTimeoutSeconds = this.connectTimeoutSeconds;
+            engine.readTimeoutSeconds = this.readTimeoutSeconds;
+            engine.setBaseUrl(this.baseUrl);
+            engine.transport = this.transport;
+            engine.rateLimiter = this.rateLimiter;
+            engine.retryPolicy = this.retryPolicy;
+            engine.hedgingPolicy = this.hedgingPolicy;
+            engine.metrics = this.metrics;
+            engine.endpointPool = this.endpointPool;
+            engine.modelRouter = this.modelRouter;
+            engine.fileRetrieval = this.fileRetrieval;
+            engine.retrievalTopK = this.retrievalTopK;
+            engine.retrievalTokenBudget = this.retrievalTokenBudget;
+            engine.retrievalPinnedFiles = this.retrievalPinnedFiles;
+            engine.databaseExtraction = this.databaseExtraction;
+            engine.tableSerializer = this.tableSerializer;
+            engine.setFileCacheDirectory(this.fileCacheDirectory);
+            engine.maxFileBytes = this.maxFileBytes;
+            engine.maxTotalFileBytes = this.maxTotalFileBytes;
+            engine.contextWindowTokens = this.contextWindowTokens;
+            engine.reservedResponseTokens = this.reservedResponseTokens;
+            engine.responseCache = this.responseCache;
+            engine.nearDuplicateCache = this.nearDuplicateCache;
+            engine.nearDuplicateVerifyRate = this.nearDuplicateVerifyRate;
+            engine.historyCompaction = this.historyCompaction;
+            engine.historyWindowEntries = this.historyWindowEntries;
+            engine.historyCompactionThresholdTokens = this.historyCompactionThresholdTokens;
+            engine.setConversationStore(this.conversationStore, this.conversationId);
             if (this.files != null) {
                 engine.lastUsedFiles = this.files;
                 engine.processFileContents();
@@ -0,0 +1,217 @@
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OpenAiTransport {
+
+    //one pool of http worker threads for every transport in the jvm
+    private static final int DEFAULT_MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ExecutorService sharedExecutor = createSharedExecutor(DEFAULT_MAX_THREADS);
+
+    //transports are shared per connect timeout so engines with the same settings reuse connections
+    private static final Map<Long, OpenAiTransport> sharedTransports = new ConcurrentHashMap<>();
+
+    private final HttpClient httpClient;
+    private final Duration connectTimeout;
+
+    public OpenAiTransport(Duration connectTimeout, ExecutorService executor) {
+        this.connectTimeout = connectTimeout;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    public OpenAiTransport(Duration connectTimeout) {
+        this(connectTimeout, sharedExecutor);
+    }
+
+    public static OpenAiTransport shared(float connectTimeoutSeconds) {
+        long connectTimeoutMillis = (long) (connectTimeoutSeconds * 1000);
+        return sharedTransports.computeIfAbsent(connectTimeoutMillis, millis -> new OpenAiTransport(Duration.ofMillis(millis)));
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public HttpRequest.Builder newRequest(String url, String apiKey, float readTimeoutSeconds) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .header("Authorization", "Bearer " + apiKey);
+        if (readTimeoutSeconds > 0) {
+            request.timeout(Duration.ofMillis((long) (readTimeoutSeconds * 1000)));
+        }
+        return request;
+    }
+
+    public HttpRequest postJson(String url, String apiKey, String body, float readTimeoutSeconds) {
+        return newRequest(url, apiKey, readTimeoutSeconds)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return httpClient.sendAsync(request, bodyHandler);
+    }
+
+    /*
+     * Waits for the rate limiter (without blocking a thread), sends, and retries 429s, server errors and dropped
+     * connections as the policy allows. After a 429 the limiter holds back every caller of the same key for the
+     * server's retry delay; other failures back off on their own. Cancelling the returned future cancels whatever
+     * is currently in progress, the wait or the exchange.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendWithRetry(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, RateLimiter limiter, int estimatedTokens, RetryPolicy policy) {
+        return sendWithRetry(request, bodyHandler, limiter, estimatedTokens, policy, null);
+    }
+
+    //onRetry runs before every retry, e.g. to count them
+    public <T> CompletableFuture<HttpResponse<T>> sendWithRetry(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, RateLimiter limiter, int estimatedTokens, RetryPolicy policy, Runnable onRetry) {
+        return sendWithRetry(request, bodyHandler, limiter, estimatedTokens, policy, onRetry, 0);
+    }
+
+    /*
+     * With a timeout each attempt that gets no response within timeoutMillis of being sent is aborted and fails
+     * with an HttpTimeoutException. The clock starts when the limiter lets the attempt through, so waiting in
+     * the queue or for a Retry-After doesn't count against it.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendWithRetry(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, RateLimiter limiter, int estimatedTokens, RetryPolicy policy, Runnable onRetry,
+                                                                long timeoutMillis) {
+        RetryingExchange<T> exchange = new RetryingExchange<>(request, bodyHandler, limiter, estimatedTokens, policy, onRetry, timeoutMillis, new CompletableFuture<>(), new AtomicReference<>());
+        attempt(exchange, 0);
+        exchange.result.whenComplete((response, error) -> {
+            CompletableFuture<?> inProgress = exchange.current.get();
+            if (error != null && inProgress != null) {
+                inProgress.cancel(true);
+            }
+        });
+        return exchange.result;
+    }
+
+    private record RetryingExchange<T>(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, RateLimiter limiter, int estimatedTokens, RetryPolicy policy,
+                                       Runnable onRetry, long timeoutMillis, CompletableFuture<HttpResponse<T>> result, AtomicReference<CompletableFuture<?>> current) {
+    }
+
+    private <T> void attempt(RetryingExchange<T> exchange, int attempt) {
+        if (exchange.result.isDone()) {
+            return;
+        }
+        RateLimiter limiter = exchange.limiter;
+        RetryPolicy policy = exchange.policy;
+        CompletableFuture<Void> permit = limiter != null ? limiter.acquire(exchange.estimatedTokens) : CompletableFuture.completedFuture(null);
+        exchange.current.set(permit);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        permit.thenCompose(ignored -> {
+            CompletableFuture<HttpResponse<T>> sent = httpClient.sendAsync(exchange.request, exchange.bodyHandler);
+            exchange.current.set(sent);
+            if (exchange.timeoutMillis > 0) {
+                CompletableFuture.delayedExecutor(exchange.timeoutMillis, TimeUnit.MILLISECONDS, sharedExecutor).execute(() -> {
+                    if (!sent.isDone()) {
+                        timedOut.set(true);
+                        sent.cancel(true);
+                    }
+                });
+            }
+            return sent;
+        }).whenComplete((response, error) -> {
+            if (exchange.result.isDone()) {
+                closeBody(response);
+                return;
+            }
+            boolean retriesLeft = attempt < policy.getMaxRetries();
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (timedOut.get()) {
+                    cause = new HttpTimeoutException("No response within " + exchange.timeoutMillis + " ms of sending the request");
+                }
+                if (retriesLeft && policy.isRetryable(cause)) {
+                    retryLater(exchange, attempt, policy.delayMillis(attempt, null));
+                } else {
+                    if (limiter != null && attempt > 0) {
+                        limiter.recordFailureAfterRetries();
+                    }
+                    exchange.result.completeExceptionally(cause);
+                }
+                return;
+            }
+            if (limiter != null) {
+                limiter.update(response.headers());
+            }
+            if (policy.isRetryable(response.statusCode())) {
+                if (retriesLeft) {
+                    long delay = policy.delayMillis(attempt, response.headers());
+                    closeBody(response);
+                    if (response.statusCode() == 429 && limiter != null) {
+                        //the limiter now makes everyone wait, including this retry
+                        limiter.pause(delay);
+                        delay = 0;
+                    }
+                    retryLater(exchange, attempt, delay);
+                    return;
+                }
+                if (limiter != null) {
+                    limiter.recordFailureAfterRetries();
+                }
+            }
+            exchange.result.complete(response);
+        });
+    }
+
+    private <T> void retryLater(RetryingExchange<T> exchange, int attempt, long delayMillis) {
+        if (exchange.limiter != null) {
+            exchange.limiter.recordRetry();
+        }
+        if (exchange.onRetry != null) {
+            exchange.onRetry.run();
+        }
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, sharedExecutor).execute(() -> attempt(exchange, attempt + 1));
+    }
+
+    //a streamed body has to be closed or its connection is never given back
+    static void closeBody(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof AutoCloseable body) {
+            try {
+                body.close();
+            } catch (Exception e) {
+                //nothing left to read anyway
+            }
+        }
+    }
+
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        return httpClient.send(request, bodyHandler);
+    }
+
+    private static ExecutorService createSharedExecutor(int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "openai-transport-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,92 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class PromptAssembler {
+
+    //context window per model family, longest prefix first so "gpt-4o" is not taken for "gpt-4"
+    private static final List<Map.Entry<String, Integer>> CONTEXT_WINDOWS = List.of(
+            Map.entry("gpt-4.1", 1047576),
+            Map.entry("gpt-4o", 128000),
+            Map.entry("gpt-4.5", 128000),
+            Map.entry("gpt-4-turbo", 128000),
+            Map.entry("gpt-4-32k", 32768),
+            Map.entry("gpt-4", 8192),
+            Map.entry("gpt-3.5-turbo-instruct", 4096),
+            Map.entry("gpt-3.5-turbo", 16385),
+            Map.entry("o1-mini", 128000),
+            Map.entry("o1", 200000),
+            Map.entry("o3", 200000),
+            Map.entry("o4-mini", 200000));
+    private static final int DEFAULT_CONTEXT_WINDOW = 8192;
+
+    private final int budgetTokens;
+
+    public record Fitted(List<String> history, String context, int promptTokens, int droppedHistoryEntries, boolean contextTruncated) {
+    }
+
+    public PromptAssembler(int budgetTokens) {
+        this.budgetTokens = budgetTokens;
+    }
+
+    public static int contextWindowFor(String model) {
+        if (model != null) {
+            for (Map.Entry<String, Integer> entry : CONTEXT_WINDOWS) {
+                if (model.startsWith(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return DEFAULT_CONTEXT_WINDOW;
+    }
+
+    public int getBudgetTokens() {
+        return budgetTokens;
+    }
+
+    /*
+     * The fixed parts (instruction, latest message and the wording around them) are never cut. If the rest does
+     * not fit, history gets at least a quarter of what is left (or all it needs if it is smaller) and the file
+     * context the remainder; history loses its oldest user/assistant pairs first and the context is cut from
+     * the end. The same inputs always give the same result.
+     */
+    public Fitted fit(int fixedTokens, List<String> history, String context) {
+        int historyTokens = 0;
+        int[] entryTokens = new int[history.size()];
+        for (int i = 0; i < history.size(); i++) {
+            entryTokens[i] = TokenCounter.count(history.get(i)) + 1;
+            historyTokens += entryTokens[i];
+        }
+        int contextTokens = TokenCounter.count(context);
+        int remaining = Math.max(0, budgetTokens - fixedTokens);
+        if (historyTokens + contextTokens <= remaining) {
+            return new Fitted(history, context, fixedTokens + historyTokens + contextTokens, 0, false);
+        }
+        int historyAllowance = Math.min(historyTokens, Math.max(remaining - contextTokens, remaining / 4));
+        int contextAllowance = Math.min(contextTokens, remaining - historyAllowance);
+        historyAllowance = Math.min(historyTokens, remaining - contextAllowance);
+
+        //keep the newest pairs that fit
+        int keptFrom = history.size();
+        int keptTokens = 0;
+        while (keptFrom >= 2 && keptTokens + entryTokens[keptFrom - 1] + entryTokens[keptFrom - 2] <= historyAllowance) {
+            keptTokens += entryTokens[keptFrom - 1] + entryTokens[keptFrom - 2];
+            keptFrom -= 2;
+        }
+        if (keptFrom == 1 && keptTokens + entryTokens[0] <= historyAllowance) {
+            keptTokens += entryTokens[0];
+            keptFrom = 0;
+        }
+        List<String> keptHistory = new ArrayList<>(history.subList(keptFrom, history.size()));
+
+        String keptContext = context;
+        boolean contextTruncated = false;
+        if (contextTokens > contextAllowance + (historyAllowance - keptTokens)) {
+            keptContext = TokenCounter.truncate(context, contextAllowance + (historyAllowance - keptTokens));
+            contextTruncated = true;
+        }
+        int promptTokens = fixedTokens + keptTokens + (contextTruncated ? TokenCounter.count(keptContext) : contextTokens);
+        return new Fitted(keptHistory, keptContext, promptTokens, keptFrom, contextTruncated);
+    }
+}
@@ -0,0 +1,244 @@
+
+import java.net.http.HttpHeaders;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter {
+
+    //limits are unknown until set or reported by the api in x-ratelimit-limit-* headers
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    //limiters are shared per api key so every engine using the key draws from the same budget
+    private static final Map<String, RateLimiter> sharedLimiters = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "openai-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int requestsPerMinute;
+    private int tokensPerMinute;
+    private double availableRequests;
+    private double availableTokens;
+    private long lastRefillNanos = System.nanoTime();
+    //set after a 429 so nobody is admitted until the server's retry delay has passed
+    private long pausedUntilNanos = 0;
+
+    //callers waiting for room, served strictly in arrival order
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private ScheduledFuture<?> scheduledDrain;
+    private long scheduledDrainNanos;
+
+    private long admittedRequests = 0;
+    private long totalWaitNanos = 0;
+    private int maxQueueLength = 0;
+    private long throttledResponses = 0;
+    private long retries = 0;
+    private long failedAfterRetries = 0;
+
+    private record Waiter(int tokens, long enqueuedNanos, CompletableFuture<Void> permit) {
+    }
+
+    public RateLimiter(int requestsPerMinute, int tokensPerMinute) {
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        this.availableRequests = requestsPerMinute;
+        this.availableTokens = tokensPerMinute;
+    }
+
+    public RateLimiter() {
+        this(UNLIMITED, UNLIMITED);
+    }
+
+    public static RateLimiter forApiKey(String apiKey) {
+        return sharedLimiters.computeIfAbsent(String.valueOf(apiKey), key -> new RateLimiter());
+    }
+
+    public synchronized void setLimits(int requestsPerMinute, int tokensPerMinute) {
+        refill();
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        availableRequests = Math.min(availableRequests, requestsPerMinute);
+        availableTokens = Math.min(availableTokens, tokensPerMinute);
+        drain();
+    }
+
+    public synchronized int getRequestsPerMinute() {
+        return requestsPerMinute;
+    }
+
+    public synchronized int getTokensPerMinute() {
+        return tokensPerMinute;
+    }
+
+    //completes once one request and the given number of tokens fit in both buckets, never blocks the caller
+    public synchronized CompletableFuture<Void> acquire(int tokens) {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        waiters.addLast(new Waiter(Math.max(0, tokens), System.nanoTime(), permit));
+        maxQueueLength = Math.max(maxQueueLength, waiters.size());
+        drain();
+        return permit;
+    }
+
+    //corrects the token bucket once the real usage of an admitted request is known
+    public synchronized void reconcile(int reservedTokens, int actualTokens) {
+        if (tokensPerMinute == UNLIMITED || actualTokens <= 0) {
+            return;
+        }
+        availableTokens = Math.min(tokensPerMinute, availableTokens + reservedTokens - actualTokens);
+        drain();
+    }
+
+    //adopts the limits the api reports for this key and trusts its view of what is left
+    public synchronized void update(HttpHeaders headers) {
+        long limitRequests = headers.firstValueAsLong("x-ratelimit-limit-requests").orElse(-1);
+        long limitTokens = headers.firstValueAsLong("x-ratelimit-limit-tokens").orElse(-1);
+        if (limitRequests <= 0 && limitTokens <= 0) {
+            return;
+        }
+        refill();
+        if (limitRequests > 0) {
+            requestsPerMinute = (int) Math.min(Integer.MAX_VALUE - 1, limitRequests);
+            long remaining = headers.firstValueAsLong("x-ratelimit-remaining-requests").orElse(requestsPerMinute);
+            availableRequests = Math.min(availableRequests, Math.min(requestsPerMinute, remaining));
+        }
+        if (limitTokens > 0) {
+            tokensPerMinute = (int) Math.min(Integer.MAX_VALUE - 1, limitTokens);
+            long remaining = headers.firstValueAsLong("x-ratelimit-remaining-tokens").orElse(tokensPerMinute);
+            availableTokens = Math.min(availableTokens, Math.min(tokensPerMinute, remaining));
+        }
+        drain();
+    }
+
+    //holds every caller back after a 429 until the delay the server asked for has passed
+    public synchronized void pause(long delayMillis) {
+        throttledResponses++;
+        pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        drain();
+    }
+
+    synchronized void recordRetry() {
+        retries++;
+    }
+
+    synchronized void recordFailureAfterRetries() {
+        failedAfterRetries++;
+    }
+
+    public synchronized long getAdmittedRequests() {
+        return admittedRequests;
+    }
+
+    public synchronized int getQueueLength() {
+        return waiters.size();
+    }
+
+    public synchronized int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public synchronized double getAverageWaitMillis() {
+        return admittedRequests == 0 ? 0 : totalWaitNanos / 1e6 / admittedRequests;
+    }
+
+    public synchronized long getThrottledResponses() {
+        return throttledResponses;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized long getFailedAfterRetries() {
+        return failedAfterRetries;
+    }
+
+    public synchronized double getAvailableRequests() {
+        refill();
+        return availableRequests;
+    }
+
+    public synchronized double getAvailableTokens() {
+        refill();
+        return availableTokens;
+    }
+
+    @Override
+    public synchronized String toString() {
+        refill();
+        return "RateLimiter{rpm=" + limitText(requestsPerMinute) + ", tpm=" + limitText(tokensPerMinute) + ", admitted=" + admittedRequests + ", queued=" + waiters.size()
+                + ", maxQueue=" + maxQueueLength + ", avgWaitMs=" + String.format("%.1f", getAverageWaitMillis()) + ", throttled=" + throttledResponses
+                + ", retries=" + retries + ", failedAfterRetries=" + failedAfterRetries + "}";
+    }
+
+    private static String limitText(int limit) {
+        return limit == UNLIMITED ? "unlimited" : String.valueOf(limit);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedMinutes = (now - lastRefillNanos) / 6e10;
+        lastRefillNanos = now;
+        availableRequests = Math.min(requestsPerMinute, availableRequests + elapsedMinutes * requestsPerMinute);
+        availableTokens = Math.min(tokensPerMinute, availableTokens + elapsedMinutes * tokensPerMinute);
+    }
+
+    private void drain() {
+        refill();
+        long now = System.nanoTime();
+        while (!waiters.isEmpty()) {
+            Waiter waiter = waiters.peekFirst();
+            if (waiter.permit.isDone()) {
+                //cancelled while waiting
+                waiters.pollFirst();
+                continue;
+            }
+            //a request bigger than the whole bucket would never fit, it only needs a full bucket
+            int tokens = Math.min(waiter.tokens, tokensPerMinute);
+            long waitNanos = Math.max(pausedUntilNanos - now, 0);
+            if (availableRequests < 1) {
+                waitNanos = Math.max(waitNanos, (long) ((1 - availableRequests) / requestsPerMinute * 6e10));
+            }
+            if (tokensPerMinute != UNLIMITED && availableTokens < tokens) {
+                waitNanos = Math.max(waitNanos, (long) ((tokens - availableTokens) / tokensPerMinute * 6e10));
+            }
+            if (waitNanos > 0) {
+                scheduleDrain(now + waitNanos);
+                return;
+            }
+            waiters.pollFirst();
+            if (requestsPerMinute != UNLIMITED) {
+                availableRequests -= 1;
+            }
+            if (tokensPerMinute != UNLIMITED) {
+                availableTokens -= tokens;
+            }
+            admittedRequests++;
+            totalWaitNanos += now - waiter.enqueuedNanos;
+            //completed outside the lock so callers never run their continuations while holding it
+            scheduler.execute(() -> waiter.permit.complete(null));
+        }
+    }
+
+    private void scheduleDrain(long atNanos) {
+        if (scheduledDrain != null && !scheduledDrain.isDone() && scheduledDrainNanos <= atNanos) {
+            return;
+        }
+        if (scheduledDrain != null) {
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrainNanos = atNanos;
+        scheduledDrain = scheduler.schedule(() -> {
+            synchronized (RateLimiter.this) {
+                scheduledDrain = null;
+                drain();
+            }
+        }, Math.max(1, atNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,263 @@
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public final class ResponseCache implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long FLUSH_PERIOD_MILLIS = 5000;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    //null when the cache only lives in memory
+    private final Path file;
+
+    //access ordered so the eldest entry is always the least recently used response
+    private final LinkedHashMap<String, Entry> entries;
+    private final ScheduledExecutorService flushExecutor;
+    private boolean dirty = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long expirations = 0;
+    private long evictions = 0;
+
+    private record Entry(String response, long expiresAtMillis) {
+    }
+
+    public ResponseCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, null);
+    }
+
+    public ResponseCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, null);
+    }
+
+    //with a file the cache is loaded from it and written back every few seconds while it changes
+    public ResponseCache(int maxEntries, long ttlMillis, String file) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.file = file != null ? Path.of(file).toAbsolutePath() : null;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ResponseCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (this.file != null) {
+            load();
+            this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "response-cache-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_PERIOD_MILLIS, FLUSH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.flushExecutor = null;
+        }
+    }
+
+    /*
+     * Two requests share a key when they use the same model, the same message once case, spacing and trailing
+     * punctuation are ignored, and the same everything else: instruction, file contents, summary, the
+     * user/assistant history and the per-message context (retrieved chunks, database rows). A follow-up such as
+     * "why?" therefore only hits the cache in a conversation that got there the same way. The dynamic response
+     * length limit is left out, it only reflects the message's length and would keep "What concentration am I
+     * in?" and "what concentration am i in" apart.
+     */
+    public static String keyFor(String model, String message, ChatMessages prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(model).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalize(message).getBytes(StandardCharsets.UTF_8));
+            List<ChatMessages.Message> messages = prompt.getMessages();
+            //the last message is the one normalized above
+            for (int i = 0; i < messages.size() - 1; i++) {
+                if (i != prompt.getLengthLimitIndex()) {
+                    update(digest, messages.get(i));
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, ChatMessages.Message message) {
+        digest.update((byte) 0);
+        digest.update(message.role().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(message.content().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * For lookups that compare messages by similarity instead: the model, the prefix (instruction and file
+     * contents) and the conversation so far (summary and history). What depends on the message itself, the
+     * retrieved chunks, database rows and length limit, is left out, or paraphrases would never share a key.
+     */
+    public static String contextKeyFor(String model, ChatMessages prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(model).getBytes(StandardCharsets.UTF_8));
+            for (ChatMessages.Message message : prompt.getMessages().subList(0, prompt.getTurnStart())) {
+                update(digest, message);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    public static String normalize(String message) {
+        String normalized = message.toLowerCase(Locale.ROOT).trim().replaceAll("\\s+", " ");
+        int end = normalized.length();
+        while (end > 0 && "?!.".indexOf(normalized.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return normalized.substring(0, end).trim();
+    }
+
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAtMillis <= System.currentTimeMillis()) {
+            entries.remove(key);
+            dirty = true;
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    public synchronized void put(String key, String response) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        entries.put(key, new Entry(response, expiresAt));
+        dirty = true;
+    }
+
+    public synchronized void remove(String key) {
+        if (entries.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    //writes the cache to its file if anything changed since the last write
+    public void flush() {
+        if (file == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            //eldest first, so loading the file back restores the LRU order
+            entries.forEach((key, entry) -> {
+                if (entry.expiresAtMillis > now) {
+                    lines.add(new JSONObject().put("key", key).put("response", entry.response).put("expiresAt", entry.expiresAtMillis).toString());
+                }
+            });
+            dirty = false;
+        }
+        try {
+            Path parent = file.getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to write response cache: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        flush();
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JSONObject entry = new JSONObject(line);
+                long expiresAt = entry.getLong("expiresAt");
+                if (expiresAt > now) {
+                    entries.put(entry.getString("key"), new Entry(entry.getString("response"), expiresAt));
+                }
+            }
+        } catch (IOException | JSONException e) {
+            System.out.println("Failed to read response cache: " + e.getMessage());
+        }
+    }
+}
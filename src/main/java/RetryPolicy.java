@@ -0,0 +1,90 @@
+
+import java.io.IOException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public RetryPolicy(int maxRetries) {
+        this(maxRetries, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    //429 and server errors are worth another try, other client errors would fail the same way again
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 408 || statusCode >= 500;
+    }
+
+    //connection failures (a connect timeout too) are retried, a request that timed out waiting for the answer is not
+    public boolean isRetryable(Throwable error) {
+        return error instanceof HttpConnectTimeoutException || error instanceof IOException && !(error instanceof HttpTimeoutException);
+    }
+
+    /*
+     * The server's own Retry-After (seconds or an http date) or retry-after-ms wins when present. Otherwise the
+     * delay is "full jitter" exponential backoff: a random value up to base * 2^attempt, capped, so callers that
+     * failed together do not all come back at the same moment.
+     */
+    public long delayMillis(int attempt, HttpHeaders headers) {
+        Optional<Long> serverDelay = headers != null ? retryAfterMillis(headers) : Optional.empty();
+        if (serverDelay.isPresent()) {
+            return Math.min(maxDelayMillis, serverDelay.get());
+        }
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(0, ceiling + 1);
+    }
+
+    static Optional<Long> retryAfterMillis(HttpHeaders headers) {
+        Optional<String> retryAfterMs = headers.firstValue("retry-after-ms");
+        if (retryAfterMs.isPresent()) {
+            try {
+                return Optional.of((long) Double.parseDouble(retryAfterMs.get().trim()));
+            } catch (NumberFormatException e) {
+                //fall through to Retry-After
+            }
+        }
+        Optional<String> retryAfter = headers.firstValue("retry-after");
+        if (retryAfter.isEmpty()) {
+            return Optional.empty();
+        }
+        String value = retryAfter.get().trim();
+        try {
+            return Optional.of((long) (Double.parseDouble(value) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                long millis = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis();
+                return Optional.of(Math.max(0, millis));
+            } catch (DateTimeParseException ignored) {
+                return Optional.empty();
+            }
+        }
+    }
+}
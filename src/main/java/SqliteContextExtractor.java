@@ -0,0 +1,428 @@
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public class SqliteContextExtractor implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_ROWS_PER_QUERY = 50;
+    private static final int MAX_INDEXED_ROWS_PER_TABLE = 50000;
+    private static final int MIN_NAME_LENGTH = 6;
+
+    private final File file;
+    private final Connection connection;
+    private final int maxRowsPerQuery;
+
+    //schema
+    private final Map<String, TableInfo> tables = new LinkedHashMap<>();
+    private final Map<String, TableInfo> views = new LinkedHashMap<>();
+
+    //entity lookup: codes and numbers are matched as whole tokens, names and titles as phrases
+    private final Map<String, List<EntityRef>> codeIndex = new HashMap<>();
+    private final Map<String, List<EntityRef>> numberIndex = new HashMap<>();
+    private final Map<String, List<EntityRef>> nameIndex = new HashMap<>();
+
+    private final Map<String, PreparedStatement> statementCache = new HashMap<>();
+    private volatile TableSerializer tableSerializer = TableSerializer.COMPACT;
+
+    private static class TableInfo {
+
+        private final String name;
+        private final List<String> columns = new ArrayList<>();
+        private final List<ForeignKey> foreignKeys = new ArrayList<>();
+        private final Set<String> sourceTables = new LinkedHashSet<>(); //for views, the tables they select from
+        private String keyColumn;
+
+        private TableInfo(String name) {
+            this.name = name;
+        }
+    }
+
+    private record ForeignKey(String column, String referencedTable, String referencedColumn) {
+    }
+
+    private record EntityRef(String table, String key) {
+    }
+
+    public SqliteContextExtractor(File file) throws SQLException {
+        this(file, DEFAULT_MAX_ROWS_PER_QUERY);
+    }
+
+    public SqliteContextExtractor(File file, int maxRowsPerQuery) throws SQLException {
+        this.file = file;
+        this.maxRowsPerQuery = maxRowsPerQuery;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBC Driver not found. Ensure the SQLite JDBC driver is included in your project dependencies.", e);
+        }
+        this.connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try {
+            readSchema();
+            buildEntityIndex();
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<String> getTableNames() {
+        return new ArrayList<>(tables.keySet());
+    }
+
+    public List<String> getViewNames() {
+        return new ArrayList<>(views.keySet());
+    }
+
+    public void setTableSerializer(TableSerializer tableSerializer) {
+        this.tableSerializer = tableSerializer;
+    }
+
+    public TableSerializer getTableSerializer() {
+        return tableSerializer;
+    }
+
+    //rows related to the entities (ids, codes, names) mentioned in the text, written by the table serializer like a full dump
+    public synchronized String extract(String text) {
+        Map<String, Set<String>> entities = findEntities(text);
+        Map<TableInfo, Set<List<String>>> rows = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Set<String>> entry : entities.entrySet()) {
+                TableInfo table = tables.get(entry.getKey());
+                for (String key : entry.getValue()) {
+                    collectEntityRows(table, key, rows);
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Failed to query database file: " + e.getMessage());
+        }
+        List<TableSerializer.Table> found = new ArrayList<>(rows.size());
+        for (Map.Entry<TableInfo, Set<List<String>>> entry : rows.entrySet()) {
+            TableInfo info = entry.getKey();
+            Set<String> foreignKeyColumns = new LinkedHashSet<>();
+            for (ForeignKey foreignKey : info.foreignKeys) {
+                foreignKeyColumns.add(foreignKey.column.toLowerCase(Locale.ROOT));
+            }
+            boolean view = views.containsKey(info.name.toLowerCase(Locale.ROOT));
+            found.add(new TableSerializer.Table(info.name, view, info.columns, new ArrayList<>(entry.getValue()), foreignKeyColumns, info.sourceTables));
+        }
+        StringBuilder out = new StringBuilder();
+        //a view row found for the message ("student_sections" for a student id) is kept whatever the dump format
+        tableSerializer.withViews().write(found, out, -1);
+        return out.toString();
+    }
+
+    Map<String, Set<String>> findEntities(String text) {
+        Map<String, Set<String>> entities = new LinkedHashMap<>();
+        if (text == null || text.isEmpty()) {
+            return entities;
+        }
+        List<String> words = splitWords(text);
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            //codes are indexed in lower case, so "cs375" finds "CS375"
+            String lowerWord = word.toLowerCase(Locale.ROOT);
+            addEntities(codeIndex.get(lowerWord), entities);
+            //"CS 375" is written as "CS375" in the database
+            if (i + 1 < words.size() && isNumber(words.get(i + 1))) {
+                addEntities(codeIndex.get(lowerWord + words.get(i + 1)), entities);
+            }
+            if (isNumber(word)) {
+                List<EntityRef> refs = numberIndex.get(word);
+                if (refs != null) {
+                    //bare numbers are too ambiguous, so they need a preceding word such as "student", "crn" or "id"
+                    String previous = i > 0 ? normalize(words.get(i - 1)) : "";
+                    String beforePrevious = i > 1 ? normalize(words.get(i - 2)) : "";
+                    for (EntityRef ref : refs) {
+                        if (namesTable(previous, ref.table) || ("id".equals(previous) || "number".equals(previous)) && (beforePrevious.isEmpty() || namesTable(beforePrevious, ref.table) || !isTableWord(beforePrevious))) {
+                            entities.computeIfAbsent(ref.table, table -> new LinkedHashSet<>()).add(ref.key);
+                        }
+                    }
+                }
+            }
+        }
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        for (Map.Entry<String, List<EntityRef>> entry : nameIndex.entrySet()) {
+            if (lowerText.contains(entry.getKey())) {
+                addEntities(entry.getValue(), entities);
+            }
+        }
+        return entities;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (PreparedStatement statement : statementCache.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.out.println("Failed to close statement: " + e.getMessage());
+            }
+        }
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.out.println("Failed to close database connection: " + e.getMessage());
+        }
+    }
+
+    private void collectEntityRows(TableInfo table, String key, Map<TableInfo, Set<List<String>>> rows) throws SQLException {
+        List<List<String>> ownRows = query(table, table.keyColumn, key, rows);
+        for (List<String> row : ownRows) {
+            collectParentRows(table, row, null, rows);
+        }
+        //rows that point at this entity, plus whatever those rows point at (student -> student_section -> section)
+        for (TableInfo child : tables.values()) {
+            for (ForeignKey foreignKey : child.foreignKeys) {
+                if (!foreignKey.referencedTable.equalsIgnoreCase(table.name)) {
+                    continue;
+                }
+                for (List<String> childRow : query(child, foreignKey.column, key, rows)) {
+                    collectParentRows(child, childRow, table.name, rows);
+                }
+            }
+        }
+        for (TableInfo view : views.values()) {
+            for (String column : view.columns) {
+                if (columnReferencesTable(column, table)) {
+                    query(view, column, key, rows);
+                }
+            }
+        }
+    }
+
+    private void collectParentRows(TableInfo table, List<String> row, String skipTable, Map<TableInfo, Set<List<String>>> rows) throws SQLException {
+        for (ForeignKey foreignKey : table.foreignKeys) {
+            TableInfo parent = tables.get(foreignKey.referencedTable.toLowerCase(Locale.ROOT));
+            if (parent == null || parent.name.equalsIgnoreCase(skipTable)) {
+                continue;
+            }
+            int index = table.columns.indexOf(foreignKey.column);
+            String value = index >= 0 ? row.get(index) : null;
+            if (value != null) {
+                query(parent, foreignKey.referencedColumn != null ? foreignKey.referencedColumn : parent.keyColumn, value, rows);
+            }
+        }
+    }
+
+    private List<List<String>> query(TableInfo table, String column, String value, Map<TableInfo, Set<List<String>>> rows) throws SQLException {
+        List<List<String>> found = new ArrayList<>();
+        if (column == null) {
+            return found;
+        }
+        PreparedStatement statement = prepare("SELECT * FROM " + quote(table.name) + " WHERE " + quote(column) + " = ? LIMIT " + maxRowsPerQuery);
+        if (isNumber(value)) {
+            statement.setLong(1, Long.parseLong(value));
+        } else {
+            statement.setString(1, value);
+        }
+        try (ResultSet resultSet = statement.executeQuery()) {
+            int columnCount = resultSet.getMetaData().getColumnCount();
+            Set<List<String>> tableRows = rows.computeIfAbsent(table, info -> new LinkedHashSet<>());
+            while (resultSet.next()) {
+                List<String> row = new ArrayList<>(columnCount);
+                for (int i = 1; i <= columnCount; i++) {
+                    row.add(resultSet.getString(i));
+                }
+                tableRows.add(row);
+                found.add(row);
+            }
+            if (tableRows.isEmpty()) {
+                rows.remove(table);
+            }
+        }
+        return found;
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void readSchema() throws SQLException {
+        List<String[]> objects = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT type, name, sql FROM sqlite_master WHERE type IN ('table', 'view') AND name NOT LIKE 'sqlite_%';")) {
+            while (resultSet.next()) {
+                objects.add(new String[]{resultSet.getString("type"), resultSet.getString("name"), resultSet.getString("sql")});
+            }
+        }
+        List<String> tableNames = new ArrayList<>();
+        for (String[] object : objects) {
+            if ("table".equals(object[0])) {
+                tableNames.add(object[1]);
+            }
+        }
+        for (String[] object : objects) {
+            TableInfo info = new TableInfo(object[1]);
+            try (Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + quote(info.name) + ");")) {
+                while (resultSet.next()) {
+                    String column = resultSet.getString("name");
+                    info.columns.add(column);
+                    if (resultSet.getInt("pk") == 1) {
+                        info.keyColumn = column;
+                    }
+                }
+            }
+            if ("view".equals(object[0])) {
+                info.sourceTables.addAll(TableSerializer.referencedTables(object[2], tableNames));
+                views.put(info.name.toLowerCase(Locale.ROOT), info);
+                continue;
+            }
+            if (info.keyColumn == null && info.columns.contains("id")) {
+                info.keyColumn = "id";
+            }
+            try (Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("PRAGMA foreign_key_list(" + quote(info.name) + ");")) {
+                while (resultSet.next()) {
+                    info.foreignKeys.add(new ForeignKey(resultSet.getString("from"), resultSet.getString("table"), resultSet.getString("to")));
+                }
+            }
+            tables.put(info.name.toLowerCase(Locale.ROOT), info);
+        }
+    }
+
+    private void buildEntityIndex() throws SQLException {
+        for (TableInfo table : tables.values()) {
+            if (table.keyColumn == null) {
+                continue;
+            }
+            List<String> nameColumns = new ArrayList<>();
+            for (String column : table.columns) {
+                String lower = column.toLowerCase(Locale.ROOT);
+                if ("name".equals(lower) || "title".equals(lower)) {
+                    nameColumns.add(column);
+                }
+            }
+            StringBuilder sql = new StringBuilder("SELECT ").append(quote(table.keyColumn));
+            for (String column : nameColumns) {
+                sql.append(", ").append(quote(column));
+            }
+            sql.append(" FROM ").append(quote(table.name)).append(" LIMIT ").append(MAX_INDEXED_ROWS_PER_TABLE);
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql.toString())) {
+                while (resultSet.next()) {
+                    String key = resultSet.getString(1);
+                    if (key == null || key.isBlank()) {
+                        continue;
+                    }
+                    EntityRef ref = new EntityRef(table.name.toLowerCase(Locale.ROOT), key);
+                    if (isNumber(key)) {
+                        numberIndex.computeIfAbsent(key, value -> new ArrayList<>()).add(ref);
+                    } else if (key.length() >= 2) {
+                        codeIndex.computeIfAbsent(key.toLowerCase(Locale.ROOT), value -> new ArrayList<>()).add(ref);
+                    }
+                    for (int i = 2; i <= nameColumns.size() + 1; i++) {
+                        String name = resultSet.getString(i);
+                        if (name != null && name.length() >= MIN_NAME_LENGTH) {
+                            nameIndex.computeIfAbsent(name.toLowerCase(Locale.ROOT), value -> new ArrayList<>()).add(ref);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean columnReferencesTable(String column, TableInfo table) {
+        String normalized = normalize(column);
+        String name = normalize(table.name);
+        String singular = singular(name);
+        if (normalized.equals(name + "id") || normalized.equals(singular + "id")) {
+            return true;
+        }
+        if (table.keyColumn != null && normalized.equals(singular + normalize(table.keyColumn))) {
+            return true;
+        }
+        for (TableInfo other : tables.values()) {
+            for (ForeignKey foreignKey : other.foreignKeys) {
+                if (foreignKey.referencedTable.equalsIgnoreCase(table.name) && normalized.equals(normalize(foreignKey.column))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean namesTable(String word, String table) {
+        String name = normalize(table);
+        return word.equals(name) || word.equals(singular(name)) || tables.containsKey(table) && tables.get(table).keyColumn != null && word.equals(normalize(tables.get(table).keyColumn)) && !"id".equals(word);
+    }
+
+    private boolean isTableWord(String word) {
+        for (String table : tables.keySet()) {
+            if (namesTable(word, table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addEntities(List<EntityRef> refs, Map<String, Set<String>> entities) {
+        if (refs == null) {
+            return;
+        }
+        for (EntityRef ref : refs) {
+            entities.computeIfAbsent(ref.table, table -> new LinkedHashSet<>()).add(ref.key);
+        }
+    }
+
+    private static List<String> splitWords(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT).replace("_", "");
+    }
+
+    private static String singular(String name) {
+        return name.endsWith("s") && name.length() > 1 ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,229 @@
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Writes database rows into the prompt. The engine uses one for full database dumps and SqliteContextExtractor
+ * for the rows it looks up per message; the serializer's name is part of the file cache variant, so switching
+ * formats never serves a dump written in another one.
+ */
+public interface TableSerializer {
+
+    //the layout the engine used before serializers could be picked: space separated, null written out
+    TableSerializer SPACED = new DelimitedTableSerializer(DelimitedTableSerializer.Layout.SPACED, false, false, false);
+    TableSerializer TSV = new DelimitedTableSerializer(DelimitedTableSerializer.Layout.TSV, false, false, false);
+    TableSerializer CSV = new DelimitedTableSerializer(DelimitedTableSerializer.Layout.CSV, false, false, false);
+    //csv with repeated values written once and no nulls (csv, since a comma joins the token of the word after it and a tab doesn't)
+    TableSerializer COMPACT = new DelimitedTableSerializer(DelimitedTableSerializer.Layout.CSV, true, true, false);
+
+    //short and file name safe, e.g. "csv-dict-nonull"
+    String getName();
+
+    //writes the tables, and stops adding rows once out reaches maxLength (maxLength < 0 means no limit)
+    void write(List<Table> tables, StringBuilder out, long maxLength);
+
+    //whether views are written; a full dump only reads them from the database when they are
+    boolean getViews();
+
+    //the same format with views written, for rows looked up per message where a view row is often the answer
+    TableSerializer withViews();
+
+    /*
+     * A full dump of the database. Rows are read table by table from the result set and only as many are kept
+     * as the rest of maxLength can take; the others are only counted, so a large database costs no more memory
+     * than the dump it ends up as.
+     */
+    default void write(Connection connection, StringBuilder out, long maxLength) throws SQLException {
+        write(readTables(connection, getViews(), maxLength < 0 ? -1 : Math.max(0, maxLength - out.length())), out, maxLength);
+    }
+
+    /*
+     * A table or view with its rows; values are null for sql NULL, foreignKeyColumns and sourceTables are lower
+     * case. omittedRows are rows of the table that were left out, not read, because of a size limit.
+     */
+    record Table(String name, boolean view, List<String> columns, List<List<String>> rows, Set<String> foreignKeyColumns, Set<String> sourceTables, int omittedRows) {
+
+        public Table(String name, boolean view, List<String> columns, List<List<String>> rows, Set<String> foreignKeyColumns, Set<String> sourceTables) {
+            this(name, view, columns, rows, foreignKeyColumns, sourceTables, 0);
+        }
+
+        public int totalRows() {
+            return rows.size() + omittedRows;
+        }
+    }
+
+    /*
+     * A serializer by name: "compact" (csv-dict-nonull), or a layout (spaced, tsv, csv) followed by any of -dict
+     * (repeated values written once), -nonull (no nulls) and -views (views as pre-joined rows). Null for a name
+     * that isn't one.
+     */
+    static TableSerializer forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String[] parts = name.toLowerCase(Locale.ROOT).split("-");
+        if (parts.length == 1 && "compact".equals(parts[0])) {
+            return COMPACT;
+        }
+        DelimitedTableSerializer.Layout layout;
+        switch (parts[0]) {
+            case "spaced" -> layout = DelimitedTableSerializer.Layout.SPACED;
+            case "tsv" -> layout = DelimitedTableSerializer.Layout.TSV;
+            case "csv" -> layout = DelimitedTableSerializer.Layout.CSV;
+            default -> {
+                return null;
+            }
+        }
+        boolean dictionary = false;
+        boolean omitNulls = false;
+        boolean views = false;
+        for (int i = 1; i < parts.length; i++) {
+            switch (parts[i]) {
+                case "dict" -> dictionary = true;
+                case "nonull" -> omitNulls = true;
+                case "views" -> views = true;
+                default -> {
+                    return null;
+                }
+            }
+        }
+        return new DelimitedTableSerializer(layout, dictionary, omitNulls, views);
+    }
+
+    /*
+     * The tables of the database, and its views too if asked for, in the order sqlite lists them. Rows are kept
+     * until their values (plus a separator each) add up to maxCharacters over all tables; the rows after that are
+     * counted as omitted (maxCharacters < 0 means no limit).
+     */
+    static List<Table> readTables(Connection connection, boolean views, long maxCharacters) throws SQLException {
+        Map<String, String> objects = new LinkedHashMap<>();
+        Map<String, String> viewSql = new LinkedHashMap<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT type, name, sql FROM sqlite_master WHERE type IN ('table', 'view') AND name NOT LIKE 'sqlite_%';")) {
+            while (resultSet.next()) {
+                String name = resultSet.getString("name");
+                objects.put(name, resultSet.getString("type"));
+                if ("view".equals(resultSet.getString("type"))) {
+                    viewSql.put(name, resultSet.getString("sql"));
+                }
+            }
+        }
+        List<String> tableNames = new ArrayList<>();
+        for (Map.Entry<String, String> object : objects.entrySet()) {
+            if ("table".equals(object.getValue())) {
+                tableNames.add(object.getKey());
+            }
+        }
+        List<Table> tables = new ArrayList<>();
+        long characters = 0;
+        for (Map.Entry<String, String> object : objects.entrySet()) {
+            String name = object.getKey();
+            boolean view = "view".equals(object.getValue());
+            if (view && !views) {
+                continue;
+            }
+            Set<String> foreignKeyColumns = new LinkedHashSet<>();
+            if (!view) {
+                try (Statement statement = connection.createStatement();
+                        ResultSet resultSet = statement.executeQuery("PRAGMA foreign_key_list(" + quote(name) + ");")) {
+                    while (resultSet.next()) {
+                        foreignKeyColumns.add(resultSet.getString("from").toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            List<String> columns = new ArrayList<>();
+            List<List<String>> rows = new ArrayList<>();
+            int omittedRows = 0;
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT * FROM " + quote(name) + ";")) {
+                int columnCount = resultSet.getMetaData().getColumnCount();
+                for (int i = 1; i <= columnCount; i++) {
+                    columns.add(resultSet.getMetaData().getColumnName(i));
+                }
+                while (resultSet.next()) {
+                    if (maxCharacters >= 0 && characters >= maxCharacters) {
+                        omittedRows++;
+                        continue;
+                    }
+                    List<String> row = new ArrayList<>(columnCount);
+                    for (int i = 1; i <= columnCount; i++) {
+                        String value = resultSet.getString(i);
+                        row.add(value);
+                        characters += (value != null ? value.length() : 0) + 1;
+                    }
+                    rows.add(row);
+                }
+            } catch (SQLException e) {
+                //a view over a table that no longer exists shouldn't lose the rest of the database
+                System.out.println("Failed to read content from " + (view ? "view " : "table ") + name + ": " + e.getMessage());
+                continue;
+            }
+            Set<String> sourceTables = view ? referencedTables(viewSql.get(name), tableNames) : Set.of();
+            tables.add(new Table(name, view, columns, rows, foreignKeyColumns, sourceTables, omittedRows));
+        }
+        return tables;
+    }
+
+    //the table names (lower case) that appear as words in a view's sql
+    static Set<String> referencedTables(String sql, Collection<String> tableNames) {
+        Set<String> referenced = new LinkedHashSet<>();
+        if (sql == null) {
+            return referenced;
+        }
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= sql.length(); i++) {
+            char c = i < sql.length() ? sql.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        for (String table : tableNames) {
+            String lower = table.toLowerCase(Locale.ROOT);
+            if (words.contains(lower)) {
+                referenced.add(lower);
+            }
+        }
+        return referenced;
+    }
+
+    record FormatTokens(String name, int tokens, int characters) {
+    }
+
+    //the size of the database's full dump in each format, to pick one by
+    static List<FormatTokens> tokenReport(File databaseFile, List<TableSerializer> serializers) throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBC Driver not found. Ensure the SQLite JDBC driver is included in your project dependencies.", e);
+        }
+        List<FormatTokens> report = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath())) {
+            for (TableSerializer serializer : serializers) {
+                StringBuilder out = new StringBuilder();
+                serializer.write(connection, out, -1);
+                String dump = out.toString();
+                report.add(new FormatTokens(serializer.getName(), TokenCounter.count(dump), dump.length()));
+            }
+        }
+        return report;
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,86 @@
+
+public final class TokenCounter {
+
+    private TokenCounter() {
+    }
+
+    //offline estimate of the number of BPE tokens (cl100k/o200k style) in the text
+    public static int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        return scan(text, Integer.MAX_VALUE, true);
+    }
+
+    //the longest prefix of the text that fits in maxTokens, cut at the last line break if there is one
+    public static String truncate(String text, int maxTokens) {
+        if (text == null || maxTokens <= 0) {
+            return "";
+        }
+        int end = scan(text, maxTokens, false);
+        if (end >= text.length()) {
+            return text;
+        }
+        int lineEnd = text.lastIndexOf('\n', end);
+        return text.substring(0, lineEnd > 0 ? lineEnd + 1 : end);
+    }
+
+    /*
+     * Splits the text the way the BPE pre-tokenizer does (letters with an optional leading space or symbol,
+     * numbers in groups of up to three digits, symbol runs, whitespace runs) and estimates each piece from its
+     * length, since the merge tables themselves are not shipped. Common words come out as one token, long and
+     * non-ASCII words as several, which slightly over-counts rather than under-counts.
+     * Returns the token count when counting, otherwise the char index where maxTokens runs out (the length if it
+     * never does, so truncating to MAX_VALUE keeps the whole text).
+     */
+    private static int scan(String text, int maxTokens, boolean counting) {
+        int tokens = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            char c = text.charAt(i);
+            int pieceTokens;
+            if (Character.isLetter(c) || (!Character.isLetterOrDigit(c) && !Character.isWhitespace(c) || c == ' ') && i + 1 < length && Character.isLetter(text.charAt(i + 1))) {
+                //a word, with its leading space or symbol folded in
+                if (!Character.isLetter(c)) {
+                    i++;
+                }
+                int ascii = 0;
+                int other = 0;
+                while (i < length && Character.isLetter(text.charAt(i))) {
+                    if (text.charAt(i) < 128) {
+                        ascii++;
+                    } else {
+                        other++;
+                    }
+                    i++;
+                }
+                pieceTokens = (ascii == 0 ? 0 : ascii <= 7 ? 1 : (ascii + 3) / 4) + other;
+            } else if (Character.isDigit(c)) {
+                while (i < length && i - start < 3 && Character.isDigit(text.charAt(i))) {
+                    i++;
+                }
+                pieceTokens = 1;
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(text.charAt(i)) && !(text.charAt(i) == ' ' && i + 1 < length && !Character.isWhitespace(text.charAt(i + 1)))) {
+                    i++;
+                }
+                if (i == start) {
+                    i++;
+                }
+                pieceTokens = 1;
+            } else {
+                while (i < length && !Character.isLetterOrDigit(text.charAt(i)) && !Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+                pieceTokens = (i - start + 1) / 2;
+            }
+            if (!counting && tokens + pieceTokens > maxTokens) {
+                return start;
+            }
+            tokens += pieceTokens;
+        }
+        return counting ? tokens : length;
+    }
+}
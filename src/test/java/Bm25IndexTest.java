@@ -0,0 +1,73 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class Bm25IndexTest {
+
+    private static List<TableSerializer.Table> tables() {
+        List<List<String>> courses = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            courses.add(List.of("CS" + (100 + i), "Course number " + i, i % 2 == 0 ? "Fall 2025 (August 25 - December 12)" : "Spring 2026 (January 12 - May 8)"));
+        }
+        List<List<String>> titles = new ArrayList<>();
+        titles.add(List.of("CS100", "Course number 0"));
+        return List.of(
+                new TableSerializer.Table("Course", false, List.of("CourseCode", "Title", "Term"), courses, Set.of(), Set.of()),
+                new TableSerializer.Table("Titles", true, List.of("Code", "Name"), titles, Set.of(), Set.of("course")));
+    }
+
+    private static String dump(TableSerializer serializer) {
+        StringBuilder out = new StringBuilder("File: acu.db\n{");
+        serializer.write(tables(), out, -1);
+        return out.append("}\n").toString();
+    }
+
+    @Test
+    public void resolvesDictionaryReferencesPerChunk() {
+        String dump = dump(TableSerializer.COMPACT);
+        assertTrue(dump, dump.contains("CS100,Course number 0,@1\n"));
+        Bm25Index index = new Bm25Index(dump, 300);
+        assertTrue(index.getChunkCount() > 1);
+        for (Bm25Index.Chunk chunk : index.getChunks()) {
+            assertFalse(chunk.getText(), chunk.getText().contains("@"));
+            assertFalse(chunk.getText(), chunk.getText().contains("Values written"));
+            assertTrue(chunk.getText(), chunk.getText().startsWith("File: acu.db\nTable: Course\nCourseCode,Title,Term\n"));
+        }
+        List<Bm25Index.Chunk> found = index.search("When does the august term end?", 1, 10000, List.of());
+        assertEquals(1, found.size());
+        assertTrue(found.get(0).getText(), found.get(0).getText().contains("CS100,Course number 0,Fall 2025 (August 25 - December 12)\n"));
+    }
+
+    @Test
+    public void resolvesEveryLayout() {
+        for (String name : List.of("spaced-dict", "tsv-dict", "csv-dict")) {
+            Bm25Index index = new Bm25Index(dump(TableSerializer.forName(name)));
+            String text = index.getChunks().get(0).getText();
+            assertFalse(name + ": " + text, text.contains("@"));
+            assertTrue(name + ": " + text, text.contains("Spring 2026 (January 12 - May 8)"));
+        }
+    }
+
+    @Test
+    public void startsAChunkAtEveryView() {
+        Bm25Index index = new Bm25Index(dump(TableSerializer.forName("csv-views")));
+        Bm25Index.Chunk last = index.getChunks().get(index.getChunkCount() - 1);
+        assertEquals("File: acu.db\nView: Titles\nCode,Name\nCS100,Course number 0\n}\n", last.getText());
+    }
+
+    @Test
+    public void resolvesOnlyWholeFields() {
+        Map<String, String> references = Map.of("@1", "Fall", "@12", "Spring");
+        assertEquals("a,Fall,Spring", Bm25Index.resolveReferences("a,@1,@12", references));
+        assertEquals("Fall\tb", Bm25Index.resolveReferences("@1\tb", references));
+        assertEquals("mail@1,@2,@1x", Bm25Index.resolveReferences("mail@1,@2,@1x", references));
+    }
+}
@@ -0,0 +1,129 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class ChatCompletionTest {
+
+    private static ChatCompletion parse(String json) {
+        return ChatCompletion.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertMalformed(String json) {
+        try {
+            parse(json);
+            fail("Expected a JSONException for " + json);
+        } catch (JSONException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void parsesAFullResponse() {
+        ChatCompletion completion = parse("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"created\":1700000000,\"model\":\"gpt-4o-mini\","
+                + "\"system_fingerprint\":\"fp_1\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"Hello there\"},"
+                + "\"logprobs\":null,\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":12,\"completion_tokens\":3,\"total_tokens\":15,"
+                + "\"prompt_tokens_details\":{\"cached_tokens\":8},\"completion_tokens_details\":{\"reasoning_tokens\":1}}}");
+        assertEquals("chatcmpl-1", completion.getId());
+        assertEquals("gpt-4o-mini", completion.getModel());
+        assertEquals(1700000000L, completion.getCreated());
+        assertEquals("fp_1", completion.getSystemFingerprint());
+        assertEquals("Hello there", completion.getContent());
+        assertEquals("stop", completion.getFinishReason());
+        assertEquals(new ChatCompletion.Usage(12, 3, 15, 8, 1), completion.getUsage());
+    }
+
+    @Test
+    public void keepsTheFirstChoiceOnly() {
+        ChatCompletion completion = parse("{\"choices\":[{\"message\":{\"content\":\"first\"},\"finish_reason\":\"stop\"},"
+                + "{\"message\":{\"content\":\"second\"},\"finish_reason\":\"length\"}]}");
+        assertEquals("first", completion.getContent());
+        assertEquals("stop", completion.getFinishReason());
+    }
+
+    @Test
+    public void skipsUnknownFields() {
+        ChatCompletion completion = parse("{\"extra\":{\"nested\":[1,2,{\"deep\":\"}]\\\"\"}],\"flag\":true},\"choices\":[{\"message\":"
+                + "{\"tool_calls\":[{\"id\":\"call_1\",\"function\":{\"arguments\":\"{\\\"a\\\":[1]}\"}}],\"content\":\"ok\",\"refusal\":null},"
+                + "\"logprobs\":{\"content\":[]}}],\"service_tier\":\"default\",\"number\":-1.5e3,\"nothing\":null}");
+        assertEquals("ok", completion.getContent());
+        assertNull(completion.getFinishReason());
+        assertEquals(ChatCompletion.Usage.NONE, completion.getUsage());
+    }
+
+    @Test
+    public void readsNullContentAndNullFields() {
+        ChatCompletion completion = parse("{\"id\":null,\"model\":null,\"created\":null,\"choices\":[{\"message\":{\"content\":null},"
+                + "\"finish_reason\":null}],\"usage\":null}");
+        assertNull(completion.getId());
+        assertNull(completion.getModel());
+        assertEquals(0, completion.getCreated());
+        assertNull(completion.getContent());
+        assertNull(completion.getFinishReason());
+        assertEquals(ChatCompletion.Usage.NONE, completion.getUsage());
+        assertNull(parse("{\"choices\":null}").getContent());
+        assertNull(parse("{\"choices\":[]}").getContent());
+        assertNull(parse("{\"choices\":[{\"message\":null}]}").getContent());
+    }
+
+    @Test
+    public void decodesEscapesAndSurrogates() {
+        ChatCompletion completion = parse("{\"choices\":[{\"message\":{\"content\":\"a\\\"b\\\\c\\/d\\n\\t\\r\\b\\f \\u00e9 \\ud83d\\ude00 ü 😀\"}}]}");
+        assertEquals("a\"b\\c/d\n\t\r\b\f é 😀 ü 😀", completion.getContent());
+    }
+
+    @Test
+    public void agreesWithOrgJson() {
+        String content = "Line \"one\"\n\ttab \\ slash / unicode ☃ 😀 control \u0001";
+        String json = new JSONObject().put("id", "x").put("choices", new org.json.JSONArray().put(new JSONObject()
+                .put("message", new JSONObject().put("content", content)).put("finish_reason", "stop"))).toString();
+        assertEquals(content, parse(json).getContent());
+    }
+
+    @Test
+    public void readsContentLongerThanTheBuffer() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append("word").append(i).append(i % 7 == 0 ? "\\n" : " ");
+        }
+        String json = "{\"choices\":[{\"message\":{\"content\":\"" + content + "\"}}]}";
+        String expected = content.toString().replace("\\n", "\n");
+        assertEquals(expected, parse(json).getContent());
+        assertEquals(json, parse(json).getRawJson());
+    }
+
+    @Test(timeout = 5000)
+    public void rejectsTruncatedResponses() {
+        assertMalformed("");
+        assertMalformed("{");
+        assertMalformed("{\"choices\":");
+        assertMalformed("{\"choices\":[");
+        assertMalformed("{\"choices\":[{");
+        assertMalformed("{\"choices\":[{\"message\":{\"content\":\"hi\"}}");
+        assertMalformed("{\"choices\":[{\"message\":{\"content\":\"hi\"}}]");
+        assertMalformed("{\"choices\":[{\"message\":{\"content\":\"hi");
+        assertMalformed("{\"choices\":[1,");
+        assertMalformed("{\"usage\":{\"prompt_tokens\":");
+        assertMalformed("{\"extra\":[1,2");
+        assertMalformed("{\"extra\":\"unterminated");
+    }
+
+    @Test(timeout = 5000)
+    public void rejectsMalformedResponses() {
+        assertMalformed("[]");
+        assertMalformed("{\"choices\":[{} {}]}");
+        assertMalformed("{\"choices\":[,]}");
+        assertMalformed("{\"choices\":[1 2]}");
+        assertMalformed("{\"id\":\"a\" \"model\":\"b\"}");
+        assertMalformed("{\"id\":}");
+        assertMalformed("{\"created\":\"soon\"}");
+        assertMalformed("{\"choices\":[{\"message\":{\"content\":\"bad \\uZZZZ escape\"}}]}");
+        assertMalformed("{\"choices\":[{\"message\":{\"content\":nul}}]}");
+    }
+}
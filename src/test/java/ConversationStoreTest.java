@@ -0,0 +1,136 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConversationStoreTest {
+
+    private File databaseFile;
+    private ConversationStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseFile = File.createTempFile("conversations", ".db");
+        //one queued write per transaction, so a transaction count shows what was committed together
+        store = new ConversationStore(databaseFile, 10, 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        new File(databaseFile.getPath() + "-wal").delete();
+        new File(databaseFile.getPath() + "-shm").delete();
+        databaseFile.delete();
+    }
+
+    private ConversationStore reopen() throws Exception {
+        store.close();
+        store = new ConversationStore(databaseFile, 10, 1, 0);
+        return store;
+    }
+
+    @Test
+    public void keepsConversationsAcrossRestarts() throws Exception {
+        ConversationStore.Conversation conversation = store.conversation("a");
+        conversation.add("User: hi");
+        conversation.add("You: Hello!");
+        conversation.setSummary("Greetings.");
+        conversation.add(1, "User: are you there?");
+        ConversationStore.Conversation reloaded = reopen().conversation("a");
+        assertEquals(List.of("User: hi", "User: are you there?", "You: Hello!"), reloaded);
+        assertEquals("Greetings.", reloaded.getSummary());
+        assertTrue(store.contains("a"));
+        assertFalse(store.contains("b"));
+    }
+
+    @Test
+    public void commitsAReplacementInOneTransaction() throws Exception {
+        ConversationStore.Conversation conversation = store.conversation("a");
+        conversation.add("User: old");
+        conversation.setSummary("Old summary.");
+        store.flush();
+        long transactions = store.getTransactions();
+        conversation.atomically(() -> {
+            conversation.clear();
+            conversation.addAll(List.of("User: one", "You: two", "User: three"));
+            conversation.setSummary(null);
+        });
+        store.flush();
+        assertEquals(transactions + 1, store.getTransactions());
+        ConversationStore.Conversation reloaded = reopen().conversation("a");
+        assertEquals(List.of("User: one", "You: two", "User: three"), reloaded);
+        assertNull(reloaded.getSummary());
+    }
+
+    @Test
+    public void commitsCompactionAndItsSummaryInOneTransaction() throws Exception {
+        ConversationStore.Conversation conversation = store.conversation("a");
+        for (int i = 0; i < 6; i++) {
+            conversation.add((i % 2 == 0 ? "User: question " : "You: answer ") + i);
+        }
+        ConversationCompactor compactor = new ConversationCompactor(conversation, null);
+        compactor.setSummaryListener(conversation::setSummary);
+        store.flush();
+        long transactions = store.getTransactions();
+        assertTrue(compactor.maybeCompact(2, 0, prompt -> CompletableFuture.completedFuture("Four turns.")));
+        store.flush();
+        assertEquals(transactions + 1, store.getTransactions());
+        ConversationStore.Conversation reloaded = reopen().conversation("a");
+        assertEquals(List.of("User: question 4", "You: answer 5"), reloaded);
+        assertEquals("Four turns.", reloaded.getSummary());
+    }
+
+    @Test
+    public void changesPlainListsInPlace() {
+        List<String> history = new java.util.ArrayList<>(List.of("User: hi"));
+        ConversationStore.atomically(history, () -> history.add("You: Hello!"));
+        assertEquals(List.of("User: hi", "You: Hello!"), history);
+    }
+
+    @Test
+    public void neverKeepsAConversationThatFailedToLoad() throws Exception {
+        store.conversation("a").add("User: hi");
+        reopen();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE conversation_summary RENAME TO unreadable");
+            try {
+                store.conversation("a");
+                fail("an unreadable conversation was loaded as empty");
+            } catch (IllegalStateException expected) {
+                //nothing was cached, so nothing can be written over the stored turns
+            }
+            statement.execute("ALTER TABLE unreadable RENAME TO conversation_summary");
+        }
+        assertEquals(List.of("User: hi"), store.conversation("a"));
+    }
+
+    @Test
+    public void neverOverwritesATurnWithTheSameSequenceNumber() throws Exception {
+        store.conversation("a").add("User: hi");
+        store.flush();
+        //a second instance during a deploy, which loaded the conversation before the first one added to it
+        try (ConversationStore other = new ConversationStore(databaseFile, 10, 1, 0)) {
+            ConversationStore.Conversation stale = other.conversation("a");
+            store.conversation("a").add("You: Hello!");
+            store.flush();
+            stale.add("You: Hi there!");
+            other.flush();
+            assertEquals(1, other.getFailedWrites());
+        }
+        assertEquals(List.of("User: hi", "You: Hello!"), reopen().conversation("a"));
+    }
+}
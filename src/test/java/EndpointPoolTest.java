@@ -0,0 +1,131 @@
+import static org.junit.Assert.assertEquals;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EndpointPoolTest {
+
+    private static final String BODY = "{\"model\": \"mock-model\", \"messages\": [{\"role\": \"user\", \"content\": \"hi\"}]}";
+
+    private MockOpenAiServer primary;
+    private MockOpenAiServer backup;
+    private OpenAiTransport transport;
+    private EndpointPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        primary = new MockOpenAiServer(0).start();
+        backup = new MockOpenAiServer(0).start();
+        primary.setLatencyMillis(0, 0);
+        backup.setLatencyMillis(0, 0);
+        transport = new OpenAiTransport(Duration.ofSeconds(5));
+        //the primary's weight makes it the first choice whenever its circuit lets it; keys of their own, since limiters are shared per key
+        pool = new EndpointPool()
+                .add("primary", primary.getBaseUrl(), "primary-" + UUID.randomUUID(), 10)
+                .add("backup", backup.getBaseUrl(), "backup-" + UUID.randomUUID(), 1);
+        pool.setFailureThreshold(1);
+    }
+
+    @After
+    public void tearDown() {
+        primary.close();
+        backup.close();
+    }
+
+    private CompletableFuture<HttpResponse<String>> send() {
+        return pool.send(transport, "/chat/completions", BODY, 0, HttpResponse.BodyHandlers.ofString(), 10, new RetryPolicy(0), null);
+    }
+
+    private EndpointPool.Endpoint endpoint(int index) {
+        return pool.getEndpoints().get(index);
+    }
+
+    @Test(timeout = 10000)
+    public void failsOverAndOpensTheCircuitOnServerErrors() throws Exception {
+        primary.setErrorRate(1);
+        assertEquals(200, send().get().statusCode());
+        assertEquals(1, primary.getRequests());
+        assertEquals(1, backup.getRequests());
+        assertEquals(1, pool.getFailovers());
+        assertEquals("open", endpoint(0).getCircuitState());
+        //out of rotation, so the next call goes straight to the backup
+        assertEquals(200, send().get().statusCode());
+        assertEquals(1, primary.getRequests());
+        assertEquals(2, backup.getRequests());
+    }
+
+    @Test(timeout = 10000)
+    public void opensTheCircuitOnARateLimitForItsRetryAfter() throws Exception {
+        pool.setFailureThreshold(5);
+        pool.setOpenMillis(10);
+        primary.setRateLimitRate(1, 60000);
+        assertEquals(200, send().get().statusCode());
+        assertEquals(1, primary.getInjectedRateLimits());
+        assertEquals("open", endpoint(0).getCircuitState());
+        //the Retry-After, not the configured 10ms, keeps it out of rotation
+        Thread.sleep(50);
+        assertEquals(200, send().get().statusCode());
+        assertEquals(1, primary.getRequests());
+        assertEquals(2, backup.getRequests());
+    }
+
+    @Test(timeout = 10000)
+    public void aSuccessfulProbeClosesTheCircuit() throws Exception {
+        pool.setOpenMillis(100);
+        primary.setErrorRate(1);
+        send().get();
+        assertEquals("open", endpoint(0).getCircuitState());
+        primary.setErrorRate(0);
+        Thread.sleep(150);
+        assertEquals(200, send().get().statusCode());
+        assertEquals(2, primary.getRequests());
+        assertEquals("closed", endpoint(0).getCircuitState());
+    }
+
+    @Test(timeout = 10000)
+    public void letsOneProbeThroughAtATime() throws Exception {
+        pool.setOpenMillis(100);
+        primary.setErrorRate(1);
+        send().get();
+        primary.setErrorRate(0);
+        primary.setLatencyMillis(500, 500);
+        Thread.sleep(150);
+        //calls that all find the cooldown over at once: one of them probes, the circuit goes half open, the rest go to the backup
+        List<CompletableFuture<HttpResponse<String>>> calls = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        for (int i = 0; i < 16; i++) {
+            CompletableFuture<HttpResponse<String>> call = new CompletableFuture<>();
+            calls.add(call);
+            Thread.ofVirtual().start(() -> {
+                try {
+                    go.await();
+                    send().whenComplete((response, error) -> {
+                        if (error != null) {
+                            call.completeExceptionally(error);
+                        } else {
+                            call.complete(response);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    call.completeExceptionally(e);
+                }
+            });
+        }
+        go.countDown();
+        for (CompletableFuture<HttpResponse<String>> call : calls) {
+            assertEquals(200, call.get().statusCode());
+        }
+        assertEquals(2, primary.getRequests());
+        assertEquals(1 + 15, backup.getRequests());
+        assertEquals("closed", endpoint(0).getCircuitState());
+    }
+}
@@ -0,0 +1,92 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileContentCacheTest {
+
+    private Path directory;
+    private FileContentCache cache;
+    private final AtomicInteger extractions = new AtomicInteger();
+    private final Function<File, String> extractor = file -> {
+        extractions.incrementAndGet();
+        try {
+            return Files.readString(file.toPath());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("file-cache-test");
+        cache = FileContentCache.forDirectory(directory.resolve("cache").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.clear();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private File write(String name, String contents) throws IOException {
+        return Files.writeString(directory.resolve(name), contents).toFile();
+    }
+
+    @Test
+    public void keepsTheMemoryUnderTheCap() throws IOException {
+        cache.setMaxMemoryBytes(2 * 2500);
+        File a = write("a.txt", "a".repeat(1000));
+        File b = write("b.txt", "b".repeat(1000));
+        File c = write("c.txt", "c".repeat(1000));
+        for (File file : new File[]{a, b, c}) {
+            cache.get(file, "text", extractor);
+        }
+        assertEquals(3, extractions.get());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * 2000, cache.getMemoryBytes());
+        //the evicted contents come back from disk, without extracting the file again
+        assertEquals("a".repeat(1000), cache.get(a, "text", extractor));
+        assertEquals(3, extractions.get());
+        assertEquals(1, cache.getDiskHits());
+        assertTrue(cache.getMemoryBytes() <= 2 * 2500);
+    }
+
+    @Test
+    public void dropsContentsNoFileHasAnymore() throws IOException {
+        File a = write("a.txt", "old contents");
+        cache.get(a, "text", extractor);
+        Files.writeString(a.toPath(), "new contents, a bit longer");
+        a.setLastModified(a.lastModified() + 2000);
+        assertEquals("new contents, a bit longer", cache.get(a, "text", extractor));
+        assertEquals(2 * "new contents, a bit longer".length(), cache.getMemoryBytes());
+        //only the index and the new contents are left on disk
+        try (Stream<Path> paths = Files.list(directory.resolve("cache"))) {
+            assertEquals(List.of("new contents, a bit longer"), paths.filter(path -> !path.equals(directory.resolve("cache").resolve("index.json")))
+                    .map(FileContentCacheTest::read).toList());
+        }
+    }
+
+    private static String read(Path path) {
+        try {
+            return Files.readString(path);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
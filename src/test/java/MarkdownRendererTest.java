@@ -0,0 +1,48 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class MarkdownRendererTest {
+
+    private static final String[] TEXTS = {
+            "Plain text without any markers.",
+            "You are in **Computer Science**, with *two* electives and _one_ seminar left.",
+            "Run `mvn test` first, then `mvn package`.",
+            "Steps:\n```java\nint x = 1; // **not bold**\n```\nDone.",
+            "```\nunclosed fence with *markers*\nand a second line",
+            "An **unclosed bold and an *unclosed italic on one line\nthen `unclosed code\nand a lone * star.",
+            "Mixed ***bold italic*** and __underscores__ and `code with *stars*` at the end**",
+    };
+
+    @Test
+    public void streamsLikeItRendersAtEverySplitPoint() {
+        for (String text : TEXTS) {
+            String expected = MarkdownRenderer.render(text);
+            for (int split = 0; split <= text.length(); split++) {
+                MarkdownRenderer renderer = new MarkdownRenderer();
+                String streamed = renderer.append(text.substring(0, split)) + renderer.append(text.substring(split)) + renderer.finish();
+                assertEquals("split at " + split + " of " + text, expected, streamed);
+            }
+        }
+    }
+
+    @Test
+    public void streamsLikeItRendersOneCharacterAtATime() {
+        for (String text : TEXTS) {
+            MarkdownRenderer renderer = new MarkdownRenderer();
+            StringBuilder streamed = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                streamed.append(renderer.append(text.substring(i, i + 1)));
+            }
+            assertEquals(text, MarkdownRenderer.render(text), streamed.append(renderer.finish()).toString());
+        }
+    }
+
+    @Test
+    public void stylesClosedMarkersAndLeavesUnclosedOnesAsWritten() {
+        assertNotEquals("**bold**", MarkdownRenderer.render("**bold**"));
+        assertEquals("**not closed", MarkdownRenderer.render("**not closed"));
+        assertEquals("a * b", MarkdownRenderer.render("a * b"));
+    }
+}
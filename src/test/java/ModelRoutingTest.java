@@ -0,0 +1,44 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModelRoutingTest {
+
+    private MockOpenAiServer server;
+    private OpenAiAssistantEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockOpenAiServer(0).start();
+        server.setLatencyMillis(0, 0);
+        engine = new OpenAiAssistantEngine("routing-test-key", "file-search", "You are a helpful assistant.");
+        engine.setBaseUrl(server.getBaseUrl());
+        engine.setRetryPolicy(new RetryPolicy(0));
+        engine.setModelRouter(new ModelRouter("fast-model", "strong-model"));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void answersFromTheFastModel() {
+        assertNotNull(engine.chatGPT("What is CS 375?", false));
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test(timeout = 10000)
+    public void doesNotEscalateFailedCalls() throws Exception {
+        server.setErrorRate(1);
+        ChatResult result = engine.chatGPTAsync("What is CS 375?", false).get();
+        assertNotNull(result.getError());
+        assertNull(result.getResponseData().get("escalated_from"));
+        assertEquals(1, server.getRequests());
+    }
+}
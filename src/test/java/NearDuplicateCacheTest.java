@@ -0,0 +1,24 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NearDuplicateCacheTest {
+
+    @Test
+    public void matchesRephrasedQuestions() {
+        assertTrue(NearDuplicateCache.similarity("Which concentration am I in?", "what's my concentration") >= NearDuplicateCache.DEFAULT_THRESHOLD);
+    }
+
+    @Test
+    public void neverMatchesANegatedQuestion() {
+        assertEquals(0, NearDuplicateCache.similarity("Am I enrolled in CS375?", "Am I not enrolled in CS375?"), 0);
+        assertEquals(0, NearDuplicateCache.similarity("Can I take CS 375?", "Can't I take CS 375?"), 0);
+        assertEquals(0, NearDuplicateCache.similarity("Do I need MATH185?", "Don’t I need MATH185?"), 0);
+    }
+
+    @Test
+    public void needsTheSameNumbers() {
+        assertEquals(0, NearDuplicateCache.similarity("Can I take CS375?", "Can I take CS376?"), 0);
+    }
+}
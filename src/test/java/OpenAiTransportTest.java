@@ -0,0 +1,61 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OpenAiTransportTest {
+
+    private static final String BODY = "{\"model\": \"mock-model\", \"messages\": [{\"role\": \"user\", \"content\": \"hi\"}]}";
+
+    private MockOpenAiServer server;
+    private OpenAiTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockOpenAiServer(0).start();
+        server.setLatencyMillis(0, 0);
+        transport = new OpenAiTransport(Duration.ofSeconds(5));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpRequest request() {
+        return transport.postJson(server.getBaseUrl() + "/chat/completions", "test-key", BODY, 0);
+    }
+
+    @Test(timeout = 10000)
+    public void doesNotCountTheQueueAgainstTheTimeout() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.pause(1500);
+        long start = System.nanoTime();
+        HttpResponse<String> response = transport.sendWithRetry(request(), HttpResponse.BodyHandlers.ofString(), limiter, 10, new RetryPolicy(0), null, 500).get();
+        assertEquals(200, response.statusCode());
+        assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+    }
+
+    @Test(timeout = 10000)
+    public void abortsAnAttemptWithNoResponseInTime() throws Exception {
+        server.setLatencyMillis(3000, 3000);
+        try {
+            transport.sendWithRetry(request(), HttpResponse.BodyHandlers.ofString(), new RateLimiter(), 10, new RetryPolicy(2), null, 300).get();
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof HttpTimeoutException);
+        }
+        //a response timeout is not retried
+        assertEquals(1, server.getRequests());
+    }
+}
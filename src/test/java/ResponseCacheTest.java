@@ -0,0 +1,64 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+    //instruction, history, per-message context, the dynamic length limit, then the message
+    private static ChatMessages prompt(List<String> history, String context, String message) {
+        List<ChatMessages.Message> messages = new ArrayList<>();
+        messages.add(new ChatMessages.Message("system", "You are a helpful assistant."));
+        for (int i = 0; i < history.size(); i++) {
+            messages.add(new ChatMessages.Message(i % 2 == 0 ? "user" : "assistant", history.get(i)));
+        }
+        int turnStart = messages.size();
+        if (context != null) {
+            messages.add(new ChatMessages.Message("system", context));
+        }
+        int lengthLimitIndex = messages.size();
+        messages.add(new ChatMessages.Message("system", "Please keep the response length under " + Math.max(message.length() * 10, 100) + " characters."));
+        messages.add(new ChatMessages.Message("user", message));
+        return new ChatMessages(messages, 1, turnStart, lengthLimitIndex);
+    }
+
+    @Test
+    public void ignoresCaseSpacingAndTheLengthLimit() {
+        String key = ResponseCache.keyFor("gpt-4o-mini", "What concentration am I in?", prompt(List.of(), null, "What concentration am I in?"));
+        assertEquals(key, ResponseCache.keyFor("gpt-4o-mini", "what  concentration am i in", prompt(List.of(), null, "what  concentration am i in")));
+        assertNotEquals(key, ResponseCache.keyFor("gpt-4o", "What concentration am I in?", prompt(List.of(), null, "What concentration am I in?")));
+    }
+
+    @Test
+    public void keysFollowUpsByTheirHistory() {
+        String first = ResponseCache.keyFor("m", "why?", prompt(List.of("Can I take CS 375?", "Yes, you meet the prerequisites."), null, "why?"));
+        String second = ResponseCache.keyFor("m", "why?", prompt(List.of("Can I take CS 499?", "No, it needs senior standing."), null, "why?"));
+        String none = ResponseCache.keyFor("m", "why?", prompt(List.of(), null, "why?"));
+        assertNotEquals(first, second);
+        assertNotEquals(first, none);
+        assertEquals(first, ResponseCache.keyFor("m", "Why", prompt(List.of("Can I take CS 375?", "Yes, you meet the prerequisites."), null, "Why")));
+    }
+
+    @Test
+    public void keysByThePerMessageContext() {
+        assertNotEquals(ResponseCache.keyFor("m", "hi", prompt(List.of(), "Table: course\nCS 375", "hi")),
+                ResponseCache.keyFor("m", "hi", prompt(List.of(), "Table: course\nCS 499", "hi")));
+    }
+
+    @Test
+    public void sharesContextKeysBetweenParaphrases() {
+        String key = ResponseCache.contextKeyFor("m", prompt(List.of(), "Table: course\nCS 375", "What concentration am I in?"));
+        assertEquals(key, ResponseCache.contextKeyFor("m", prompt(List.of(), "Table: student\nAda", "which concentration am i in, please")));
+        assertNotEquals(key, ResponseCache.contextKeyFor("m", prompt(List.of("hi", "Hello!"), null, "What concentration am I in?")));
+        assertNotEquals(key, ResponseCache.contextKeyFor("other", prompt(List.of(), null, "What concentration am I in?")));
+    }
+
+    @Test
+    public void normalizes() {
+        assertEquals("what is cs 375", ResponseCache.normalize("  What is   CS 375?! "));
+    }
+}
@@ -0,0 +1,62 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpTimeoutException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private static HttpHeaders headers(String name, String value) {
+        return HttpHeaders.of(Map.of(name, List.of(value)), (a, b) -> true);
+    }
+
+    @Test
+    public void retriesConnectionFailuresButNotResponseTimeouts() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(new IOException("connection reset")));
+        assertTrue(policy.isRetryable(new HttpConnectTimeoutException("connect timed out")));
+        assertFalse(policy.isRetryable(new HttpTimeoutException("request timed out")));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void retriesThrottlingAndServerErrors() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(429));
+        assertTrue(policy.isRetryable(503));
+        assertFalse(policy.isRetryable(400));
+        assertFalse(policy.isRetryable(401));
+    }
+
+    @Test
+    public void backsOffWithFullJitter() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 30000);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 2000; i++) {
+            long delay = policy.delayMillis(2, null);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("a delay anywhere from zero up, got a minimum of " + min, min < 1000);
+        assertTrue(max <= 4000);
+        assertTrue(max > 3000);
+        assertTrue(policy.delayMillis(30, null) <= 30000);
+    }
+
+    @Test
+    public void honorsTheServersDelay() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 30000);
+        assertEquals(2500, policy.delayMillis(0, headers("retry-after-ms", "2500")));
+        assertEquals(7000, policy.delayMillis(0, headers("retry-after", "7")));
+        assertEquals(30000, policy.delayMillis(0, headers("retry-after", "600")));
+    }
+}
@@ -0,0 +1,73 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SqliteContextExtractorTest {
+
+    private File databaseFile;
+    private SqliteContextExtractor extractor;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseFile = File.createTempFile("extractor", ".db");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE Course (CourseCode TEXT PRIMARY KEY, Title TEXT)");
+            statement.execute("INSERT INTO Course VALUES ('CS375', 'Computer Networks'), ('MATH185', 'Calculus I')");
+        }
+        extractor = new SqliteContextExtractor(databaseFile);
+    }
+
+    @After
+    public void tearDown() {
+        extractor.close();
+        databaseFile.delete();
+    }
+
+    @Test
+    public void findsCodesInAnyCase() {
+        Map<String, Set<String>> expected = Map.of("course", Set.of("CS375"));
+        assertEquals(expected, extractor.findEntities("Can I take CS375?"));
+        assertEquals(expected, extractor.findEntities("can i take cs375"));
+        assertEquals(expected, extractor.findEntities("can i take cs 375"));
+        assertEquals(expected, extractor.findEntities("Can I take Cs 375?"));
+    }
+
+    @Test
+    public void extractsTheRowsWithTheOriginalKey() {
+        String rows = extractor.extract("what is cs 375 about");
+        assertTrue(rows, rows.contains("Computer Networks"));
+    }
+
+    @Test
+    public void keepsTheRowsOfViews() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE Student (id INTEGER PRIMARY KEY, Major TEXT)");
+            statement.execute("CREATE TABLE Section (id INTEGER PRIMARY KEY, CourseCode TEXT REFERENCES Course(CourseCode))");
+            statement.execute("CREATE TABLE student_section (student_id INTEGER REFERENCES Student(id), section_id INTEGER REFERENCES Section(id))");
+            statement.execute("CREATE VIEW student_sections AS SELECT student_section.student_id, Section.CourseCode, Course.Title FROM student_section"
+                    + " JOIN Section ON Section.id = student_section.section_id JOIN Course ON Course.CourseCode = Section.CourseCode");
+            statement.execute("INSERT INTO Student VALUES (90, 'Computer Science')");
+            statement.execute("INSERT INTO Section VALUES (1, 'CS375')");
+            statement.execute("INSERT INTO student_section VALUES (90, 1)");
+        }
+        extractor.close();
+        extractor = new SqliteContextExtractor(databaseFile);
+        //the default format leaves views out of a full dump, but the title is only in the view
+        String rows = extractor.extract("I am student 90, what classes am I in?");
+        assertTrue(rows, rows.contains("View: student_sections"));
+        assertTrue(rows, rows.contains("Computer Networks"));
+    }
+}
@@ -0,0 +1,125 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TableSerializerTest {
+
+    private File databaseFile;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseFile = File.createTempFile("tables", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE Course (CourseCode TEXT PRIMARY KEY, Title TEXT, Term TEXT, Notes TEXT)");
+            statement.execute("CREATE TABLE Note (Id INTEGER PRIMARY KEY, Text TEXT)");
+            statement.execute("CREATE VIEW CourseTitles AS SELECT CourseCode, Title FROM Course");
+            //a view over a table that is gone, reading it fails
+            statement.execute("CREATE TABLE Gone (Id INTEGER)");
+            statement.execute("CREATE VIEW Broken AS SELECT Id FROM Gone");
+            statement.execute("DROP TABLE Gone");
+        }
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO Course VALUES (?, ?, ?, NULL)")) {
+            for (int i = 0; i < 1000; i++) {
+                insert.setString(1, "CS" + (100 + i));
+                insert.setString(2, "Course number " + i);
+                insert.setString(3, "Fall 2025 (August 25 - December 12)");
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO Note VALUES (1, 'a note')");
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        databaseFile.delete();
+    }
+
+    private static TableSerializer.Table table(List<TableSerializer.Table> tables, String name) {
+        for (TableSerializer.Table table : tables) {
+            if (table.name().equals(name)) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void readsViewsOnlyWhenAskedTo() throws Exception {
+        List<TableSerializer.Table> tables = TableSerializer.readTables(connection, false, -1);
+        assertEquals(2, tables.size());
+        assertNull(table(tables, "CourseTitles"));
+        TableSerializer.Table titles = table(TableSerializer.readTables(connection, true, -1), "CourseTitles");
+        assertNotNull(titles);
+        assertTrue(titles.view());
+        assertEquals(1000, titles.rows().size());
+    }
+
+    @Test
+    public void keepsOnlyTheRowsThatFit() throws Exception {
+        List<TableSerializer.Table> tables = TableSerializer.readTables(connection, false, 2000);
+        TableSerializer.Table course = table(tables, "Course");
+        assertTrue(course.rows().size() < 50);
+        assertEquals(1000, course.totalRows());
+        TableSerializer.Table note = table(tables, "Note");
+        assertEquals(0, note.rows().size());
+        assertEquals(1, note.omittedRows());
+    }
+
+    @Test
+    public void stopsTheDumpAtTheLimit() throws Exception {
+        for (TableSerializer serializer : List.of(TableSerializer.SPACED, TableSerializer.COMPACT, TableSerializer.forName("csv-dict-nonull-views"))) {
+            StringBuilder out = new StringBuilder("File: tables.db\n");
+            serializer.write(connection, out, out.length() + 3000);
+            String dump = out.toString();
+            assertTrue(serializer + " wrote " + dump.length(), dump.length() < 4000);
+            assertTrue(dump, dump.contains("Table: Note"));
+            assertTrue(dump, dump.contains("more rows omitted, file size limit reached"));
+            assertFalse(dump, dump.contains("View: Broken"));
+        }
+    }
+
+    @Test
+    public void writesEveryRowWithoutALimit() throws Exception {
+        StringBuilder out = new StringBuilder();
+        TableSerializer.COMPACT.write(connection, out, -1);
+        String dump = out.toString();
+        assertFalse(dump.contains("omitted"));
+        assertFalse(dump.contains("View: "));
+        assertTrue(dump.contains("CS1099,Course number 999,@1\n"));
+        assertTrue(dump.contains("Values written as @n below:\n@1,Fall 2025 (August 25 - December 12)\n"));
+        //the all null Notes column is left out
+        assertTrue(dump.contains("CourseCode,Title,Term\n"));
+    }
+
+    @Test
+    public void namesSerializers() {
+        assertEquals("csv-dict-nonull", TableSerializer.COMPACT.getName());
+        assertEquals(TableSerializer.COMPACT.getName(), TableSerializer.forName("compact").getName());
+        assertEquals("tsv-nonull-views", TableSerializer.forName("TSV-nonull-views").getName());
+        assertNull(TableSerializer.forName("xml"));
+        assertNull(TableSerializer.forName("csv-bogus"));
+    }
+}
@@ -0,0 +1,23 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenCounterTest {
+
+    private static final String TEXT = "hello world this is a test of the token counter\nwith a second line of text here";
+
+    @Test
+    public void keepsTheWholeTextWithoutALimit() {
+        assertEquals(TEXT, TokenCounter.truncate(TEXT, Integer.MAX_VALUE));
+        assertEquals(TEXT, TokenCounter.truncate(TEXT, TokenCounter.count(TEXT)));
+    }
+
+    @Test
+    public void cutsAtTheLastLineBreakThatFits() {
+        String truncated = TokenCounter.truncate(TEXT, TokenCounter.count(TEXT) - 1);
+        assertEquals("hello world this is a test of the token counter\n", truncated);
+        assertTrue(TokenCounter.count(truncated) < TokenCounter.count(TEXT));
+        assertEquals("", TokenCounter.truncate(TEXT, 0));
+    }
+}